@@ -0,0 +1,244 @@
+package de.intranda.ugh.extension;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import de.intranda.ugh.extension.util.MarcDatafield;
+import de.intranda.ugh.extension.util.MarcFieldFilter;
+import de.intranda.ugh.extension.util.MarcMappingConfiguration;
+import de.intranda.ugh.extension.util.MetadataConfigurationItem;
+import de.intranda.ugh.extension.util.MarcRecord;
+import de.intranda.ugh.extension.util.MarcRecordReader;
+import de.intranda.ugh.extension.util.MarcXmlStreamReader;
+import de.intranda.ugh.extension.util.ValueReplacement;
+import ugh.dl.Corporate;
+import ugh.dl.DocStruct;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataGroup;
+import ugh.dl.Person;
+import ugh.dl.Prefs;
+import ugh.fileformats.mets.MetsModsImportExport;
+
+/**
+ * Benchmarks for reading and mapping the test fixtures of the ugh-marc module. Each phase of the import is measured separately: XML parsing,
+ * once with the StAX reader and once with the byte scanner and field filter used by the import, docstruct detection, metadata, persons,
+ * corporations and groups, as well as the complete import of a file. The replacement benchmarks apply all configured replacement expressions
+ * to the subfield values of the file, once precompiled and once with <code>String.replaceAll</code>.
+ *
+ * Build the ugh-marc module first (<code>mvn -f UghMarcFileformat/pom.xml install</code>), then run
+ *
+ * <pre>
+ * mvn -f UghMarcBenchmark/pom.xml package
+ * java -jar UghMarcBenchmark/target/benchmarks.jar
+ * </pre>
+ *
+ * from the root of the repository. The main method enables the GC profiler to report the allocation rate. Other JMH options can be used by
+ * running <code>java -cp UghMarcBenchmark/target/benchmarks.jar org.openjdk.jmh.Main</code>. The location of the fixtures can be changed with
+ * the system property <code>marc.fixtures</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarcMappingBenchmark {
+
+    private static final String FIXTURES_PROPERTY = "marc.fixtures";
+    private static final String DEFAULT_FIXTURES = "UghMarcFileformat/resources/test";
+
+    @Param({ "1717559573.xml", "hu/BV047509647.xml" })
+    public String file;
+
+    @Param({ "ruleset.xml", "ruleset_group.xml", "ruleset_subelement_group.xml" })
+    public String ruleset;
+
+    private String filename;
+    private File marcFile;
+    private byte[] content;
+    private MarcFieldFilter fieldFilter;
+    private Prefs prefs;
+    private MarcFileformat fileformat;
+    private MarcRecord marcRecord;
+    private List<MarcDatafield> datafields;
+    private String[] subfieldValues;
+    private ValueReplacement[] replacements;
+    private String[][] replacementExpressions;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        File fixtures = new File(System.getProperty(FIXTURES_PROPERTY, DEFAULT_FIXTURES));
+        marcFile = new File(fixtures, file);
+        filename = marcFile.getPath();
+        content = Files.readAllBytes(marcFile.toPath());
+
+        prefs = new Prefs();
+        if (!prefs.loadPrefs(new File(fixtures, ruleset).getPath())) {
+            throw new IllegalStateException("Can't load ruleset " + ruleset);
+        }
+        fileformat = new MarcFileformat(prefs);
+        fieldFilter = MarcMappingConfiguration.forPrefs(prefs).getFieldFilter();
+        marcRecord = parseXml();
+        datafields = marcRecord.getDatafields();
+
+        List<String> values = new ArrayList<>();
+        for (MarcDatafield datafield : datafields) {
+            for (int i = 0; i < datafield.getSubfieldCount(); i++) {
+                values.add(datafield.getValue(i));
+            }
+        }
+        subfieldValues = values.toArray(new String[0]);
+        Set<String> expressions = new LinkedHashSet<>();
+        for (List<MetadataConfigurationItem> items : List.of(fileformat.metadataList, fileformat.personList, fileformat.corporationList)) {
+            for (MetadataConfigurationItem item : items) {
+                addExpression(expressions, item.getFieldReplacement());
+                addExpression(expressions, item.getIdentifierReplacement());
+            }
+        }
+        replacements = new ValueReplacement[expressions.size()];
+        replacementExpressions = new String[expressions.size()][];
+        int index = 0;
+        for (String expression : expressions) {
+            replacements[index] = ValueReplacement.compile(expression);
+            List<String> parts = MetsModsImportExport.splitRegularExpression(expression);
+            replacementExpressions[index++] = new String[] { parts.get(0), parts.size() > 1 ? parts.get(1) : "" };
+        }
+    }
+
+    private static void addExpression(Set<String> expressions, String expression) {
+        if (expression != null && !expression.isBlank()) {
+            expressions.add(expression);
+        }
+    }
+
+    @Benchmark
+    public MarcRecord parseXml() throws IOException {
+        try (MarcXmlStreamReader reader = new MarcXmlStreamReader(new ByteArrayInputStream(content))) {
+            return reader.nextRecord();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the file like {@link MarcFileformat#read(String)} does, with the byte scanner and the field filter of the configuration
+     */
+    @Benchmark
+    public MarcRecord parseXmlFiltered() throws IOException {
+        try (MarcRecordReader reader = MarcRecordReader.open(marcFile, fieldFilter)) {
+            return reader.nextRecord();
+        }
+    }
+
+    @Benchmark
+    public DocStruct detectDocstruct() {
+        return fileformat.parseDocstruct(marcRecord);
+    }
+
+    @Benchmark
+    public List<Metadata> mapMetadata() {
+        return fileformat.mapMetadata(datafields, fileformat.metadataList);
+    }
+
+    @Benchmark
+    public List<Person> mapPersons() {
+        return fileformat.mapPersons(datafields, fileformat.personList);
+    }
+
+    @Benchmark
+    public List<Corporate> mapCorporations() {
+        return fileformat.mapCorporations(datafields, fileformat.corporationList);
+    }
+
+    @Benchmark
+    public List<MetadataGroup> mapGroups() {
+        return fileformat.parseGroups(datafields);
+    }
+
+    @Benchmark
+    public int applyReplacements() {
+        int length = 0;
+        for (ValueReplacement replacement : replacements) {
+            for (String value : subfieldValues) {
+                length += replacement.apply(value).length();
+            }
+        }
+        return length;
+    }
+
+    @Benchmark
+    public int applyReplacementsWithReplaceAll() {
+        int length = 0;
+        for (String[] expression : replacementExpressions) {
+            for (String value : subfieldValues) {
+                length += value.replaceAll(expression[0], expression[1]).length();
+            }
+        }
+        return length;
+    }
+
+    @Benchmark
+    public DocStruct readFile() throws Exception {
+        MarcFileformat mfc = new MarcFileformat(prefs);
+        mfc.read(filename);
+        return mfc.getDigitalDocument().getLogicalDocStruct();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(MarcMappingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .jvmArgsAppend("-D" + FIXTURES_PROPERTY + "=" + System.getProperty(FIXTURES_PROPERTY, DEFAULT_FIXTURES))
+                .build();
+        new Runner(options).run();
+    }
+}
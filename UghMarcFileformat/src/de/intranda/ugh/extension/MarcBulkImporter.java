@@ -0,0 +1,401 @@
+package de.intranda.ugh.extension;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.xml.stream.XMLStreamException;
+
+import de.intranda.ugh.extension.util.MarcImportInstrumentation;
+import de.intranda.ugh.extension.util.MarcMappingConfiguration;
+import de.intranda.ugh.extension.util.MarcRecord;
+import de.intranda.ugh.extension.util.MarcRecordReader;
+import de.intranda.ugh.extension.util.MarcResultCache;
+import de.intranda.ugh.extension.util.MarcXmlStreamReader;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.DigitalDocument;
+import ugh.dl.Prefs;
+import ugh.exceptions.PreferencesException;
+
+/**
+ * Imports all records of a marc collection, of a directory of marc files or of a SRU response. Each record is mapped into its own
+ * {@link DigitalDocument}.
+ *
+ * The files are read sequentially, the mapping of the records runs in parallel on the configured executor. Only a limited number of records is
+ * read ahead, so arbitrary large collections can be imported. The results are returned as stream, the stream must be closed to release the
+ * files and to cancel pending records:
+ *
+ * <pre>
+ * try (Stream&lt;MarcImportResult&gt; results = new MarcBulkImporter(prefs).importFile(path)) {
+ *     results.forEach(...);
+ * }
+ * </pre>
+ */
+@Log4j2
+public class MarcBulkImporter {
+
+    private final Prefs prefs;
+    private final MarcMappingConfiguration configuration;
+    private final ExecutorService executor;
+
+    /**
+     * if true, the results are returned in the order of the records in the files, otherwise in the order in which the mapping finishes
+     */
+    @Getter
+    @Setter
+    private boolean ordered = true;
+
+    /**
+     * maximum number of records that are read ahead and mapped concurrently
+     */
+    @Getter
+    @Setter
+    private int maxPendingRecords;
+
+    /**
+     * receives the timings of all imported records
+     */
+    @Getter
+    @Setter
+    private MarcImportInstrumentation instrumentation = MarcImportInstrumentation.NOOP;
+
+    /**
+     * mapping results of previously imported records, null to map every record
+     */
+    @Getter
+    @Setter
+    private MarcResultCache resultCache;
+
+    /**
+     * Creates an importer that maps the records on the common {@link ForkJoinPool}
+     * 
+     * @throws PreferencesException if the marc configuration of the ruleset has errors
+     */
+    public MarcBulkImporter(Prefs prefs) throws PreferencesException {
+        this(prefs, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates an importer that maps the records on the given executor. The executor is not shut down by the importer.
+     * 
+     * @throws PreferencesException if the marc configuration of the ruleset has errors
+     */
+    public MarcBulkImporter(Prefs prefs, ExecutorService executor) throws PreferencesException {
+        this.prefs = prefs;
+        this.executor = executor;
+        // refuse to start, instead of failing for each record
+        this.configuration = MarcMappingConfiguration.forImport(prefs);
+        int parallelism = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism() : Runtime.getRuntime().availableProcessors();
+        this.maxPendingRecords = Math.max(1, parallelism) * 4;
+    }
+
+    /**
+     * Imports all records of a MARCXML or binary marc file
+     *
+     * @param file the file
+     * @return the results, one for each record
+     */
+    public Stream<MarcImportResult> importFile(Path file) {
+        return importFiles(Collections.singletonList(file));
+    }
+
+    /**
+     * Imports all MARCXML (<code>*.xml</code>) and binary marc (<code>*.mrc</code>) files in a directory, in the order of their file names
+     *
+     * @param directory the directory
+     * @return the results, one for each record
+     * @throws IOException if the directory can't be read
+     */
+    public Stream<MarcImportResult> importDirectory(Path directory) throws IOException {
+        List<Path> files;
+        try (Stream<Path> content = Files.list(directory)) {
+            files = content.filter(Files::isRegularFile).filter(p -> {
+                String name = p.getFileName().toString().toLowerCase();
+                return name.endsWith(".xml") || name.endsWith(".mrc");
+            }).sorted().collect(Collectors.toList());
+        }
+        return importFiles(files);
+    }
+
+    /**
+     * Imports all records of the given files, the files are read in the given order
+     *
+     * @param files the files
+     * @return the results, one for each record
+     */
+    public Stream<MarcImportResult> importFiles(List<Path> files) {
+        List<RecordSource> sources = new ArrayList<>(files.size());
+        for (Path file : files) {
+            sources.add(new RecordSource(file.toString(), () -> MarcRecordReader.open(file.toFile(), configuration.getFieldFilter())));
+        }
+        return importSources(sources);
+    }
+
+    /**
+     * Imports all records of a SRU <code>searchRetrieveResponse</code>. The response is streamed, only the records inside the
+     * <code>recordData</code> elements are extracted and each record is mapped into its own {@link DigitalDocument}.
+     *
+     * @param response the response, it is closed by the importer after the last record was read
+     * @param source the name of the response used in the results, like the request url
+     * @return the results, one for each record
+     */
+    public Stream<MarcImportResult> importSruResponse(InputStream response, String source) {
+        return importSources(Collections.singletonList(new RecordSource(source, () -> {
+            try {
+                return MarcXmlStreamReader.forSruResponse(response);
+            } catch (XMLStreamException e) {
+                response.close();
+                throw new IOException(e);
+            }
+        })));
+    }
+
+    /**
+     * Imports all records of a SRU <code>searchRetrieveResponse</code> that was saved to a file
+     *
+     * @param file the response
+     * @return the results, one for each record
+     */
+    public Stream<MarcImportResult> importSruResponse(Path file) {
+        return importSources(Collections.singletonList(new RecordSource(file.toString(), () -> {
+            InputStream in = new BufferedInputStream(Files.newInputStream(file));
+            try {
+                return MarcXmlStreamReader.forSruResponse(in);
+            } catch (XMLStreamException e) {
+                in.close();
+                throw new IOException(e);
+            }
+        })));
+    }
+
+    private Stream<MarcImportResult> importSources(List<RecordSource> sources) {
+        ResultIterator iterator = new ResultIterator(sources);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL), false).onClose(iterator::close);
+    }
+
+    private MarcImportResult map(String source, long recordNumber, MarcRecord marcRecord) {
+        String identifier = marcRecord.getControlfield("001");
+        List<String> messages = new ArrayList<>();
+        DigitalDocument digitalDocument = new DigitalDocument();
+        try {
+            // the configuration is shared, so a new instance for each record is cheap
+            MarcFileformat fileformat = new MarcFileformat(prefs, configuration);
+            fileformat.setDigitalDocument(digitalDocument);
+            fileformat.setInstrumentation(instrumentation);
+            fileformat.setResultCache(resultCache);
+            fileformat.read(marcRecord, null);
+            if (digitalDocument.getLogicalDocStruct() == null) {
+                messages.add("No DocStruct found for record");
+            }
+        } catch (RuntimeException e) {
+            log.error("Error mapping record " + recordNumber + " of " + source, e);
+            return new MarcImportResult(source, recordNumber, identifier, null, e, messages);
+        }
+        return new MarcImportResult(source, recordNumber, identifier, digitalDocument, null, messages);
+    }
+
+    /**
+     * Opens a reader for the records of a file or stream
+     */
+    private interface ReaderFactory {
+        MarcRecordReader open() throws IOException;
+    }
+
+    /**
+     * A named source of records, the reader is opened when the first record of the source is needed
+     */
+    private static class RecordSource {
+
+        private final String name;
+        private final ReaderFactory readerFactory;
+
+        private RecordSource(String name, ReaderFactory readerFactory) {
+            this.name = name;
+            this.readerFactory = readerFactory;
+        }
+    }
+
+    /**
+     * Reads the records sequentially and keeps up to maxPendingRecords mapping tasks running
+     */
+    private class ResultIterator implements Iterator<MarcImportResult> {
+
+        private final Iterator<RecordSource> sources;
+        private final int limit = maxPendingRecords;
+
+        // all submitted tasks, in the order of the records
+        private final Deque<Future<MarcImportResult>> pending = new ArrayDeque<>();
+        private final CompletionService<MarcImportResult> completionService;
+        // results that are not produced by a mapping task, like unreadable files, only used for unordered results
+        private final Deque<MarcImportResult> failures = new ArrayDeque<>();
+
+        private MarcRecordReader reader;
+        private String currentSource;
+        private long recordNumber;
+        private boolean closed;
+
+        private ResultIterator(List<RecordSource> sources) {
+            this.sources = sources.iterator();
+            this.completionService = ordered ? null : new ExecutorCompletionService<>(executor);
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return !failures.isEmpty() || !pending.isEmpty();
+        }
+
+        @Override
+        public MarcImportResult next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (!failures.isEmpty()) {
+                return failures.poll();
+            }
+            try {
+                Future<MarcImportResult> future;
+                if (ordered) {
+                    future = pending.poll();
+                } else {
+                    future = completionService.take();
+                    pending.remove(future);
+                }
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException("Import was interrupted", e);
+            } catch (ExecutionException e) {
+                // map() handles all exceptions of the mapping itself
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        /**
+         * Reads records until enough tasks are pending or all files are read
+         */
+        private void fill() {
+            while (!closed && pending.size() < limit) {
+                MarcRecord marcRecord = readNextRecord();
+                if (marcRecord == null) {
+                    return;
+                }
+                String source = currentSource;
+                long number = recordNumber++;
+                Callable<MarcImportResult> task = () -> map(source, number, marcRecord);
+                pending.add(ordered ? executor.submit(task) : completionService.submit(task));
+            }
+        }
+
+        /**
+         * @return the next record of the current or the following sources, null if all sources are read
+         */
+        private MarcRecord readNextRecord() {
+            while (true) {
+                if (reader == null) {
+                    if (!sources.hasNext()) {
+                        return null;
+                    }
+                    RecordSource source = sources.next();
+                    currentSource = source.name;
+                    recordNumber = 0;
+                    try {
+                        reader = source.readerFactory.open();
+                    } catch (IOException e) {
+                        log.error("Can't open " + currentSource, e);
+                        addFailure(new MarcImportResult(currentSource, -1, null, null, e, Collections.emptyList()));
+                        continue;
+                    }
+                }
+                try {
+                    MarcRecord marcRecord = reader.nextRecord();
+                    if (marcRecord != null) {
+                        return marcRecord;
+                    }
+                } catch (IOException e) {
+                    // the rest of the file can't be read, continue with the next file
+                    log.error("Error reading " + currentSource, e);
+                    addFailure(new MarcImportResult(currentSource, recordNumber, null, null, e, Collections.emptyList()));
+                }
+                closeReader();
+            }
+        }
+
+        private void addFailure(MarcImportResult result) {
+            if (ordered) {
+                pending.add(CompletableFuture.completedFuture(result));
+            } else {
+                failures.add(result);
+            }
+        }
+
+        private void closeReader() {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    log.error(e);
+                }
+                reader = null;
+            }
+        }
+
+        private void close() {
+            closed = true;
+            for (Future<MarcImportResult> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            failures.clear();
+            closeReader();
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package de.intranda.ugh.extension;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.Corporate;
+import ugh.dl.DocStruct;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataGroup;
+import ugh.dl.NamePart;
+import ugh.dl.Person;
+import ugh.exceptions.DocStructHasNoTypeException;
+import ugh.exceptions.IncompletePersonObjectException;
+import ugh.exceptions.MetadataTypeNotAllowedException;
+
+/**
+ * The differences between an existing {@link DocStruct} and a freshly mapped record, created by
+ * {@link MarcFileformat#diff(DocStruct, de.intranda.ugh.extension.util.MarcRecord)}.
+ *
+ * Only types that are created by the <code>Marc</code> configuration are compared, metadata added by other means stays untouched. Entries with
+ * the same type and content are unchanged, regardless of their position. The remaining entries of a type are paired in order as changed
+ * entries, surplus entries are added or removed.
+ */
+@Getter
+@Log4j2
+public class MarcChangeSet {
+
+    public enum ChangeType {
+        ADDED,
+        REMOVED,
+        CHANGED
+    }
+
+    private final List<Change<Metadata>> metadataChanges;
+    private final List<Change<Person>> personChanges;
+    private final List<Change<Corporate>> corporateChanges;
+    private final List<Change<MetadataGroup>> groupChanges;
+
+    MarcChangeSet(DocStruct existing, DocStruct mapped, Set<String> mappedTypes) {
+        metadataChanges = compare(filter(existing.getAllMetadata(), mappedTypes), listOf(mapped.getAllMetadata()), MarcChangeSet::key);
+        personChanges = compare(filter(existing.getAllPersons(), mappedTypes), listOf(mapped.getAllPersons()), MarcChangeSet::key);
+        corporateChanges = compare(filter(existing.getAllCorporates(), mappedTypes), listOf(mapped.getAllCorporates()), MarcChangeSet::key);
+        List<MetadataGroup> existingGroups = new ArrayList<>();
+        for (MetadataGroup group : listOf(existing.getAllMetadataGroups())) {
+            if (mappedTypes.contains(group.getType().getName())) {
+                existingGroups.add(group);
+            }
+        }
+        groupChanges = compare(existingGroups, listOf(mapped.getAllMetadataGroups()), MarcChangeSet::key);
+    }
+
+    /**
+     * @return true, if the existing DocStruct already contains the mapped record
+     */
+    public boolean isEmpty() {
+        return metadataChanges.isEmpty() && personChanges.isEmpty() && corporateChanges.isEmpty() && groupChanges.isEmpty();
+    }
+
+    /**
+     * @return the total number of added, removed and changed entries
+     */
+    public int size() {
+        return metadataChanges.size() + personChanges.size() + corporateChanges.size() + groupChanges.size();
+    }
+
+    /**
+     * Applies the changes to the DocStruct the change set was computed for. Changed metadata, persons and corporations are updated in place, so
+     * they keep their position. Changed groups are replaced.
+     *
+     * @param ds the DocStruct
+     */
+    public void apply(DocStruct ds) {
+        for (Change<Metadata> change : metadataChanges) {
+            if (change.getType() == ChangeType.REMOVED) {
+                ds.removeMetadata(change.getOldValue());
+            } else if (change.getType() == ChangeType.CHANGED) {
+                Metadata md = change.getOldValue();
+                md.setValue(change.getNewValue().getValue());
+                copyAuthority(change.getNewValue(), md);
+            } else {
+                try {
+                    ds.addMetadata(change.getNewValue());
+                } catch (MetadataTypeNotAllowedException | DocStructHasNoTypeException e) {
+                    log.warn("Can't add metadata " + change.getNewValue().getType().getName(), e);
+                }
+            }
+        }
+        for (Change<Person> change : personChanges) {
+            if (change.getType() == ChangeType.REMOVED) {
+                try {
+                    ds.removePerson(change.getOldValue());
+                } catch (IncompletePersonObjectException e) {
+                    log.warn("Can't remove person " + change.getOldValue().getType().getName(), e);
+                }
+            } else if (change.getType() == ChangeType.CHANGED) {
+                Person person = change.getOldValue();
+                person.setFirstname(change.getNewValue().getFirstname());
+                person.setLastname(change.getNewValue().getLastname());
+                copyAuthority(change.getNewValue(), person);
+            } else {
+                try {
+                    ds.addPerson(change.getNewValue());
+                } catch (MetadataTypeNotAllowedException | IncompletePersonObjectException e) {
+                    log.warn("Can't add person " + change.getNewValue().getType().getName(), e);
+                }
+            }
+        }
+        for (Change<Corporate> change : corporateChanges) {
+            if (change.getType() == ChangeType.REMOVED) {
+                ds.removeCorporate(change.getOldValue());
+            } else if (change.getType() == ChangeType.CHANGED) {
+                Corporate corporate = change.getOldValue();
+                corporate.setMainName(change.getNewValue().getMainName());
+                corporate.setSubNames(change.getNewValue().getSubNames());
+                corporate.setPartName(change.getNewValue().getPartName());
+                copyAuthority(change.getNewValue(), corporate);
+            } else {
+                try {
+                    ds.addCorporate(change.getNewValue());
+                } catch (MetadataTypeNotAllowedException e) {
+                    log.warn("Can't add corporate " + change.getNewValue().getType().getName(), e);
+                }
+            }
+        }
+        for (Change<MetadataGroup> change : groupChanges) {
+            if (change.getOldValue() != null) {
+                ds.removeMetadataGroup(change.getOldValue());
+            }
+            if (change.getNewValue() != null) {
+                try {
+                    ds.addMetadataGroup(change.getNewValue());
+                } catch (MetadataTypeNotAllowedException e) {
+                    log.warn("Can't add group " + change.getNewValue().getType().getName(), e);
+                }
+            }
+        }
+    }
+
+    private static void copyAuthority(Metadata from, Metadata to) {
+        to.setAuthorityFile(from.getAuthorityID(), from.getAuthorityURI(), from.getAuthorityValue());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendChanges(sb, metadataChanges);
+        appendChanges(sb, personChanges);
+        appendChanges(sb, corporateChanges);
+        appendChanges(sb, groupChanges);
+        return sb.toString();
+    }
+
+    private static <T> void appendChanges(StringBuilder sb, List<Change<T>> changes) {
+        for (Change<T> change : changes) {
+            sb.append(change).append('\n');
+        }
+    }
+
+    /**
+     * Compares the entries of each type. Equal entries are matched first, the remaining ones are paired in order.
+     */
+    private static <T> List<Change<T>> compare(List<T> oldValues, List<T> newValues, Function<T, String> keyOf) {
+        Map<String, List<T>> oldByType = groupByType(oldValues);
+        Map<String, List<T>> newByType = groupByType(newValues);
+        List<Change<T>> changes = new ArrayList<>();
+
+        for (Map.Entry<String, List<T>> entry : oldByType.entrySet()) {
+            List<T> newOfType = newByType.remove(entry.getKey());
+            compareType(entry.getKey(), entry.getValue(), newOfType == null ? Collections.emptyList() : newOfType, keyOf, changes);
+        }
+        for (Map.Entry<String, List<T>> entry : newByType.entrySet()) {
+            compareType(entry.getKey(), Collections.emptyList(), entry.getValue(), keyOf, changes);
+        }
+        return Collections.unmodifiableList(changes);
+    }
+
+    private static <T> void compareType(String type, List<T> oldValues, List<T> newValues, Function<T, String> keyOf, List<Change<T>> changes) {
+        Map<String, Deque<Integer>> newByKey = new HashMap<>();
+        for (int i = 0; i < newValues.size(); i++) {
+            newByKey.computeIfAbsent(keyOf.apply(newValues.get(i)), k -> new ArrayDeque<>()).add(i);
+        }
+        boolean[] newMatched = new boolean[newValues.size()];
+        List<T> unmatchedOld = new ArrayList<>();
+        for (T oldValue : oldValues) {
+            Deque<Integer> candidates = newByKey.get(keyOf.apply(oldValue));
+            if (candidates != null && !candidates.isEmpty()) {
+                newMatched[candidates.poll()] = true;
+            } else {
+                unmatchedOld.add(oldValue);
+            }
+        }
+        List<T> unmatchedNew = new ArrayList<>();
+        for (int i = 0; i < newValues.size(); i++) {
+            if (!newMatched[i]) {
+                unmatchedNew.add(newValues.get(i));
+            }
+        }
+
+        int paired = Math.min(unmatchedOld.size(), unmatchedNew.size());
+        for (int i = 0; i < paired; i++) {
+            changes.add(new Change<>(ChangeType.CHANGED, type, unmatchedOld.get(i), unmatchedNew.get(i)));
+        }
+        for (int i = paired; i < unmatchedOld.size(); i++) {
+            changes.add(new Change<>(ChangeType.REMOVED, type, unmatchedOld.get(i), null));
+        }
+        for (int i = paired; i < unmatchedNew.size(); i++) {
+            changes.add(new Change<>(ChangeType.ADDED, type, null, unmatchedNew.get(i)));
+        }
+    }
+
+    private static <T> Map<String, List<T>> groupByType(List<T> values) {
+        Map<String, List<T>> result = new LinkedHashMap<>();
+        for (T value : values) {
+            String type = value instanceof MetadataGroup ? ((MetadataGroup) value).getType().getName() : ((Metadata) value).getType().getName();
+            result.computeIfAbsent(type, k -> new ArrayList<>()).add(value);
+        }
+        return result;
+    }
+
+    private static <T extends Metadata> List<T> filter(List<T> values, Set<String> types) {
+        List<T> result = new ArrayList<>();
+        for (T value : listOf(values)) {
+            if (types.contains(value.getType().getName())) {
+                result.add(value);
+            }
+        }
+        return result;
+    }
+
+    private static <T> List<T> listOf(List<T> values) {
+        // DocStruct returns null instead of empty lists
+        return values == null ? Collections.emptyList() : values;
+    }
+
+    private static String key(Metadata md) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(md.getValue()).append('\u0000');
+        sb.append(md.getAuthorityID()).append('\u0000').append(md.getAuthorityURI()).append('\u0000').append(md.getAuthorityValue());
+        return sb.toString();
+    }
+
+    private static String key(Person person) {
+        return person.getFirstname() + '\u0000' + person.getLastname() + '\u0000' + key((Metadata) person);
+    }
+
+    private static String key(Corporate corporate) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(corporate.getMainName()).append('\u0000').append(corporate.getPartName());
+        if (corporate.getSubNames() != null) {
+            for (NamePart subName : corporate.getSubNames()) {
+                sb.append('\u0000').append(subName.getType()).append('=').append(subName.getValue());
+            }
+        }
+        sb.append('\u0000').append(key((Metadata) corporate));
+        return sb.toString();
+    }
+
+    private static String key(MetadataGroup group) {
+        StringBuilder sb = new StringBuilder();
+        for (Metadata md : listOf(group.getMetadataList())) {
+            sb.append("\u0001M").append(md.getType().getName()).append('\u0000').append(key(md));
+        }
+        for (Person person : listOf(group.getPersonList())) {
+            sb.append("\u0001P").append(person.getType().getName()).append('\u0000').append(key(person));
+        }
+        for (Corporate corporate : listOf(group.getCorporateList())) {
+            sb.append("\u0001C").append(corporate.getType().getName()).append('\u0000').append(key(corporate));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A single added, removed or changed entry
+     *
+     * @param <T> Metadata, Person, Corporate or MetadataGroup
+     */
+    public static final class Change<T> {
+
+        private final ChangeType type;
+        private final String typeName;
+        private final T oldValue;
+        private final T newValue;
+
+        private Change(ChangeType type, String typeName, T oldValue, T newValue) {
+            this.type = type;
+            this.typeName = typeName;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        public ChangeType getType() {
+            return type;
+        }
+
+        /**
+         * @return the name of the metadata or group type
+         */
+        public String getTypeName() {
+            return typeName;
+        }
+
+        /**
+         * @return the entry of the existing DocStruct, null for added entries
+         */
+        public T getOldValue() {
+            return oldValue;
+        }
+
+        /**
+         * @return the mapped entry, null for removed entries
+         */
+        public T getNewValue() {
+            return newValue;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + typeName;
+        }
+    }
+}
@@ -23,30 +23,46 @@ package de.intranda.ugh.extension;
  * 
  * This copyright notice MUST APPEAR in all copies of this file!
  ******************************************************************************/
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.lang3.StringUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import de.intranda.ugh.extension.util.DocstructConfigurationItem;
 import de.intranda.ugh.extension.util.GroupConfigurationItem;
+import de.intranda.ugh.extension.util.MappedRecord;
+import de.intranda.ugh.extension.util.MappingPlan;
+import de.intranda.ugh.extension.util.MappingPlan.FieldMatch;
+import de.intranda.ugh.extension.util.MappingPlan.RecordMatches;
+import de.intranda.ugh.extension.util.MarcDatafield;
 import de.intranda.ugh.extension.util.MarcField;
+import de.intranda.ugh.extension.util.MarcImportInstrumentation;
+import de.intranda.ugh.extension.util.MarcImportInstrumentation.Phase;
+import de.intranda.ugh.extension.util.MarcMappingConfiguration;
+import de.intranda.ugh.extension.util.MarcRecord;
+import de.intranda.ugh.extension.util.MarcRecordExporter;
+import de.intranda.ugh.extension.util.MarcRecordReader;
+import de.intranda.ugh.extension.util.MarcResultCache;
+import de.intranda.ugh.extension.util.MarcXmlStreamWriter;
 import de.intranda.ugh.extension.util.MetadataConfigurationItem;
+import de.intranda.ugh.extension.util.SubfieldCodes;
 import de.intranda.ugh.extension.util.SubfieldGroupConfigurationItem;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.log4j.Log4j2;
 import ugh.dl.Corporate;
 import ugh.dl.DigitalDocument;
@@ -66,7 +82,6 @@ import ugh.exceptions.ReadException;
 import ugh.exceptions.TypeNotAllowedAsChildException;
 import ugh.exceptions.TypeNotAllowedForParentException;
 import ugh.exceptions.WriteException;
-import ugh.fileformats.mets.MetsModsImportExport;
 
 @Log4j2
 public class MarcFileformat implements Fileformat {
@@ -78,7 +93,7 @@ public class MarcFileformat implements Fileformat {
 
     public static final String PREFS_MARC_GROUP_NAME = "Group";
 
-    protected static final String MARC_PREFS_NODE_NAME_STRING = "Marc";
+    public static final String MARC_PREFS_NODE_NAME_STRING = "Marc";
     protected static final String MARC_PREFS_NODE_COLLECTION_STRING = "collection";
     protected static final String MARC_PREFS_NODE_RECORDDATA_STRING = "recordData";
     protected static final String MARC_PREFS_NODE_RECORD_STRING = "record";
@@ -114,56 +129,53 @@ public class MarcFileformat implements Fileformat {
     private Prefs prefs;
     private DigitalDocument digDoc = new DigitalDocument();
 
-    protected List<MetadataConfigurationItem> metadataList = new LinkedList<>();
-    protected List<MetadataConfigurationItem> personList = new LinkedList<>();
-    protected List<MetadataConfigurationItem> corporationList = new LinkedList<>();
-    private List<DocstructConfigurationItem> docstructList = new LinkedList<>();
+    // compiled and immutable, shared with all other instances using the same ruleset
+    private MarcMappingConfiguration configuration;
+
+    protected List<MetadataConfigurationItem> metadataList;
+    protected List<MetadataConfigurationItem> personList;
+    protected List<MetadataConfigurationItem> corporationList;
+
+    // receives the timings of each phase and rule, nothing is measured if it is disabled
+    @Getter
+    @Setter
+    private MarcImportInstrumentation instrumentation = MarcImportInstrumentation.NOOP;
+
+    // maps the records of a collection in parallel, the records are linked in document order afterwards
+    @Getter
+    @Setter
+    private Executor executor = ForkJoinPool.commonPool();
 
-    private List<GroupConfigurationItem> groupList = new LinkedList<>();
-    private List<SubfieldGroupConfigurationItem> subfieldGroupList = new LinkedList<>();
+    // mapping results of previously imported records, null to map every record
+    @Getter
+    @Setter
+    private MarcResultCache resultCache;
 
     public MarcFileformat(Prefs prefs) {
-        this.prefs = prefs;
-        Node marcNode = this.prefs.getPreferenceNode(MARC_PREFS_NODE_NAME_STRING);
-        if (marcNode == null) {
-            log.error("Can't read preferences for marcxml fileformat! Node 'Marc' in XML-file not found!");
-        } else {
-            this.readPrefs(marcNode);
-        }
+        this(prefs, MarcMappingConfiguration.forPrefs(prefs));
+    }
 
+    /**
+     * Creates a new instance using an already compiled configuration. Creating an instance is cheap, so a new instance can be used for each
+     * record.
+     * 
+     * @param prefs the ruleset
+     * @param configuration the compiled marc configuration of the ruleset
+     */
+    public MarcFileformat(Prefs prefs, MarcMappingConfiguration configuration) {
+        this.prefs = prefs;
+        setConfiguration(configuration);
     }
 
-    private void readPrefs(Node marcNode) {
-
-        NodeList children = marcNode.getChildNodes();
-
-        for (int i = 0; i < children.getLength(); i++) {
-
-            Node n = children.item(i);
-
-            if (n.getNodeType() == Node.ELEMENT_NODE) {
-                if (PREFS_MARC_METADATA_NAME.equalsIgnoreCase(n.getNodeName())) {
-                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n);
-                    metadataList.add(metadata);
-                } else if (PREFS_MARC_PERSON_NAME.equalsIgnoreCase(n.getNodeName())) {
-                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n);
-                    personList.add(metadata);
-                } else if (PREFS_MARC_DOCTSRUCT_NAME.equalsIgnoreCase(n.getNodeName())) {
-                    DocstructConfigurationItem docstruct = new DocstructConfigurationItem(n);
-                    docstructList.add(docstruct);
-                } else if (PREFS_MARC_GROUP_NAME.equalsIgnoreCase(n.getNodeName())) {
-                    GroupConfigurationItem item = new GroupConfigurationItem(n);
-                    groupList.add(item);
-                } else if (PREFS_MARC_CORPORATE_NAME.equalsIgnoreCase(n.getNodeName())) {
-                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n);
-                    corporationList.add(metadata);
-                } else if ("SubfieldGroup".equalsIgnoreCase(n.getNodeName())) {
-                    SubfieldGroupConfigurationItem item = new SubfieldGroupConfigurationItem(n);
-                    subfieldGroupList.add(item);
-                }
+    private void setConfiguration(MarcMappingConfiguration configuration) {
+        this.configuration = configuration;
+        this.metadataList = configuration.getMetadataList();
+        this.personList = configuration.getPersonList();
+        this.corporationList = configuration.getCorporationList();
+    }
 
-            }
-        }
+    private MappingPlan getMappingPlan(List<MetadataConfigurationItem> configurationItems) {
+        return configuration.getMappingPlan(configurationItems);
     }
 
     public static String readTextNode(Node inNode) {
@@ -205,7 +217,8 @@ public class MarcFileformat implements Fileformat {
                 }
                 if (MARC_PREFS_NODE_COLLECTION_STRING.equals(nodename)) {
 
-                    // Iterate over all results.
+                    // Iterate over all results. The DOM is not thread safe, so the records are extracted first.
+                    List<MarcRecord> records = new ArrayList<>();
                     NodeList marcrecords = ppr.getChildNodes();
                     for (int x = 0; x < marcrecords.getLength(); x++) {
                         Node n = marcrecords.item(x);
@@ -216,24 +229,18 @@ public class MarcFileformat implements Fileformat {
                                 nodename = nodename.substring(nodename.indexOf(":") + 1);
                             }
                             if (MARC_PREFS_NODE_RECORD_STRING.equals(nodename)) {
-                                // Parse a single picaplus record.
-                                ds = parseMarcRecord(n, readAsDocStrct);
-                                // It's the first one, so this becomes the
-                                // toplogical structural entity.
-                                if (ds != null) {
-                                    if (dsOld == null) {
-                                        this.digDoc.setLogicalDocStruct(ds);
-                                    } else {
-                                        dsOld.addChild(ds);
-                                    }
-                                    dsOld = ds;
-                                    ds = null;
-                                }
+                                records.add(MarcRecord.fromNode(n));
                             }
                         }
                     }
+
+                    // link the records in document order
+                    for (DocStruct parsed : parseMarcRecords(records, readAsDocStrct)) {
+                        ds = parsed;
+                        dsOld = addDocStruct(ds, dsOld);
+                    }
                 } else if (MARC_PREFS_NODE_RECORD_STRING.equals(nodename)) {
-                    ds = parseMarcRecord(ppr, readAsDocStrct);
+                    ds = parseMarcRecord(MarcRecord.fromNode(ppr), readAsDocStrct);
                     if (ds != null) {
                         this.digDoc.setLogicalDocStruct(ds);
                     }
@@ -248,33 +255,118 @@ public class MarcFileformat implements Fileformat {
         return true;
     }
 
-    private DocStruct parseMarcRecord(Node inNode, DocStruct docStruct) {
+    /**
+     * Reads a single marc record, that was already extracted from its source.
+     * 
+     * @param marcRecord the record
+     * @param readAsDocStrct the DocStruct to use, if null the type gets detected from leader and controlfields
+     * @return true
+     */
+    public boolean read(MarcRecord marcRecord, DocStruct readAsDocStrct) {
+        log.info("Parsing marc record");
+        DocStruct ds = parseMarcRecord(marcRecord, readAsDocStrct);
+        if (ds != null) {
+            this.digDoc.setLogicalDocStruct(ds);
+        }
+        return true;
+    }
 
-        DocStruct ds = docStruct;
+    /**
+     * Maps a record and compares the result with an existing DocStruct, for example to refresh a record from the catalogue. Only metadata,
+     * persons, corporations and groups of the types created by the configuration are compared.
+     * 
+     * @param existing the DocStruct created by an earlier import of the record
+     * @param marcRecord the current version of the record
+     * @return the changes, use {@link MarcChangeSet#apply(DocStruct)} to update the existing DocStruct
+     * @throws TypeNotAllowedForParentException if no DocStruct of the type of the existing DocStruct can be created
+     */
+    public MarcChangeSet diff(DocStruct existing, MarcRecord marcRecord) throws TypeNotAllowedForParentException {
+        DocStruct mapped = parseMarcRecord(marcRecord, digDoc.createDocStruct(existing.getType()));
+        return new MarcChangeSet(existing, mapped, configuration.getMappedTypeNames());
+    }
 
-        // Get all subfields.
-        NodeList nl = inNode.getChildNodes();
-        List<Node> controlfields = new ArrayList<>();
-        List<Node> datafields = new ArrayList<>();
-        Node leader = null;
-        for (int i = 0; i < nl.getLength(); i++) {
-            Node n = nl.item(i);
-            if (n.getNodeType() == Node.ELEMENT_NODE) {
-                String nodename = n.getNodeName();
-                if (nodename.contains(":")) {
-                    nodename = nodename.substring(nodename.indexOf(":") + 1);
-                }
-                if ("leader".equalsIgnoreCase(nodename)) {
-                    leader = n;
-                } else if ("controlfield".equalsIgnoreCase(nodename)) {
-                    controlfields.add(n);
-                } else if ("datafield".equalsIgnoreCase(nodename)) {
-                    datafields.add(n);
+    /**
+     * Updates an existing DocStruct in place with the current version of its record
+     * 
+     * @param existing the DocStruct created by an earlier import of the record
+     * @param marcRecord the current version of the record
+     * @return the applied changes
+     * @throws TypeNotAllowedForParentException if no DocStruct of the type of the existing DocStruct can be created
+     */
+    public MarcChangeSet update(DocStruct existing, MarcRecord marcRecord) throws TypeNotAllowedForParentException {
+        MarcChangeSet changes = diff(existing, marcRecord);
+        changes.apply(existing);
+        return changes;
+    }
+
+    /**
+     * Adds a parsed record to the digital document. The first record becomes the topological structural entity, every other record is added as
+     * child of the previous one.
+     * 
+     * @param ds the parsed record, can be null
+     * @param dsOld the previously added record or null, if this is the first record
+     * @return the last added record
+     * @throws TypeNotAllowedAsChildException
+     */
+    private DocStruct addDocStruct(DocStruct ds, DocStruct dsOld) throws TypeNotAllowedAsChildException {
+        if (ds == null) {
+            return dsOld;
+        }
+        if (dsOld == null) {
+            this.digDoc.setLogicalDocStruct(ds);
+        } else {
+            dsOld.addChild(ds);
+        }
+        return ds;
+    }
+
+    /**
+     * Maps the records of a collection. Each record gets its own {@link DocStruct}, so the records are mapped in parallel on the configured
+     * executor. If a DocStruct to use is given, all records are added to the same instance and are mapped one after another.
+     * 
+     * @param records the records
+     * @param readAsDocStrct the DocStruct to use, if null the type gets detected from leader and controlfields
+     * @return the parsed records in the order of the given records, null for records without a detected DocStruct
+     */
+    private List<DocStruct> parseMarcRecords(List<MarcRecord> records, DocStruct readAsDocStrct) {
+        List<DocStruct> result = new ArrayList<>(records.size());
+        if (records.size() < 2 || readAsDocStrct != null) {
+            for (MarcRecord marcRecord : records) {
+                result.add(parseMarcRecord(marcRecord, readAsDocStrct));
+            }
+            return result;
+        }
+
+        List<CompletableFuture<DocStruct>> futures = new ArrayList<>(records.size());
+        for (MarcRecord marcRecord : records) {
+            futures.add(CompletableFuture.supplyAsync(() -> parseMarcRecord(marcRecord, null), executor));
+        }
+        for (CompletableFuture<DocStruct> future : futures) {
+            try {
+                result.add(future.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
                 }
+                throw e;
             }
         }
+        return result;
+    }
+
+    private DocStruct parseMarcRecord(MarcRecord marcRecord, DocStruct docStruct) {
+
+        DocStruct ds = docStruct;
+        List<MarcDatafield> datafields = marcRecord.getDatafields();
+
+        boolean timed = instrumentation.isEnabled();
+        long start = timed ? System.nanoTime() : 0;
+
         if (ds == null) {
-            ds = parseDocstruct(leader, controlfields);
+            ds = parseDocstruct(marcRecord);
+            if (timed) {
+                start = phaseCompleted(Phase.DOCSTRUCT, start, ds == null ? 0 : 1);
+            }
         }
 
         if (ds == null) {
@@ -284,14 +376,58 @@ public class MarcFileformat implements Fileformat {
             return null;
         }
 
-        List<Metadata> metadata = parseMetadata(datafields, metadataList);
-        List<Person> allPer = parsePersons(datafields, personList);
+        String cacheKey = null;
+        if (resultCache != null) {
+            cacheKey = MarcResultCache.computeKey(marcRecord, configuration);
+            MappedRecord cached = resultCache.get(cacheKey);
+            if (cached != null) {
+                try {
+                    return addMappedValues(ds, cached.createMetadata(prefs), cached.createPersons(prefs), cached.createCorporations(prefs),
+                            cached.createGroups(prefs));
+                } catch (MetadataTypeNotAllowedException e) {
+                    // the entry doesn't fit the types of the ruleset, map the record again
+                    log.warn("Ignoring cached result: " + e.getMessage());
+                }
+            }
+        }
+        MappedRecord.Builder mappedRecord = cacheKey == null ? null : new MappedRecord.Builder();
+
+        // a single pass over the datafields for the top level configuration and all groups
+        RecordMatches recordMatches = configuration.getRecordPlan().dispatchRecord(datafields);
+
+        List<Metadata> metadata = mapMetadata(recordMatches, metadataList);
+        if (timed) {
+            start = phaseCompleted(Phase.METADATA, start, metadata.size());
+        }
+        List<Person> allPer = mapPersons(recordMatches, personList);
+        if (timed) {
+            start = phaseCompleted(Phase.PERSONS, start, allPer.size());
+        }
 
-        List<Corporate> allCorp = parseCorporations(datafields, corporationList);
+        List<Corporate> allCorp = mapCorporations(recordMatches, corporationList);
+        if (timed) {
+            start = phaseCompleted(Phase.CORPORATIONS, start, allCorp.size());
+        }
 
         // Contains all metadata groups.
-        List<MetadataGroup> allGroups = parseGroups(datafields);
+        List<MetadataGroup> allGroups = parseGroups(datafields, recordMatches, mappedRecord);
+        if (timed) {
+            phaseCompleted(Phase.GROUPS, start, allGroups.size());
+        }
 
+        if (mappedRecord != null) {
+            resultCache.put(cacheKey, mappedRecord.addMetadata(metadata).addPersons(allPer).addCorporations(allCorp).build());
+        }
+        return addMappedValues(ds, metadata, allPer, allCorp, allGroups);
+    }
+
+    /**
+     * Adds the mapped metadata, persons, corporations and groups to the DocStruct of the record
+     * 
+     * @return the DocStruct
+     */
+    private DocStruct addMappedValues(DocStruct ds, List<Metadata> metadata, List<Person> allPer, List<Corporate> allCorp,
+            List<MetadataGroup> allGroups) {
         // Add metadata to DocStruct.
         if (metadata != null) {
             for (Metadata md2 : metadata) {
@@ -346,127 +482,162 @@ public class MarcFileformat implements Fileformat {
         return ds;
     }
 
+    /**
+     * Reports a finished phase to the instrumentation
+     * 
+     * @return the end of the phase, to be used as start of the next phase
+     */
+    private long phaseCompleted(Phase phase, long start, int createdCount) {
+        long end = System.nanoTime();
+        instrumentation.phaseCompleted(phase, end - start, createdCount);
+        return end;
+    }
+
+    /**
+     * Reads the next record and reports the time needed to parse it
+     */
+    private MarcRecord nextRecord(MarcRecordReader reader) throws IOException {
+        if (!instrumentation.isEnabled()) {
+            return reader.nextRecord();
+        }
+        long start = System.nanoTime();
+        MarcRecord marcRecord = reader.nextRecord();
+        phaseCompleted(Phase.PARSE, start, marcRecord == null ? 0 : 1);
+        return marcRecord;
+    }
+
     /**
      * 
      * @param datafields
      * @return
      */
-    private List<MetadataGroup> parseGroups(List<Node> datafields) {
-        List<MetadataGroup> groups = new ArrayList<>(groupList.size());
-        for (GroupConfigurationItem gci : groupList) {
+    List<MetadataGroup> parseGroups(List<MarcDatafield> datafields) {
+        return parseGroups(datafields, configuration.getRecordPlan().dispatchRecord(datafields), null);
+    }
+
+    /**
+     * Creates the configured groups from an already dispatched record
+     * 
+     * @param datafields all datafields of the record, used for the subfield groups
+     * @param recordMatches the result of the record plan of the configuration
+     * @param mappedRecord receives each created group with its accepted members, can be null
+     * @return the groups
+     */
+    private List<MetadataGroup> parseGroups(List<MarcDatafield> datafields, RecordMatches recordMatches, MappedRecord.Builder mappedRecord) {
+        List<MetadataGroup> groups = new ArrayList<>(configuration.getGroupList().size());
+        for (GroupConfigurationItem gci : configuration.getGroupList()) {
             List<Metadata> mList = new ArrayList<>();
             List<Person> pList = new ArrayList<>();
             List<Corporate> cList = new ArrayList<>();
 
             if (!gci.getMetadataList().isEmpty()) {
-                mList = parseMetadata(datafields, gci.getMetadataList());
+                mList = mapMetadata(recordMatches, gci.getMetadataList());
             }
             if (!gci.getPersonList().isEmpty()) {
-                pList = parsePersons(datafields, gci.getPersonList());
+                pList = mapPersons(recordMatches, gci.getPersonList());
             }
             if (!gci.getCorporationList().isEmpty()) {
-                cList = parseCorporations(datafields, gci.getCorporationList());
+                cList = mapCorporations(recordMatches, gci.getCorporationList());
             }
 
-            if (mList.isEmpty() && pList.isEmpty() && cList.isEmpty()) {
+            // unknown group types are reported once, when the configuration is compiled
+            if (gci.getGroupType() == null || (mList.isEmpty() && pList.isEmpty() && cList.isEmpty())) {
                 continue;
             }
 
             MetadataGroup mg = null;
             try {
-                mg = new MetadataGroup(prefs.getMetadataGroupTypeByName(gci.getGroupName()));
+                mg = new MetadataGroup(gci.getGroupType());
             } catch (MetadataTypeNotAllowedException e) {
                 log.error(e);
+                continue;
             }
-            if (mg != null) {
-                for (Metadata md : mList) {
-                    try {
-                        mg.addMetadata(md);
-                    } catch (MetadataTypeNotAllowedException e) {
-                        log.info(e);
-                    }
+            List<Metadata> addedMetadata = new ArrayList<>(mList.size());
+            for (Metadata md : mList) {
+                try {
+                    mg.addMetadata(md);
+                    addedMetadata.add(md);
+                } catch (MetadataTypeNotAllowedException e) {
+                    log.info(e);
                 }
             }
+            List<Person> addedPersons = new ArrayList<>(pList.size());
             for (Person p : pList) {
                 try {
                     mg.addPerson(p);
+                    addedPersons.add(p);
                 } catch (MetadataTypeNotAllowedException e) {
                     log.info(e);
                 }
             }
+            List<Corporate> addedCorporations = new ArrayList<>(cList.size());
             for (Corporate c : cList) {
                 try {
                     mg.addCorporate(c);
+                    addedCorporations.add(c);
                 } catch (MetadataTypeNotAllowedException e) {
                     log.info(e);
                 }
             }
             groups.add(mg);
+            if (mappedRecord != null) {
+                mappedRecord.addGroup(gci.getGroupType(), addedMetadata, addedPersons, addedCorporations);
+            }
 
         }
 
-        groups.addAll(parseSubfieldGroups(datafields));
+        groups.addAll(parseSubfieldGroups(datafields, mappedRecord));
 
         return groups;
     }
 
-    private List<MetadataGroup> parseSubfieldGroups(List<Node> datafields) {
+    private List<MetadataGroup> parseSubfieldGroups(List<MarcDatafield> datafields, MappedRecord.Builder mappedRecord) {
         List<MetadataGroup> groups = new ArrayList<>();
+        if (configuration.getSubfieldGroupList().isEmpty()) {
+            return groups;
+        }
 
-        for (SubfieldGroupConfigurationItem item : subfieldGroupList) {
+        // bucket the datafields by tag once, instead of scanning all datafields for each group
+        Map<String, List<MarcDatafield>> fieldsByTag = new HashMap<>();
+        for (MarcDatafield datafield : datafields) {
+            if (configuration.isSubfieldGroupTag(datafield.getTag())) {
+                fieldsByTag.computeIfAbsent(datafield.getTag(), k -> new ArrayList<>()).add(datafield);
+            }
+        }
 
-            // find all matching datafields
-            List<Node> matchingNodes = new ArrayList<>();
-            for (Node node : datafields) {
-                NamedNodeMap nnm = node.getAttributes();
-                Node tagNode = nnm.getNamedItem("tag");
-                Node ind1Node = nnm.getNamedItem("ind1");
-                Node ind2Node = nnm.getNamedItem("ind2");
-                String ind1Value = ind1Node.getNodeValue().trim();
-                String ind2Value = ind2Node.getNodeValue().trim();
+        for (SubfieldGroupConfigurationItem item : configuration.getSubfieldGroupList()) {
+            List<MarcDatafield> candidates = fieldsByTag.get(item.getFieldMainTag());
+            if (item.getGroupType() == null || candidates == null) {
+                continue;
+            }
+            MappingPlan plan = configuration.getSubfieldGroupPlan(item);
 
-                if (!item.getFieldMainTag().equals(tagNode.getNodeValue())) {
-                    continue;
-                }
-                boolean matchesInd1 = false;
-                boolean matchesInd2 = false;
-                if ("any".equals(item.getFieldInd1()) || item.getFieldInd1().trim().equals(ind1Value)) {
-                    matchesInd1 = true;
-                }
-                if ("any".equals(item.getFieldInd2()) || item.getFieldInd2().trim().equals(ind2Value)) {
-                    matchesInd2 = true;
-                }
-                if (!matchesInd1 || !matchesInd2) {
+            for (MarcDatafield datafield : candidates) {
+                if (!item.matchesIndicators(datafield.getInd1(), datafield.getInd2())) {
                     continue;
                 }
-                matchingNodes.add(node);
 
-            }
-            // for each found datafield
-
-            for (Node node : matchingNodes) {
-                // check if subfields contain data
-
-                List<Node> nodeList = List.of(node);
+                // all members are configured for the tag and indicators of the group, so the datafield belongs to each of them
+                RecordMatches recordMatches = plan.assignToAll(datafield);
 
                 List<Metadata> mList = new ArrayList<>();
                 List<Person> pList = new ArrayList<>();
                 List<Corporate> cList = new ArrayList<>();
 
                 if (!item.getMetadataList().isEmpty()) {
-                    mList = parseMetadata(nodeList, item.getMetadataList());
+                    mList = mapMetadata(recordMatches, item.getMetadataList());
                 }
                 if (!item.getPersonList().isEmpty()) {
-                    pList = parsePersons(nodeList, item.getPersonList());
+                    pList = mapPersons(recordMatches, item.getPersonList());
                 }
                 if (!item.getCorporationList().isEmpty()) {
-                    cList = parseCorporations(nodeList, item.getCorporationList());
+                    cList = mapCorporations(recordMatches, item.getCorporationList());
                 }
 
                 if (!mList.isEmpty() || !pList.isEmpty() || !cList.isEmpty()) {
-                    // if yes, create group
+                    // create the group, if any member found data
                     try {
-                        MetadataGroup mg = new MetadataGroup(prefs.getMetadataGroupTypeByName(item.getGroupName()));
+                        MetadataGroup mg = new MetadataGroup(item.getGroupType());
                         for (Metadata md : mList) {
                             mg.addMetadata(md);
                         }
@@ -478,6 +649,9 @@ public class MarcFileformat implements Fileformat {
                         }
 
                         groups.add(mg);
+                        if (mappedRecord != null) {
+                            mappedRecord.addGroup(item.getGroupType(), mList, pList, cList);
+                        }
                     } catch (MetadataTypeNotAllowedException e) {
                         log.error(e);
                     }
@@ -492,64 +666,47 @@ public class MarcFileformat implements Fileformat {
     }
 
     List<Corporate> parseCorporations(List<Node> datafields, List<MetadataConfigurationItem> corporationList) {
+        return mapCorporations(MarcDatafield.fromNodes(datafields), corporationList);
+    }
+
+    List<Corporate> mapCorporations(List<MarcDatafield> datafields, List<MetadataConfigurationItem> corporationList) {
+        return mapCorporations(getMappingPlan(corporationList).dispatchRecord(datafields), corporationList);
+    }
+
+    private List<Corporate> mapCorporations(RecordMatches recordMatches, List<MetadataConfigurationItem> corporationList) {
         List<Corporate> corporations = new ArrayList<>();
+        List<List<FieldMatch>> fieldMatches = recordMatches.get(corporationList);
 
-        for (MetadataConfigurationItem mmi : corporationList) {
+        boolean timed = instrumentation.isEnabled();
+        for (int itemIndex = 0; itemIndex < corporationList.size(); itemIndex++) {
+            MetadataConfigurationItem mmi = corporationList.get(itemIndex);
+            long ruleStart = timed ? System.nanoTime() : 0;
+            int createdBefore = corporations.size();
             String singleMainName = null;
             List<NamePart> singleSubNames = new ArrayList<>();
             String singlePartName = null;
-            String singleIdentifier = null;
+            String singleIdentifier = "";
 
-            for (Node node : datafields) {
-                NamedNodeMap nnm = node.getAttributes();
-                Node tagNode = nnm.getNamedItem("tag");
-                Node ind1Node = nnm.getNamedItem("ind1");
-                Node ind2Node = nnm.getNamedItem("ind2");
-                String ind1Value = ind1Node.getNodeValue().trim();
-                String ind2Value = ind2Node.getNodeValue().trim();
+            // Only the datafields matching the main tag and indicators of the configured fields
+            for (FieldMatch fieldMatch : fieldMatches.get(itemIndex)) {
+                MarcDatafield datafield = fieldMatch.getDatafield();
 
                 Boolean matches = null;
 
-                // Match main tag in the config
-                for (MarcField mf : mmi.getFieldList()) {
-                    if (!mf.getFieldMainTag().equals(tagNode.getNodeValue())) {
-                        continue;
-                    }
-
-                    boolean matchesInd1 = false;
-                    boolean matchesInd2 = false;
-                    if ("any".equals(mf.getFieldInd1()) || mf.getFieldInd1().trim().equals(ind1Value)) {
-                        matchesInd1 = true;
-                    }
-                    if ("any".equals(mf.getFieldInd2()) || mf.getFieldInd2().trim().equals(ind2Value)) {
-                        matchesInd2 = true;
-                    }
-                    if (!matchesInd1 || !matchesInd2) {
-                        continue;
-                    }
-
+                for (MarcField mf : fieldMatch.getFields()) {
+                    MarcField.Codes codes = mf.getCodes();
                     String currentIdentifier = "";
                     String currentMainName = "";
                     List<NamePart> currentSubNames = new ArrayList<>();
                     String currentPartName = "";
 
-                    NodeList subfieldList = node.getChildNodes();
-                    for (int i = 0; i < subfieldList.getLength(); i++) {
-                        Node subfield = subfieldList.item(i);
-                        if (subfield.getNodeType() != Node.ELEMENT_NODE) {
-                            continue;
-                        }
-
-                        NamedNodeMap attributes = subfield.getAttributes();
-                        Node code = attributes.getNamedItem("code");
+                    for (int i = 0; i < datafield.getSubfieldCount(); i++) {
+                        String code = datafield.getCode(i);
+                        String value = datafield.getValue(i);
 
                         // Skip values that don't match the field condition
-                        if (StringUtils.isNotBlank(mmi.getConditionField()) && StringUtils.isNotBlank(mmi.getConditionValue())
-                                && mmi.getConditionField().equals(code.getNodeValue())) {
-                            String valueToCheck = readTextNode(subfield);
-                            Pattern pattern = Pattern.compile(MetsModsImportExport.splitRegularExpression(mmi.getConditionValue()).get(0));
-                            if (!pattern.matcher(valueToCheck).find()
-                                    && !("/empty/".equals(mmi.getConditionValue()) && StringUtils.isBlank(valueToCheck))) {
+                        if (mmi.getConditionCodes().contains(code)) {
+                            if (!mmi.acceptsConditionValue(value)) {
                                 if (matches == null) {
                                     // Only set matches = false if not previously set to true by a matching subfield
                                     matches = false;
@@ -560,68 +717,42 @@ public class MarcFileformat implements Fileformat {
                         }
 
                         // Identifier
-                        if (StringUtils.isNotBlank(mmi.getIdentifierField()) && mmi.getIdentifierField().equals(code.getNodeValue())) {
-                            String localIdentifier = readTextNode(subfield);
-                            if (StringUtils.isBlank(mmi.getIdentifierConditionField())
-                                    || Pattern.compile(MetsModsImportExport.splitRegularExpression(mmi.getIdentifierConditionField()).get(0))
-                                            .matcher(localIdentifier)
-                                            .find()) {
-                                if (StringUtils.isNotBlank(mmi.getIdentifierReplacement())) {
-                                    List<String> parts = MetsModsImportExport.splitRegularExpression(mmi.getIdentifierReplacement());
-                                    localIdentifier = localIdentifier.replaceAll(parts.get(0), parts.get(1));
-                                }
-                                currentIdentifier = localIdentifier;
+                        if (mmi.getIdentifierCodes().contains(code)) {
+                            if (mmi.matchesIdentifierCondition(value)) {
+                                currentIdentifier = mmi.applyIdentifierReplacement(value);
                             }
                         }
 
-                        if (!mf.getMainName().isEmpty()) {
-                            for (String subfieldCode : mf.getMainName()) {
-                                if (subfieldCode.equals(code.getNodeValue()) && StringUtils.isBlank(currentMainName)) {
-                                    currentMainName = readTextNode(subfield);
-                                }
-                            }
+                        if (codes.getMainName().contains(code) && StringUtils.isBlank(currentMainName)) {
+                            currentMainName = value;
                         }
-                        if (!mf.getSubName().isEmpty()) {
-                            for (String subfieldCode : mf.getSubName()) {
-                                if (subfieldCode.equals(code.getNodeValue())) {
-                                    currentSubNames.add(new NamePart("subname", readTextNode(subfield)));
-                                }
-
-                            }
+                        if (codes.getSubName().contains(code)) {
+                            currentSubNames.add(new NamePart("subname", value));
                         }
-                        if (!mf.getPartName().isEmpty()) {
-                            for (String subfieldCode : mf.getPartName()) {
-                                if (subfieldCode.equals(code.getNodeValue())) {
-                                    if (StringUtils.isBlank(currentPartName)) {
-                                        currentPartName = readTextNode(subfield);
-                                    } else {
-                                        currentPartName = currentPartName + mmi.getSeparator() + readTextNode(subfield);
-                                    }
-                                }
+                        if (codes.getPartName().contains(code)) {
+                            if (StringUtils.isBlank(currentPartName)) {
+                                currentPartName = value;
+                            } else {
+                                currentPartName = currentPartName + mmi.getSeparator() + value;
                             }
                         }
 
                         // In case a non-empty condition is configured but no condition field was found, skip this value
-                        if (StringUtils.isNotBlank(mmi.getConditionField()) && StringUtils.isNotBlank(mmi.getConditionValue())
-                                && !"/empty/".equals(mmi.getConditionValue()) && matches == null) {
+                        if (mmi.isConditionRequired() && matches == null) {
                             matches = false;
                         }
                     }
 
                     //replace in first and last name entries
-                    if (StringUtils.isNotBlank(mmi.getFieldReplacement())) {
-                        List<String> parts = MetsModsImportExport.splitRegularExpression(mmi.getFieldReplacement());
-
+                    if (mmi.getFieldReplacementRule() != null) {
                         if (StringUtils.isNotBlank(currentMainName)) {
-                            currentMainName = currentMainName.replaceAll(parts.get(0), parts.get(1));
+                            currentMainName = mmi.applyFieldReplacement(currentMainName);
                         }
                         for (NamePart subName : currentSubNames) {
-                            String name = subName.getValue();
-                            name = name.replaceAll(parts.get(0), parts.get(1));
-                            subName.setValue(name);
+                            subName.setValue(mmi.applyFieldReplacement(subName.getValue()));
                         }
                         if (StringUtils.isNotBlank(currentPartName)) {
-                            currentPartName = currentPartName.replaceAll(parts.get(0), parts.get(1));
+                            currentPartName = mmi.applyFieldReplacement(currentPartName);
                         }
                     }
 
@@ -642,8 +773,8 @@ public class MarcFileformat implements Fileformat {
                                 singleSubNames.addAll(currentSubNames);
                             }
                             if (StringUtils.isNotBlank(currentPartName)) {
-                                if (StringUtils.isNotBlank(currentPartName)) {
-                                    singlePartName = currentPartName + mmi.getSeparator() + currentPartName;
+                                if (StringUtils.isNotBlank(singlePartName)) {
+                                    singlePartName = singlePartName + mmi.getSeparator() + currentPartName;
                                 } else {
                                     singlePartName = currentPartName;
                                 }
@@ -654,16 +785,18 @@ public class MarcFileformat implements Fileformat {
                         }
                     }
                 }
+            }
+            // Single entity for all occurrences
+            if (!mmi.isSeparateEntries()) {
+                Corporate md = createCorporation(mmi, singleMainName, singleSubNames, singlePartName, singleIdentifier);
 
-                // Single entity for all occurrences
-                if (!mmi.isSeparateEntries()) {
-                    Corporate md = createCorporation(mmi, singleMainName, singleSubNames, singlePartName, singleIdentifier);
-
-                    if (md != null) {
-                        corporations.add(md);
-                    }
+                if (md != null) {
+                    corporations.add(md);
                 }
-
+            }
+            if (timed) {
+                instrumentation.ruleEvaluated(mmi, System.nanoTime() - ruleStart, fieldMatches.get(itemIndex).size(),
+                        corporations.size() - createdBefore);
             }
         }
 
@@ -679,65 +812,50 @@ public class MarcFileformat implements Fileformat {
      * @should only import one role per person
      */
     List<Person> parsePersons(List<Node> datafields, List<MetadataConfigurationItem> personList) {
+        return mapPersons(MarcDatafield.fromNodes(datafields), personList);
+    }
+
+    List<Person> mapPersons(List<MarcDatafield> datafields, List<MetadataConfigurationItem> personList) {
+        return mapPersons(getMappingPlan(personList).dispatchRecord(datafields), personList);
+    }
+
+    private List<Person> mapPersons(RecordMatches recordMatches, List<MetadataConfigurationItem> personList) {
         List<Person> persons = new ArrayList<>();
+        List<List<FieldMatch>> fieldMatches = recordMatches.get(personList);
 
-        for (MetadataConfigurationItem mmo : personList) {
+        boolean timed = instrumentation.isEnabled();
+        for (int itemIndex = 0; itemIndex < personList.size(); itemIndex++) {
+            MetadataConfigurationItem mmo = personList.get(itemIndex);
+            long ruleStart = timed ? System.nanoTime() : 0;
+            int createdBefore = persons.size();
             String singleEntityLastName = "";
             String singleEntityFirstName = "";
             String singleEntityIdentifier = "";
 
-            // For each node in the MARC document
-            for (Node node : datafields) {
-                NamedNodeMap nnm = node.getAttributes();
-                Node tagNode = nnm.getNamedItem("tag");
-                Node ind1Node = nnm.getNamedItem("ind1");
-                Node ind2Node = nnm.getNamedItem("ind2");
-                String ind1Value = ind1Node.getNodeValue().trim();
-                String ind2Value = ind2Node.getNodeValue().trim();
+            // For each node in the MARC document matching the main tag and indicators of the configured fields
+            for (FieldMatch fieldMatch : fieldMatches.get(itemIndex)) {
+                MarcDatafield datafield = fieldMatch.getDatafield();
+                if (mmo.isConditionMissing(datafield)) {
+                    // the condition can't match, no person is created from this datafield
+                    continue;
+                }
+                String ind1Value = datafield.getInd1();
 
                 Boolean matches = null;
                 String currentLastName = "";
                 String currentFirstName = "";
                 String currentIdentifier = "";
 
-                // Match main tag in the config
-                for (MarcField mf : mmo.getFieldList()) {
-                    if (!mf.getFieldMainTag().equals(tagNode.getNodeValue())) {
-                        continue;
-                    }
-
-                    boolean matchesInd1 = false;
-                    boolean matchesInd2 = false;
-                    if ("any".equals(mf.getFieldInd1()) || mf.getFieldInd1().trim().equals(ind1Value)) {
-                        matchesInd1 = true;
-                    }
-                    if ("any".equals(mf.getFieldInd2()) || mf.getFieldInd2().trim().equals(ind2Value)) {
-                        matchesInd2 = true;
-                    }
-                    if (!matchesInd1 || !matchesInd2) {
-                        continue;
-                    }
-
+                for (MarcField mf : fieldMatch.getFields()) {
+                    MarcField.Codes codes = mf.getCodes();
                     // Expansion
-                    NodeList subfieldList = node.getChildNodes();
-                    for (int i = 0; i < subfieldList.getLength(); i++) {
-                        Node subfield = subfieldList.item(i);
-                        if (subfield.getNodeType() != Node.ELEMENT_NODE) {
-                            continue;
-                        }
-
-                        NamedNodeMap attributes = subfield.getAttributes();
-                        Node code = attributes.getNamedItem("code");
+                    for (int i = 0; i < datafield.getSubfieldCount(); i++) {
+                        String code = datafield.getCode(i);
+                        String value = datafield.getValue(i);
 
                         // Skip values that don't match the field condition
-                        if (StringUtils.isNotBlank(mmo.getConditionField()) && StringUtils.isNotBlank(mmo.getConditionValue())
-                                && mmo.getConditionField().equals(code.getNodeValue())) {
-                            String valueToCheck = readTextNode(subfield);
-                            Pattern pattern = Pattern.compile(MetsModsImportExport.splitRegularExpression(mmo.getConditionValue()).get(0));
-                            Matcher matcher = pattern.matcher(valueToCheck);
-
-                            if (!matcher.find()
-                                    && !("/empty/".equals(mmo.getConditionValue()) && StringUtils.isBlank(valueToCheck))) {
+                        if (mmo.getConditionCodes().contains(code)) {
+                            if (!mmo.acceptsConditionValue(value)) {
                                 if (matches == null) {
                                     // Only set matches = false if not previously set to true by a matching subfield
                                     matches = false;
@@ -748,22 +866,14 @@ public class MarcFileformat implements Fileformat {
                         }
 
                         // Identifier
-                        if (StringUtils.isNotBlank(mmo.getIdentifierField()) && mmo.getIdentifierField().equals(code.getNodeValue())) {
-                            String localIdentifier = readTextNode(subfield);
-                            if (StringUtils.isBlank(mmo.getIdentifierConditionField())
-                                    || Pattern.compile(MetsModsImportExport.splitRegularExpression(mmo.getIdentifierConditionField()).get(0))
-                                            .matcher(localIdentifier)
-                                            .find()) {
-                                if (StringUtils.isNotBlank(mmo.getIdentifierReplacement())) {
-                                    List<String> parts = MetsModsImportExport.splitRegularExpression(mmo.getIdentifierReplacement());
-                                    localIdentifier = localIdentifier.replaceAll(parts.get(0), parts.get(1));
-                                }
-                                currentIdentifier = localIdentifier;
+                        if (mmo.getIdentifierCodes().contains(code)) {
+                            if (mmo.matchesIdentifierCondition(value)) {
+                                currentIdentifier = mmo.applyIdentifierReplacement(value);
                             }
                         }
 
-                        if (!mf.getExpansion().isEmpty() && mf.getExpansion().get(0).equals(code.getNodeValue())) {
-                            String expansion = readTextNode(subfield);
+                        if (codes.getExpansion().contains(code)) {
+                            String expansion = value;
 
                             switch (ind1Value) {
                                 case "1":
@@ -792,55 +902,37 @@ public class MarcFileformat implements Fileformat {
 
                     // Only check first/last name fields if no values have been found in expansion, or if it is configured
                     if ((currentFirstName.isEmpty() && currentLastName.isEmpty()) || !mmo.isAbortAfterFirstMatch()) {
-                        for (int i = 0; i < subfieldList.getLength(); i++) {
-                            Node subfield = subfieldList.item(i);
-                            if (subfield.getNodeType() != Node.ELEMENT_NODE) {
-                                continue;
-                            }
+                        for (int i = 0; i < datafield.getSubfieldCount(); i++) {
+                            String code = datafield.getCode(i);
 
-                            NamedNodeMap attributes = subfield.getAttributes();
-                            Node code = attributes.getNamedItem("code");
-
-                            if (!mf.getFirstname().isEmpty()) {
-                                for (String nodeName : mf.getFirstname()) {
-                                    if (nodeName.equals(code.getNodeValue())) {
-                                        if (StringUtils.isNotBlank(currentFirstName)) {
-                                            currentFirstName += mmo.getSeparator();
-                                        }
-                                        currentFirstName += readTextNode(subfield);
-                                        break;
-                                    }
+                            if (codes.getFirstname().contains(code)) {
+                                if (StringUtils.isNotBlank(currentFirstName)) {
+                                    currentFirstName += mmo.getSeparator();
                                 }
+                                currentFirstName += datafield.getValue(i);
                             }
-                            if (!mf.getLastname().isEmpty()) {
-                                for (String nodeName : mf.getLastname()) {
-                                    if (nodeName.equals(code.getNodeValue())) {
-                                        if (StringUtils.isNotBlank(currentLastName)) {
-                                            currentLastName += mmo.getSeparator();
-                                        }
-                                        currentLastName += readTextNode(subfield);
-                                        break;
-                                    }
+                            if (codes.getLastname().contains(code)) {
+                                if (StringUtils.isNotBlank(currentLastName)) {
+                                    currentLastName += mmo.getSeparator();
                                 }
+                                currentLastName += datafield.getValue(i);
                             }
                         }
                     }
                 }
 
                 // In case a non-empty condition is configured but no condition field was found, skip this value
-                if (StringUtils.isNotBlank(mmo.getConditionField()) && StringUtils.isNotBlank(mmo.getConditionValue())
-                        && !"/empty/".equals(mmo.getConditionValue()) && matches == null) {
+                if (mmo.isConditionRequired() && matches == null) {
                     matches = false;
                 }
 
                 //replace in first and last name entries
-                if (StringUtils.isNotBlank(mmo.getFieldReplacement())) {
-                    List<String> parts = MetsModsImportExport.splitRegularExpression(mmo.getFieldReplacement());
+                if (mmo.getFieldReplacementRule() != null) {
                     if (StringUtils.isNotBlank(currentFirstName)) {
-                        currentFirstName = currentFirstName.replaceAll(parts.get(0), parts.get(1));
+                        currentFirstName = mmo.applyFieldReplacement(currentFirstName);
                     }
                     if (StringUtils.isNotBlank(currentLastName)) {
-                        currentLastName = currentLastName.replaceAll(parts.get(0), parts.get(1));
+                        currentLastName = mmo.applyFieldReplacement(currentLastName);
                     }
                 }
 
@@ -877,6 +969,10 @@ public class MarcFileformat implements Fileformat {
                     persons.add(md);
                 }
             }
+            if (timed) {
+                instrumentation.ruleEvaluated(mmo, System.nanoTime() - ruleStart, fieldMatches.get(itemIndex).size(),
+                        persons.size() - createdBefore);
+            }
         }
 
         return persons;
@@ -892,60 +988,48 @@ public class MarcFileformat implements Fileformat {
      * @should import multiple values correctly
      */
     List<Metadata> parseMetadata(List<Node> datafields, List<MetadataConfigurationItem> metadataList) {
+        return mapMetadata(MarcDatafield.fromNodes(datafields), metadataList);
+    }
+
+    List<Metadata> mapMetadata(List<MarcDatafield> datafields, List<MetadataConfigurationItem> metadataList) {
+        return mapMetadata(getMappingPlan(metadataList).dispatchRecord(datafields), metadataList);
+    }
+
+    private List<Metadata> mapMetadata(RecordMatches recordMatches, List<MetadataConfigurationItem> metadataList) {
         List<Metadata> metadata = new ArrayList<>();
+        List<List<FieldMatch>> fieldMatches = recordMatches.get(metadataList);
 
-        for (MetadataConfigurationItem mmo : metadataList) {
+        boolean timed = instrumentation.isEnabled();
+        for (int itemIndex = 0; itemIndex < metadataList.size(); itemIndex++) {
+            MetadataConfigurationItem mmo = metadataList.get(itemIndex);
+            long ruleStart = timed ? System.nanoTime() : 0;
+            int createdBefore = metadata.size();
             String singleEntityValue = "";
             String singleEntityIdentifier = "";
             List<String> matchedValueList = new ArrayList<>();
 
-            // For each node in the MARC document
-            for (Node node : datafields) {
-                NamedNodeMap nnm = node.getAttributes();
-                Node tagNode = nnm.getNamedItem("tag");
-                Node ind1Node = nnm.getNamedItem("ind1");
-                Node ind2Node = nnm.getNamedItem("ind2");
+            // For each node in the MARC document matching the main tag and indicators of the configured fields
+            for (FieldMatch fieldMatch : fieldMatches.get(itemIndex)) {
+                MarcDatafield datafield = fieldMatch.getDatafield();
+                if (mmo.isConditionMissing(datafield)) {
+                    // the condition can't match, no value is taken from this datafield
+                    continue;
+                }
 
                 Boolean matches = null;
 
-                // Match main tag in the config
-                for (MarcField mf : mmo.getFieldList()) {
-                    if (!mf.getFieldMainTag().equals(tagNode.getNodeValue())) {
-                        continue;
-                    }
-
-                    boolean matchesInd1 = false;
-                    boolean matchesInd2 = false;
-                    if ("any".equals(mf.getFieldInd1()) || mf.getFieldInd1().trim().equals(ind1Node.getNodeValue().trim())) {
-                        matchesInd1 = true;
-                    }
-                    if ("any".equals(mf.getFieldInd2()) || mf.getFieldInd2().trim().equals(ind2Node.getNodeValue().trim())) {
-                        matchesInd2 = true;
-                    }
-                    if (!matchesInd1 || !matchesInd2) {
-                        continue;
-                    }
-
+                for (MarcField mf : fieldMatch.getFields()) {
+                    SubfieldCodes subTags = mf.getCodes().getSubTags();
                     String currentIdentifier = "";
                     List<String> subfieldValues = new ArrayList<>();
                     // Subfields
-                    NodeList subfieldList = node.getChildNodes();
-                    for (int i = 0; i < subfieldList.getLength(); i++) {
-                        Node subfield = subfieldList.item(i);
-                        if (subfield.getNodeType() != Node.ELEMENT_NODE) {
-                            continue;
-                        }
-
-                        NamedNodeMap attributes = subfield.getAttributes();
-                        Node code = attributes.getNamedItem("code");
+                    for (int i = 0; i < datafield.getSubfieldCount(); i++) {
+                        String code = datafield.getCode(i);
+                        String value = datafield.getValue(i);
 
                         // If a condition is configured, make sure at least one subfield value meets it
-                        if (StringUtils.isNotBlank(mmo.getConditionField()) && StringUtils.isNotBlank(mmo.getConditionValue())
-                                && mmo.getConditionField().equals(code.getNodeValue())) {
-                            String valueToCheck = readTextNode(subfield);
-                            Pattern pattern = Pattern.compile(MetsModsImportExport.splitRegularExpression(mmo.getConditionValue()).get(0));
-                            if (!pattern.matcher(valueToCheck).find()
-                                    && !("/empty/".equals(mmo.getConditionValue()) && StringUtils.isBlank(valueToCheck))) {
+                        if (mmo.getConditionCodes().contains(code)) {
+                            if (!mmo.acceptsConditionValue(value)) {
                                 if (matches == null) {
                                     // Only set matches = false if not previously set to true by a matching subfield
                                     matches = false;
@@ -955,27 +1039,18 @@ public class MarcFileformat implements Fileformat {
                             matches = true;
                         }
 
-                        if (mf.getFieldSubTags().contains(code.getNodeValue())) {
-                            subfieldValues.add(readTextNode(subfield));
+                        if (subTags.contains(code)) {
+                            subfieldValues.add(value);
                         }
 
-                        if (StringUtils.isNotBlank(mmo.getIdentifierField()) && mmo.getIdentifierField().equals(code.getNodeValue())) {
-                            String localIdentifier = readTextNode(subfield);
-                            if (StringUtils.isBlank(mmo.getIdentifierConditionField())
-                                    || Pattern.compile(MetsModsImportExport.splitRegularExpression(mmo.getIdentifierConditionField()).get(0))
-                                            .matcher(localIdentifier)
-                                            .find()) {
-                                if (StringUtils.isNotBlank(mmo.getIdentifierReplacement())) {
-                                    List<String> parts = MetsModsImportExport.splitRegularExpression(mmo.getIdentifierReplacement());
-                                    localIdentifier = localIdentifier.replaceAll(parts.get(0), parts.get(1));
-                                }
-                                currentIdentifier = localIdentifier;
+                        if (mmo.getIdentifierCodes().contains(code)) {
+                            if (mmo.matchesIdentifierCondition(value)) {
+                                currentIdentifier = mmo.applyIdentifierReplacement(value);
                             }
                         }
 
                         // In case a non-empty condition is configured but no condition field was found, skip this value
-                        if (StringUtils.isNotBlank(mmo.getConditionField()) && StringUtils.isNotBlank(mmo.getConditionValue())
-                                && !"/empty/".equals(mmo.getConditionValue()) && matches == null) {
+                        if (mmo.isConditionRequired() && matches == null) {
                             matches = false;
                         }
                     }
@@ -1039,6 +1114,10 @@ public class MarcFileformat implements Fileformat {
                     metadata.add(md);
                 }
             }
+            if (timed) {
+                instrumentation.ruleEvaluated(mmo, System.nanoTime() - ruleStart, fieldMatches.get(itemIndex).size(),
+                        metadata.size() - createdBefore);
+            }
         }
 
         return metadata;
@@ -1059,14 +1138,11 @@ public class MarcFileformat implements Fileformat {
     private Metadata createMetadata(MetadataConfigurationItem mmo, String value, String identifier) {
         Metadata md = null;
 
-        if (!value.isEmpty()) {
+        // unknown metadata types are reported once, when the configuration is compiled
+        if (!value.isEmpty() && mmo.getMetadataType() != null) {
             try {
-                md = new Metadata(prefs.getMetadataTypeByName(mmo.getInternalMetadataName()));
-                if (StringUtils.isNotBlank(mmo.getFieldReplacement())) {
-                    List<String> parts = MetsModsImportExport.splitRegularExpression(mmo.getFieldReplacement());
-                    value = value.replaceAll(parts.get(0), parts.get(1));
-                }
-                md.setValue(value);
+                md = new Metadata(mmo.getMetadataType());
+                md.setValue(mmo.applyFieldReplacement(value));
                 if (!identifier.isEmpty()) {
                     md.setAuthorityFile("gnd", "http://d-nb.info/gnd/", identifier);
                 }
@@ -1088,9 +1164,9 @@ public class MarcFileformat implements Fileformat {
      */
     private Person createPerson(MetadataConfigurationItem mmo, String firstname, String lastname, String identifier) {
         Person person = null;
-        if (!firstname.isEmpty() || !lastname.isEmpty()) {
+        MetadataType mdt = mmo.getMetadataType();
+        if (mdt != null && (!firstname.isEmpty() || !lastname.isEmpty())) {
             try {
-                MetadataType mdt = prefs.getMetadataTypeByName(mmo.getInternalMetadataName());
                 person = new Person(mdt);
                 person.setRole(mdt.getName());
 
@@ -1111,10 +1187,10 @@ public class MarcFileformat implements Fileformat {
 
     private Corporate createCorporation(MetadataConfigurationItem mmo, String mainName, List<NamePart> subNames, String partName, String identifier) {
         Corporate corporate = null;
-        if (StringUtils.isNotBlank(mainName)) {
+        MetadataType mdt = mmo.getMetadataType();
+        if (mdt != null && StringUtils.isNotBlank(mainName)) {
 
             try {
-                MetadataType mdt = prefs.getMetadataTypeByName(mmo.getInternalMetadataName());
                 corporate = new Corporate(mdt);
                 corporate.setRole(mdt.getName());
 
@@ -1134,72 +1210,27 @@ public class MarcFileformat implements Fileformat {
         return corporate;
     }
 
-    private DocStruct parseDocstruct(Node leader, List<Node> controlfields) {
-        // fix for wrong leader in SWB
-        String leaderValue = "";
-        NodeList nl = leader.getChildNodes();
-        if (nl.getLength() > 0) {
-            Node n = nl.item(0);
-            leaderValue = n.getNodeValue();
-        }
-        char[] leaderChars = leaderValue.toCharArray();
-        char[] field007 = null;
-        char[] field008 = null;
-
-        for (Node node : controlfields) {
-            NamedNodeMap nnm = node.getAttributes();
-            Node tagNode = nnm.getNamedItem("tag");
-            if ("007".equals(tagNode.getNodeValue()) && field007 == null) {
-                field007 = readTextNode(node).toCharArray();
-            } else if ("008".equals(tagNode.getNodeValue()) && field008 == null) {
-                field008 = readTextNode(node).toCharArray();
-            }
-        }
-
-        DocStruct ds = null;
-
-        if (docstructList.size() == 1) {
+    DocStruct parseDocstruct(MarcRecord marcRecord) {
+        if (configuration.getDocstructList().size() == 1) {
             try {
-                return digDoc.createDocStruct(prefs.getDocStrctTypeByName(docstructList.get(0).getInternalName()));
+                return digDoc.createDocStruct(configuration.getDocstructList().get(0).getDocStructType());
             } catch (TypeNotAllowedForParentException e) {
                 log.error(e);
             }
         }
-        try {
-            for (DocstructConfigurationItem dci : docstructList) {
-                boolean match = true;
-                // field008_21
-                if (StringUtils.isNotBlank(dci.getField008_21()) && (field008 == null || (dci.getField008_21().toCharArray()[0] != field008[21]))) {
-                    match = false;
-                }
-                // field007_1
-                if (StringUtils.isNotBlank(dci.getField007_1()) && (field007 == null || (dci.getField007_1().toCharArray()[0] != field007[1]))) {
-                    match = false;
-                }
-                // field007_0
-
-                if (StringUtils.isNotBlank(dci.getField007_0()) && (field007 == null || (dci.getField007_0().toCharArray()[0] != field007[0]))) {
-                    match = false;
-                }
-                // leader 19
-                if (StringUtils.isNotBlank(dci.getLeader19()) && (dci.getLeader19().toCharArray()[0] != leaderChars[19])) {
-                    match = false;
-                }
-                // leader char6 and leader char7
-                if ((dci.getLeader6().toCharArray()[0] != leaderChars[6]) || (dci.getLeader7().toCharArray()[0] != leaderChars[7])) {
-                    match = false;
-                }
-                if (match) {
-                    ds = digDoc.createDocStruct(prefs.getDocStrctTypeByName(dci.getInternalName()));
-                    break;
-                }
-            }
 
+        // short or missing leaders and controlfields don't match any configured position
+        DocstructConfigurationItem dci = configuration.getDocstructTable()
+                .find(marcRecord.getLeader(), marcRecord.getControlfield("007"), marcRecord.getControlfield("008"));
+        if (dci == null || dci.getDocStructType() == null) {
+            return null;
+        }
+        try {
+            return digDoc.createDocStruct(dci.getDocStructType());
         } catch (TypeNotAllowedForParentException e) {
             log.error(e);
         }
-
-        return ds;
+        return null;
     }
 
     @Override
@@ -1208,36 +1239,100 @@ public class MarcFileformat implements Fileformat {
     }
 
     public boolean read(String filename, DocStruct readAsDocStruct) throws ReadException {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        // Do not validate XML file.
-        factory.setValidating(false);
-        // Namespace does not matter.
-        factory.setNamespaceAware(false);
-
-        // Read file and parse it.
+        return read(filename, readAsDocStruct, false);
+    }
 
-        DocumentBuilder builder;
-        try {
-            builder = factory.newDocumentBuilder();
-            Document document = builder.parse(new File(filename));
-            NodeList upperChildlist = document.getElementsByTagName(MARC_PREFS_NODE_RECORD_STRING);
-            Node node = upperChildlist.item(0);
+    /**
+     * Reads a MARCXML or binary MARC 21 (ISO 2709) file. The file is streamed record by record, only the record that is currently parsed is held
+     * in memory.
+     * 
+     * @param filename the MARCXML or binary marc file, can contain a single record or a collection
+     * @param readAsDocStruct the DocStruct to use, if null the type gets detected from leader and controlfields
+     * @param readAllRecords if true, every record of the file is read and added as child of the previous one, otherwise only the first record is
+     *            read
+     * @return true, if the file could be read
+     * @throws ReadException
+     */
+    public boolean read(String filename, DocStruct readAsDocStruct, boolean readAllRecords) throws ReadException {
+        DocStruct ds = null;
+        try (MarcRecordReader reader = MarcRecordReader.open(new File(filename), configuration.getFieldFilter())) {
+            MarcRecord marcRecord = nextRecord(reader);
+            if (marcRecord == null) {
+                log.error("No marc record found in " + filename);
+                return false;
+            }
+            if (!readAllRecords) {
+                return read(marcRecord, readAsDocStruct);
+            }
 
-            return read(node, readAsDocStruct);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            log.info("Parsing marcxml collection");
+            DocStruct dsOld = null;
+            while (marcRecord != null) {
+                ds = parseMarcRecord(marcRecord, readAsDocStruct);
+                dsOld = addDocStruct(ds, dsOld);
+                marcRecord = nextRecord(reader);
+            }
+            return true;
+        } catch (TypeNotAllowedAsChildException e) {
+            String message = "Can't add child to parent DocStruct! Child type '" + ds.getType().getName() + "' not allowed for parent type";
+            throw new ReadException(message, e);
+        } catch (IOException e) {
             log.error(e);
         }
 
         return false;
     }
 
+    /**
+     * Exports the logical DocStruct of the document as MARCXML. Anchor and child DocStructs with a configured marc docstruct type are written as
+     * additional records of the collection, in the order {@link #read(String, DocStruct, boolean)} links them.
+     * 
+     * @param filename the file to write
+     * @return true, if the file was written
+     */
     @Override
     public boolean write(String filename) throws WriteException, PreferencesException {
+        if (digDoc == null || digDoc.getLogicalDocStruct() == null) {
+            log.error("No logical DocStruct to export");
+            return false;
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(filename))) {
+            writeCollection(out, Collections.singletonList(digDoc));
+            return true;
+        } catch (IOException e) {
+            log.error(e);
+        }
         return false;
     }
 
+    /**
+     * Writes the records of several documents into a single MARCXML collection. The records are streamed, no DOM is created.
+     * 
+     * @param out the target, it is not closed
+     * @param documents the documents to export
+     * @throws IOException
+     */
+    public void writeCollection(OutputStream out, Iterable<DigitalDocument> documents) throws IOException {
+        MarcRecordExporter exporter = new MarcRecordExporter(configuration);
+        try (MarcXmlStreamWriter writer = new MarcXmlStreamWriter(out)) {
+            for (DigitalDocument document : documents) {
+                for (MarcRecord marcRecord : exporter.exportDocument(document)) {
+                    writer.writeRecord(marcRecord);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the file with the current state of the document, see {@link #write(String)}
+     */
     @Override
     public boolean update(String filename) {
+        try {
+            return write(filename);
+        } catch (WriteException | PreferencesException e) {
+            log.error(e);
+        }
         return false;
     }
 
@@ -1248,12 +1343,12 @@ public class MarcFileformat implements Fileformat {
 
     @Override
     public boolean isWritable() {
-        return false;
+        return true;
     }
 
     @Override
     public boolean isExportable() {
-        return false;
+        return true;
     }
 
     @Override
@@ -1264,6 +1359,7 @@ public class MarcFileformat implements Fileformat {
     @Override
     public void setPrefs(Prefs prefs) throws PreferencesException {
         this.prefs = prefs;
+        setConfiguration(MarcMappingConfiguration.forPrefs(prefs));
 
     }
 
@@ -0,0 +1,98 @@
+package de.intranda.ugh.extension;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import lombok.Getter;
+import ugh.dl.DigitalDocument;
+
+/**
+ * Result of the import of a single record by the {@link MarcBulkImporter}
+ */
+@Getter
+public class MarcImportResult {
+
+    /**
+     * the file or response containing the record
+     */
+    private final String source;
+
+    /**
+     * position of the record within the file, starting with 0. -1 if the file could not be read at all
+     */
+    private final long recordNumber;
+
+    /**
+     * content of controlfield 001, if available
+     */
+    private final String recordIdentifier;
+
+    /**
+     * the imported document, null if the import failed
+     */
+    private final DigitalDocument digitalDocument;
+
+    /**
+     * the exception that caused the import to fail, null if the record was imported
+     */
+    private final Exception error;
+
+    private final List<String> messages;
+
+    MarcImportResult(String source, long recordNumber, String recordIdentifier, DigitalDocument digitalDocument, Exception error,
+            List<String> messages) {
+        this.source = source;
+        this.recordNumber = recordNumber;
+        this.recordIdentifier = recordIdentifier;
+        this.digitalDocument = digitalDocument;
+        this.error = error;
+        this.messages = Collections.unmodifiableList(new ArrayList<>(messages));
+    }
+
+    /**
+     * @return true, if a document with a logical structure element was created
+     */
+    public boolean isSuccessful() {
+        return error == null && digitalDocument != null && digitalDocument.getLogicalDocStruct() != null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(source).append('#').append(recordNumber);
+        if (recordIdentifier != null) {
+            sb.append(" (").append(recordIdentifier).append(')');
+        }
+        if (error != null) {
+            sb.append(": ").append(error);
+        }
+        for (String message : messages) {
+            sb.append(", ").append(message);
+        }
+        return sb.toString();
+    }
+}
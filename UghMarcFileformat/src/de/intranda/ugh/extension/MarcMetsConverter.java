@@ -0,0 +1,300 @@
+package de.intranda.ugh.extension;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStructType;
+import ugh.dl.Prefs;
+import ugh.exceptions.PreferencesException;
+import ugh.exceptions.UGHException;
+import ugh.fileformats.mets.MetsModsImportExport;
+
+/**
+ * Converts MARCXML or binary marc files into METS/MODS files, one file for each record. The conversion runs as a bounded pipeline: the records
+ * are read and mapped by a {@link MarcBulkImporter} on a pool sized for the mapping, the METS files are written on virtual threads if the
+ * runtime supports them. Only a limited number of documents waits for the writers, so arbitrary large collections can be converted.
+ *
+ * <pre>
+ * java -cp ... de.intranda.ugh.extension.MarcMetsConverter [--threads 8] [--physical-type BoundBook] ruleset.xml input.xml output
+ * </pre>
+ *
+ * The input is a collection file or a directory of <code>*.xml</code> and <code>*.mrc</code> files. Progress and records per second are
+ * printed while the conversion runs.
+ */
+@Log4j2
+public class MarcMetsConverter {
+
+    private final Prefs prefs;
+
+    /**
+     * number of threads mapping the records
+     */
+    @Getter
+    @Setter
+    private int mappingThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * maximum number of mapped documents waiting to be written
+     */
+    @Getter
+    @Setter
+    private int maxPendingWrites = 256;
+
+    /**
+     * type of the physical structure added to each document, METS files need one. null, if the documents are written without physical
+     * structure.
+     */
+    @Getter
+    @Setter
+    private String physicalDocStructType = "BoundBook";
+
+    /**
+     * interval between two progress reports in milliseconds, 0 to disable them
+     */
+    @Getter
+    @Setter
+    private long progressInterval = 5000;
+
+    /**
+     * receives the progress reports and the summary
+     */
+    @Getter
+    @Setter
+    private PrintStream progressOutput = System.out;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public MarcMetsConverter(Prefs prefs) {
+        this.prefs = prefs;
+    }
+
+    /**
+     * Converts all records of the input
+     *
+     * @param input a marc file or a directory of marc files
+     * @param outputDirectory directory of the METS files, created if it doesn't exist
+     * @return the number of records that could not be converted
+     * @throws IOException if the input can't be listed or the output directory can't be created
+     * @throws PreferencesException if the marc configuration of the ruleset has errors or the physical structure type is not defined
+     */
+    public long convert(Path input, Path outputDirectory) throws IOException, PreferencesException {
+        DocStructType physical = getPhysicalType();
+        Files.createDirectories(outputDirectory);
+        written.reset();
+        failed.reset();
+        long start = System.nanoTime();
+        long nextReport = start + TimeUnit.MILLISECONDS.toNanos(progressInterval);
+        long read = 0;
+        Set<String> fileNames = new HashSet<>();
+        Semaphore pendingWrites = new Semaphore(maxPendingWrites);
+        ExecutorService mappingPool = Executors.newFixedThreadPool(mappingThreads);
+        ExecutorService writers = newWriterExecutor();
+        try {
+            MarcBulkImporter importer = new MarcBulkImporter(prefs, mappingPool);
+            // the output has one file per record, so the records can be written as soon as they are mapped
+            importer.setOrdered(false);
+            importer.setMaxPendingRecords(mappingThreads * 4);
+            try (Stream<MarcImportResult> results = Files.isDirectory(input) ? importer.importDirectory(input) : importer.importFile(input)) {
+                for (MarcImportResult result : (Iterable<MarcImportResult>) results::iterator) {
+                    read++;
+                    if (result.isSuccessful()) {
+                        Path file = outputDirectory.resolve(getFileName(result, fileNames));
+                        // blocks while the writers are behind, the importer stops reading ahead in the meantime
+                        pendingWrites.acquireUninterruptibly();
+                        writers.execute(() -> {
+                            try {
+                                write(result.getDigitalDocument(), physical, file);
+                            } finally {
+                                pendingWrites.release();
+                            }
+                        });
+                    } else {
+                        log.warn("Record not converted: " + result);
+                        failed.increment();
+                    }
+                    if (progressInterval > 0 && System.nanoTime() - nextReport >= 0) {
+                        progressOutput.println(formatProgress(read, start));
+                        nextReport = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(progressInterval);
+                    }
+                }
+            }
+        } finally {
+            mappingPool.shutdown();
+            writers.shutdown();
+            awaitTermination(writers);
+        }
+        progressOutput.println(formatProgress(read, start));
+        return failed.sum();
+    }
+
+    private DocStructType getPhysicalType() throws PreferencesException {
+        if (physicalDocStructType == null) {
+            return null;
+        }
+        DocStructType type = prefs.getDocStrctTypeByName(physicalDocStructType);
+        if (type == null) {
+            throw new PreferencesException("The physical structure type " + physicalDocStructType + " is not defined in the ruleset");
+        }
+        return type;
+    }
+
+    private void write(DigitalDocument digitalDocument, DocStructType physicalType, Path file) {
+        try {
+            if (physicalType != null && digitalDocument.getPhysicalDocStruct() == null) {
+                // METS files need a physical structure, the marc records only describe the logical one
+                digitalDocument.setPhysicalDocStruct(digitalDocument.createDocStruct(physicalType));
+            }
+            MetsModsImportExport mets = new MetsModsImportExport(prefs);
+            mets.setDigitalDocument(digitalDocument);
+            if (mets.write(file.toString())) {
+                written.increment();
+            } else {
+                log.error("Can't write " + file);
+                failed.increment();
+            }
+        } catch (UGHException | RuntimeException e) {
+            log.error("Can't write " + file, e);
+            failed.increment();
+        }
+    }
+
+    /**
+     * Uses the record identifier as file name. Records without identifier or with an identifier that was already used are named after their
+     * source and position.
+     */
+    private static String getFileName(MarcImportResult result, Set<String> fileNames) {
+        String identifier = result.getRecordIdentifier();
+        if (identifier != null && !identifier.isBlank()) {
+            String name = identifier.trim().replaceAll("[^\\w.-]", "_");
+            if (fileNames.add(name)) {
+                return name + ".xml";
+            }
+        }
+        String base = Paths.get(result.getSource()).getFileName().toString().replaceAll("\\.\\w+$", "") + "_" + result.getRecordNumber();
+        String name = base;
+        for (int counter = 2; !fileNames.add(name); counter++) {
+            name = base + "_" + counter;
+        }
+        return name + ".xml";
+    }
+
+    private String formatProgress(long read, long start) {
+        double seconds = (System.nanoTime() - start) / 1_000_000_000d;
+        return String.format(Locale.ROOT, "%d records read, %d written, %d failed, %.1f s, %.1f records/s", read, written.sum(), failed.sum(),
+                seconds, seconds > 0 ? written.sum() / seconds : 0d);
+    }
+
+    /**
+     * Creates the executor for the METS writers. Virtual threads are used on Java 21 and later, the module itself is compiled for Java 11.
+     */
+    static ExecutorService newWriterExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // the number of writers is still bounded by the pending writes
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.info("Waiting for METS files to be written");
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param args options, ruleset, input file or directory and output directory. The options are <code>--threads</code> with the number of
+     *            mapping threads and <code>--physical-type</code> with the type of the physical structure, <code>none</code> to write the
+     *            documents without physical structure.
+     */
+    public static void main(String[] args) {
+        String usage = "Usage: MarcMetsConverter [--threads <mapping threads>] [--physical-type <DocStruct type>|none] <ruleset>"
+                + " <input file or directory> <output directory>";
+        Integer threads = null;
+        String physicalType = null;
+        int index = 0;
+        try {
+            while (index < args.length - 1 && args[index].startsWith("--")) {
+                if ("--threads".equals(args[index])) {
+                    threads = Integer.parseInt(args[index + 1]);
+                } else if ("--physical-type".equals(args[index])) {
+                    physicalType = args[index + 1];
+                } else {
+                    break;
+                }
+                index += 2;
+            }
+        } catch (NumberFormatException e) {
+            System.err.println(usage);
+            System.exit(2);
+        }
+        if (args.length - index != 3) {
+            System.err.println(usage);
+            System.exit(2);
+        }
+        try {
+            Prefs prefs = new Prefs();
+            if (!prefs.loadPrefs(args[index])) {
+                System.err.println("Can't load ruleset " + args[index]);
+                System.exit(2);
+            }
+            MarcMetsConverter converter = new MarcMetsConverter(prefs);
+            if (threads != null) {
+                converter.setMappingThreads(threads);
+            }
+            if (physicalType != null) {
+                converter.setPhysicalDocStructType("none".equalsIgnoreCase(physicalType) ? null : physicalType);
+            }
+            long failures = converter.convert(Paths.get(args[index + 1]), Paths.get(args[index + 2]));
+            System.exit(failures == 0 ? 0 : 1);
+        } catch (IOException | PreferencesException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+    }
+}
@@ -22,13 +22,22 @@ package de.intranda.ugh.extension.util;
  * 
  * This copyright notice MUST APPEAR in all copies of this file!
  ******************************************************************************/
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import de.intranda.ugh.extension.MarcFileformat;
-import lombok.Data;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.DocStructType;
+import ugh.dl.Prefs;
 
-public @Data class DocstructConfigurationItem {
+@Getter
+@Log4j2
+public class DocstructConfigurationItem {
 
     private String internalName = "";
     private String leader6 = "";
@@ -38,7 +47,18 @@ public @Data class DocstructConfigurationItem {
     private String field007_1 = "";
     private String field008_21 = "";
 
+    // resolved once from the ruleset, null if the type is unknown
+    private DocStructType docStructType;
+
     public DocstructConfigurationItem(Node node) {
+        this(node, null);
+    }
+
+    /**
+     * @param node the configuration element
+     * @param prefs the ruleset used to resolve the docstruct type, can be null
+     */
+    public DocstructConfigurationItem(Node node, Prefs prefs) {
         NodeList children = node.getChildNodes();
 
         for (int i = 0; i < children.getLength(); i++) {
@@ -61,6 +81,41 @@ public @Data class DocstructConfigurationItem {
                 }
             }
         }
+
+        resolveType(prefs);
+    }
+
+    /**
+     * Reads an item from a configuration snapshot, see {@link #write(DataOutput)}
+     */
+    DocstructConfigurationItem(DataInput in, Prefs prefs) throws IOException {
+        internalName = MarcConfigurationSnapshot.readString(in);
+        leader6 = MarcConfigurationSnapshot.readString(in);
+        leader7 = MarcConfigurationSnapshot.readString(in);
+        leader19 = MarcConfigurationSnapshot.readString(in);
+        field007_0 = MarcConfigurationSnapshot.readString(in);
+        field007_1 = MarcConfigurationSnapshot.readString(in);
+        field008_21 = MarcConfigurationSnapshot.readString(in);
+        resolveType(prefs);
+    }
+
+    void write(DataOutput out) throws IOException {
+        MarcConfigurationSnapshot.writeString(out, internalName);
+        MarcConfigurationSnapshot.writeString(out, leader6);
+        MarcConfigurationSnapshot.writeString(out, leader7);
+        MarcConfigurationSnapshot.writeString(out, leader19);
+        MarcConfigurationSnapshot.writeString(out, field007_0);
+        MarcConfigurationSnapshot.writeString(out, field007_1);
+        MarcConfigurationSnapshot.writeString(out, field008_21);
+    }
+
+    private void resolveType(Prefs prefs) {
+        if (prefs != null) {
+            docStructType = prefs.getDocStrctTypeByName(internalName);
+            if (docStructType == null) {
+                log.error("DocStruct type {} is not defined in the ruleset, records matching the rule get no DocStruct", internalName);
+            }
+        }
     }
 
 }
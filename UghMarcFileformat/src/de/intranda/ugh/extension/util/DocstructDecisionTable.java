@@ -0,0 +1,133 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Compiled form of the docstruct rules of a ruleset. The rules are indexed by leader positions 6 and 7, so detecting the docstruct type of a
+ * record only needs a table lookup and a few character comparisons for the remaining candidates.
+ *
+ * The rules are evaluated in configuration order, the first matching rule wins. A rule without a value for a position matches every record.
+ * Positions that are missing because the leader or a controlfield is too short don't match any configured value.
+ */
+public class DocstructDecisionTable {
+
+    // ASCII values have their own slot, all other characters and missing positions share the last one
+    private static final int OTHER = 128;
+    private static final int SIZE = OTHER + 1;
+
+    // value of positions that are missing in the record, never configured
+    private static final char NONE = '\uffff';
+    private static final char ANY = 0;
+
+    private final List<DocstructConfigurationItem> items;
+    private final char[][] rules;
+
+    // candidate rules for each combination of leader 6 and 7, the same arrays are shared between cells
+    private final int[][][] candidates = new int[SIZE][SIZE][];
+
+    public DocstructDecisionTable(List<DocstructConfigurationItem> items) {
+        this.items = items;
+        this.rules = new char[items.size()][];
+        for (int i = 0; i < items.size(); i++) {
+            DocstructConfigurationItem item = items.get(i);
+            rules[i] = new char[] { leaderValue(item.getLeader6()), leaderValue(item.getLeader7()), optionalValue(item.getLeader19()),
+                    optionalValue(item.getField007_0()), optionalValue(item.getField007_1()), optionalValue(item.getField008_21()) };
+        }
+
+        Map<List<Integer>, int[]> shared = new HashMap<>();
+        List<Integer> cell = new ArrayList<>();
+        for (int leader6 = 0; leader6 < SIZE; leader6++) {
+            for (int leader7 = 0; leader7 < SIZE; leader7++) {
+                cell.clear();
+                for (int i = 0; i < rules.length; i++) {
+                    if (mayMatch(rules[i][0], leader6) && mayMatch(rules[i][1], leader7)) {
+                        cell.add(i);
+                    }
+                }
+                candidates[leader6][leader7] = shared.computeIfAbsent(new ArrayList<>(cell), k -> k.stream().mapToInt(Integer::intValue).toArray());
+            }
+        }
+    }
+
+    /**
+     * Finds the first rule that matches the record
+     *
+     * @param leader the leader, can be null or too short
+     * @param field007 the controlfield 007, can be null or too short
+     * @param field008 the controlfield 008, can be null or too short
+     * @return the configuration item of the matching rule or null, if no rule matches
+     */
+    public DocstructConfigurationItem find(String leader, String field007, String field008) {
+        char leader6 = charAt(leader, 6);
+        char leader7 = charAt(leader, 7);
+        char[] values = null;
+        for (int i : candidates[slot(leader6)][slot(leader7)]) {
+            char[] rule = rules[i];
+            if (values == null) {
+                values = new char[] { leader6, leader7, charAt(leader, 19), charAt(field007, 0), charAt(field007, 1), charAt(field008, 21) };
+            }
+            if (matches(rule, values)) {
+                return items.get(i);
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(char[] rule, char[] values) {
+        for (int position = 0; position < rule.length; position++) {
+            if (rule[position] != ANY && rule[position] != values[position]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean mayMatch(char configured, int slot) {
+        return configured == ANY || slot(configured) == slot;
+    }
+
+    private static int slot(char c) {
+        return c < OTHER ? c : OTHER;
+    }
+
+    private static char charAt(String value, int position) {
+        return value != null && value.length() > position ? value.charAt(position) : NONE;
+    }
+
+    // leader 6 and 7 are compared even if they only contain whitespace
+    private static char leaderValue(String configured) {
+        return StringUtils.isEmpty(configured) ? ANY : configured.charAt(0);
+    }
+
+    private static char optionalValue(String configured) {
+        return StringUtils.isBlank(configured) ? ANY : configured.charAt(0);
+    }
+}
@@ -23,24 +23,44 @@ package de.intranda.ugh.extension.util;
  * 
  * This copyright notice MUST APPEAR in all copies of this file!
  ******************************************************************************/
-import java.util.LinkedList;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import de.intranda.ugh.extension.MarcFileformat;
-import lombok.Data;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.MetadataGroupType;
+import ugh.dl.Prefs;
 
-public @Data class GroupConfigurationItem {
+@Getter
+@Log4j2
+public class GroupConfigurationItem {
 
     private String groupName;
 
-    private List<MetadataConfigurationItem> metadataList = new LinkedList<>();
-    private List<MetadataConfigurationItem> personList = new LinkedList<>();
-    private List<MetadataConfigurationItem> corporationList = new LinkedList<>();
+    private List<MetadataConfigurationItem> metadataList = new ArrayList<>();
+    private List<MetadataConfigurationItem> personList = new ArrayList<>();
+    private List<MetadataConfigurationItem> corporationList = new ArrayList<>();
+
+    // resolved once from the ruleset, null if the type is unknown
+    private MetadataGroupType groupType;
 
     public GroupConfigurationItem(Node node) {
+        this(node, null);
+    }
+
+    /**
+     * @param node the configuration element
+     * @param prefs the ruleset used to resolve the group and metadata types, can be null
+     */
+    public GroupConfigurationItem(Node node, Prefs prefs) {
         NodeList children = node.getChildNodes();
         for (int i = 0; i < children.getLength(); i++) {
             Node n = children.item(i);
@@ -49,18 +69,50 @@ public @Data class GroupConfigurationItem {
                 if (MarcFileformat.PREFS_MARC_INTERNAL_METADATA_NAME.equalsIgnoreCase(n.getNodeName())) {
                     groupName = MarcFileformat.readTextNode(n);
                 } else if (MarcFileformat.PREFS_MARC_METADATA_NAME.equalsIgnoreCase(n.getNodeName())) {
-                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n);
+                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n, prefs);
                     metadataList.add(metadata);
                 } else if (MarcFileformat.PREFS_MARC_PERSON_NAME.equalsIgnoreCase(n.getNodeName())) {
-                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n);
+                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n, prefs);
                     personList.add(metadata);
                 } else if (MarcFileformat.PREFS_MARC_CORPORATE_NAME.equalsIgnoreCase(n.getNodeName())) {
-                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n);
+                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n, prefs);
                     corporationList.add(metadata);
                 }
 
             }
         }
+        metadataList = Collections.unmodifiableList(metadataList);
+        personList = Collections.unmodifiableList(personList);
+        corporationList = Collections.unmodifiableList(corporationList);
+
+        resolveType(prefs);
+    }
+
+    /**
+     * Reads an item from a configuration snapshot, see {@link #write(DataOutput)}
+     */
+    GroupConfigurationItem(DataInput in, Prefs prefs) throws IOException {
+        groupName = MarcConfigurationSnapshot.readString(in);
+        metadataList = MarcConfigurationSnapshot.readMetadataItems(in, prefs);
+        personList = MarcConfigurationSnapshot.readMetadataItems(in, prefs);
+        corporationList = MarcConfigurationSnapshot.readMetadataItems(in, prefs);
+        resolveType(prefs);
+    }
+
+    void write(DataOutput out) throws IOException {
+        MarcConfigurationSnapshot.writeString(out, groupName);
+        MarcConfigurationSnapshot.writeMetadataItems(out, metadataList);
+        MarcConfigurationSnapshot.writeMetadataItems(out, personList);
+        MarcConfigurationSnapshot.writeMetadataItems(out, corporationList);
+    }
+
+    private void resolveType(Prefs prefs) {
+        if (prefs != null) {
+            groupType = prefs.getMetadataGroupTypeByName(groupName);
+            if (groupType == null) {
+                log.error("Metadata group type {} is not defined in the ruleset, the group is ignored", groupName);
+            }
+        }
     }
 
 }
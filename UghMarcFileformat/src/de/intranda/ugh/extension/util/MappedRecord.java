@@ -0,0 +1,434 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ugh.dl.Corporate;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataGroup;
+import ugh.dl.MetadataGroupType;
+import ugh.dl.MetadataType;
+import ugh.dl.NamePart;
+import ugh.dl.Person;
+import ugh.dl.Prefs;
+import ugh.exceptions.MetadataTypeNotAllowedException;
+
+/**
+ * The values a record was mapped to, independent of a {@link Prefs} instance. Types are stored by name, the metadata, persons, corporations
+ * and groups can be created again from the snapshot without evaluating any mapping rule.
+ */
+public final class MappedRecord {
+
+    /**
+     * version of the serialized form, part of the cache key
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private final List<Value> metadata;
+    private final List<Value> persons;
+    private final List<Value> corporations;
+    private final List<Group> groups;
+
+    private MappedRecord(List<Value> metadata, List<Value> persons, List<Value> corporations, List<Group> groups) {
+        this.metadata = Collections.unmodifiableList(metadata);
+        this.persons = Collections.unmodifiableList(persons);
+        this.corporations = Collections.unmodifiableList(corporations);
+        this.groups = Collections.unmodifiableList(groups);
+    }
+
+    public List<Value> getMetadata() {
+        return metadata;
+    }
+
+    public List<Value> getPersons() {
+        return persons;
+    }
+
+    public List<Value> getCorporations() {
+        return corporations;
+    }
+
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Creates the metadata of the record
+     *
+     * @param prefs the ruleset
+     * @return the metadata in mapping order
+     * @throws MetadataTypeNotAllowedException if a type doesn't exist in the ruleset
+     */
+    public List<Metadata> createMetadata(Prefs prefs) throws MetadataTypeNotAllowedException {
+        List<Metadata> result = new ArrayList<>(metadata.size());
+        for (Value value : metadata) {
+            result.add(value.createMetadata(prefs));
+        }
+        return result;
+    }
+
+    /**
+     * Creates the persons of the record
+     *
+     * @param prefs the ruleset
+     * @return the persons in mapping order
+     * @throws MetadataTypeNotAllowedException if a type doesn't exist in the ruleset
+     */
+    public List<Person> createPersons(Prefs prefs) throws MetadataTypeNotAllowedException {
+        List<Person> result = new ArrayList<>(persons.size());
+        for (Value value : persons) {
+            result.add(value.createPerson(prefs));
+        }
+        return result;
+    }
+
+    /**
+     * Creates the corporations of the record
+     *
+     * @param prefs the ruleset
+     * @return the corporations in mapping order
+     * @throws MetadataTypeNotAllowedException if a type doesn't exist in the ruleset
+     */
+    public List<Corporate> createCorporations(Prefs prefs) throws MetadataTypeNotAllowedException {
+        List<Corporate> result = new ArrayList<>(corporations.size());
+        for (Value value : corporations) {
+            result.add(value.createCorporate(prefs));
+        }
+        return result;
+    }
+
+    /**
+     * Creates the metadata groups of the record
+     *
+     * @param prefs the ruleset
+     * @return the groups in mapping order
+     * @throws MetadataTypeNotAllowedException if a type doesn't exist in the ruleset or a member isn't allowed in its group
+     */
+    public List<MetadataGroup> createGroups(Prefs prefs) throws MetadataTypeNotAllowedException {
+        List<MetadataGroup> result = new ArrayList<>(groups.size());
+        for (Group group : groups) {
+            result.add(group.createGroup(prefs));
+        }
+        return result;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        writeValues(out, metadata);
+        writeValues(out, persons);
+        writeValues(out, corporations);
+        out.writeInt(groups.size());
+        for (Group group : groups) {
+            writeString(out, group.typeName);
+            writeValues(out, group.metadata);
+            writeValues(out, group.persons);
+            writeValues(out, group.corporations);
+        }
+    }
+
+    /**
+     * Reads a record written by {@link #write(DataOutput)}
+     *
+     * @param in the input
+     * @return the record
+     * @throws IOException if the input can't be read or was written in another format
+     */
+    public static MappedRecord read(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported format version " + version);
+        }
+        List<Value> metadata = readValues(in);
+        List<Value> persons = readValues(in);
+        List<Value> corporations = readValues(in);
+        int groupCount = in.readInt();
+        List<Group> groups = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            groups.add(new Group(readString(in), readValues(in), readValues(in), readValues(in)));
+        }
+        return new MappedRecord(metadata, persons, corporations, groups);
+    }
+
+    private static void writeValues(DataOutput out, List<Value> values) throws IOException {
+        out.writeInt(values.size());
+        for (Value value : values) {
+            writeString(out, value.typeName);
+            writeString(out, value.value);
+            writeString(out, value.firstname);
+            writeString(out, value.lastname);
+            writeString(out, value.mainName);
+            writeString(out, value.partName);
+            out.writeInt(value.subNames.size());
+            for (String[] subName : value.subNames) {
+                writeString(out, subName[0]);
+                writeString(out, subName[1]);
+            }
+            writeString(out, value.authorityId);
+            writeString(out, value.authorityUri);
+            writeString(out, value.authorityValue);
+        }
+    }
+
+    private static List<Value> readValues(DataInput in) throws IOException {
+        int count = in.readInt();
+        List<Value> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Value value = new Value(readString(in));
+            value.value = readString(in);
+            value.firstname = readString(in);
+            value.lastname = readString(in);
+            value.mainName = readString(in);
+            value.partName = readString(in);
+            int subNameCount = in.readInt();
+            for (int j = 0; j < subNameCount; j++) {
+                value.subNames.add(new String[] { readString(in), readString(in) });
+            }
+            value.authorityId = readString(in);
+            value.authorityUri = readString(in);
+            value.authorityValue = readString(in);
+            values.add(value);
+        }
+        return values;
+    }
+
+    // length prefixed UTF-8, -1 for null. writeUTF is limited to 64 KB
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Collects the mapped values of a record
+     */
+    public static class Builder {
+
+        private final List<Value> metadata = new ArrayList<>();
+        private final List<Value> persons = new ArrayList<>();
+        private final List<Value> corporations = new ArrayList<>();
+        private final List<Group> groups = new ArrayList<>();
+
+        public Builder addMetadata(List<Metadata> values) {
+            for (Metadata md : values) {
+                metadata.add(Value.of(md));
+            }
+            return this;
+        }
+
+        public Builder addPersons(List<Person> values) {
+            for (Person person : values) {
+                persons.add(Value.of(person));
+            }
+            return this;
+        }
+
+        public Builder addCorporations(List<Corporate> values) {
+            for (Corporate corporate : values) {
+                corporations.add(Value.of(corporate));
+            }
+            return this;
+        }
+
+        /**
+         * Adds a group with the members that were accepted by the group
+         */
+        public Builder addGroup(MetadataGroupType type, List<Metadata> members, List<Person> memberPersons, List<Corporate> memberCorporations) {
+            List<Value> groupMetadata = new ArrayList<>(members.size());
+            for (Metadata md : members) {
+                groupMetadata.add(Value.of(md));
+            }
+            List<Value> groupPersons = new ArrayList<>(memberPersons.size());
+            for (Person person : memberPersons) {
+                groupPersons.add(Value.of(person));
+            }
+            List<Value> groupCorporations = new ArrayList<>(memberCorporations.size());
+            for (Corporate corporate : memberCorporations) {
+                groupCorporations.add(Value.of(corporate));
+            }
+            groups.add(new Group(type.getName(), groupMetadata, groupPersons, groupCorporations));
+            return this;
+        }
+
+        public MappedRecord build() {
+            return new MappedRecord(new ArrayList<>(metadata), new ArrayList<>(persons), new ArrayList<>(corporations), new ArrayList<>(groups));
+        }
+    }
+
+    /**
+     * A single metadata, person or corporate
+     */
+    public static final class Value {
+
+        private final String typeName;
+        private String value;
+        private String firstname;
+        private String lastname;
+        private String mainName;
+        private String partName;
+        private final List<String[]> subNames = new ArrayList<>();
+        private String authorityId;
+        private String authorityUri;
+        private String authorityValue;
+
+        private Value(String typeName) {
+            this.typeName = typeName;
+        }
+
+        private static Value of(Metadata md) {
+            Value result = new Value(md.getType().getName());
+            result.value = md.getValue();
+            result.authorityId = md.getAuthorityID();
+            result.authorityUri = md.getAuthorityURI();
+            result.authorityValue = md.getAuthorityValue();
+            if (md instanceof Person) {
+                Person person = (Person) md;
+                result.firstname = person.getFirstname();
+                result.lastname = person.getLastname();
+            } else if (md instanceof Corporate) {
+                Corporate corporate = (Corporate) md;
+                result.mainName = corporate.getMainName();
+                result.partName = corporate.getPartName();
+                if (corporate.getSubNames() != null) {
+                    for (NamePart subName : corporate.getSubNames()) {
+                        result.subNames.add(new String[] { subName.getType(), subName.getValue() });
+                    }
+                }
+            }
+            return result;
+        }
+
+        public String getTypeName() {
+            return typeName;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        private MetadataType getType(Prefs prefs) throws MetadataTypeNotAllowedException {
+            MetadataType type = prefs.getMetadataTypeByName(typeName);
+            if (type == null) {
+                throw new MetadataTypeNotAllowedException("Unknown metadata type " + typeName);
+            }
+            return type;
+        }
+
+        private Metadata createMetadata(Prefs prefs) throws MetadataTypeNotAllowedException {
+            Metadata md = new Metadata(getType(prefs));
+            md.setValue(value);
+            setAuthority(md);
+            return md;
+        }
+
+        private Person createPerson(Prefs prefs) throws MetadataTypeNotAllowedException {
+            Person person = new Person(getType(prefs));
+            person.setRole(typeName);
+            person.setFirstname(firstname);
+            person.setLastname(lastname);
+            setAuthority(person);
+            return person;
+        }
+
+        private Corporate createCorporate(Prefs prefs) throws MetadataTypeNotAllowedException {
+            Corporate corporate = new Corporate(getType(prefs));
+            corporate.setRole(typeName);
+            corporate.setMainName(mainName);
+            List<NamePart> names = new ArrayList<>(subNames.size());
+            for (String[] subName : subNames) {
+                names.add(new NamePart(subName[0], subName[1]));
+            }
+            corporate.setSubNames(names);
+            corporate.setPartName(partName);
+            setAuthority(corporate);
+            return corporate;
+        }
+
+        private void setAuthority(Metadata md) {
+            if (authorityValue != null && !authorityValue.isEmpty()) {
+                md.setAuthorityFile(authorityId, authorityUri, authorityValue);
+            }
+        }
+    }
+
+    /**
+     * A metadata group with its members
+     */
+    public static final class Group {
+
+        private final String typeName;
+        private final List<Value> metadata;
+        private final List<Value> persons;
+        private final List<Value> corporations;
+
+        private Group(String typeName, List<Value> metadata, List<Value> persons, List<Value> corporations) {
+            this.typeName = typeName;
+            this.metadata = metadata;
+            this.persons = persons;
+            this.corporations = corporations;
+        }
+
+        public String getTypeName() {
+            return typeName;
+        }
+
+        private MetadataGroup createGroup(Prefs prefs) throws MetadataTypeNotAllowedException {
+            MetadataGroupType type = prefs.getMetadataGroupTypeByName(typeName);
+            if (type == null) {
+                throw new MetadataTypeNotAllowedException("Unknown group type " + typeName);
+            }
+            MetadataGroup group = new MetadataGroup(type);
+            for (Value value : metadata) {
+                group.addMetadata(value.createMetadata(prefs));
+            }
+            for (Value value : persons) {
+                group.addPerson(value.createPerson(prefs));
+            }
+            for (Value value : corporations) {
+                group.addCorporate(value.createCorporate(prefs));
+            }
+            return group;
+        }
+    }
+}
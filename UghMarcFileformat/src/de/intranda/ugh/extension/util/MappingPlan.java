@@ -0,0 +1,247 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.Getter;
+
+/**
+ * Compiled form of one or more lists of {@link MetadataConfigurationItem}s. All configured fields are indexed by their main tag, so the
+ * datafields of a record can be assigned to the interested configuration items in a single pass.
+ *
+ * A plan over several lists, like the top level metadata and the metadata of all groups, dispatches the record once for all of them. The
+ * matches of each list are available from {@link RecordMatches#get(List)}.
+ */
+public class MappingPlan {
+
+    // all items of all lists, in the order of the lists
+    @Getter
+    private final List<MetadataConfigurationItem> items;
+
+    // index of the first item of each list
+    private final Map<List<MetadataConfigurationItem>, Integer> offsets = new IdentityHashMap<>();
+
+    private final Map<String, List<FieldRule>> rulesByTag = new HashMap<>();
+
+    public MappingPlan(List<MetadataConfigurationItem> items) {
+        this(Collections.singletonList(items));
+    }
+
+    /**
+     * Creates a plan that dispatches the datafields to all given lists at once
+     *
+     * @param lists the lists of configuration items, each list must only be given once
+     */
+    public MappingPlan(Collection<List<MetadataConfigurationItem>> lists) {
+        List<MetadataConfigurationItem> allItems = new ArrayList<>();
+        for (List<MetadataConfigurationItem> list : lists) {
+            offsets.put(list, allItems.size());
+            allItems.addAll(list);
+        }
+        items = Collections.unmodifiableList(allItems);
+        for (int i = 0; i < items.size(); i++) {
+            for (MarcField mf : items.get(i).getFieldList()) {
+                rulesByTag.computeIfAbsent(mf.getFieldMainTag(), k -> new ArrayList<>()).add(new FieldRule(i, mf));
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct main tags in the index
+     */
+    public int getTagCount() {
+        return rulesByTag.size();
+    }
+
+    /**
+     * @return the number of configured fields in the index
+     */
+    public int getFieldCount() {
+        int count = 0;
+        for (List<FieldRule> rules : rulesByTag.values()) {
+            count += rules.size();
+        }
+        return count;
+    }
+
+    /**
+     * Assigns the datafields to the configuration items.
+     *
+     * The result contains one list for each configuration item, in the same order as the items. Each list contains the matching datafields in
+     * document order, together with the configured fields of the item that match the datafield in configuration order.
+     *
+     * @param datafields all datafields of a record
+     * @return the matching datafields for each configuration item of all lists
+     */
+    public List<List<FieldMatch>> dispatch(List<MarcDatafield> datafields) {
+        List<List<FieldMatch>> result = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            result.add(new ArrayList<>());
+        }
+        if (rulesByTag.isEmpty()) {
+            return result;
+        }
+
+        for (MarcDatafield datafield : datafields) {
+            if (datafield.getTag() == null) {
+                continue;
+            }
+            List<FieldRule> rules = rulesByTag.get(datafield.getTag());
+            if (rules == null) {
+                continue;
+            }
+
+            FieldMatch current = null;
+            for (FieldRule rule : rules) {
+                if (!rule.matchesIndicators(datafield.getInd1(), datafield.getInd2())) {
+                    continue;
+                }
+                if (current == null || current.itemIndex != rule.itemIndex) {
+                    current = new FieldMatch(rule.itemIndex, datafield);
+                    result.get(rule.itemIndex).add(current);
+                }
+                current.fields.add(rule.field);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Assigns the datafields to the configuration items of all lists of this plan
+     *
+     * @param datafields all datafields of a record
+     * @return the matching datafields, grouped by the lists of configuration items
+     */
+    public RecordMatches dispatchRecord(List<MarcDatafield> datafields) {
+        return new RecordMatches(dispatch(datafields));
+    }
+
+    /**
+     * Assigns a single datafield to all configuration items that have configured fields, without checking tags and indicators. This is used
+     * for plans whose configured fields all share the same tag and indicators, after the caller checked them once for the datafield.
+     *
+     * @param datafield the datafield
+     * @return the datafield for each configuration item, grouped by the lists of configuration items
+     */
+    public RecordMatches assignToAll(MarcDatafield datafield) {
+        List<List<FieldMatch>> result = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            List<MarcField> fields = items.get(i).getFieldList();
+            if (fields.isEmpty()) {
+                result.add(Collections.emptyList());
+            } else {
+                FieldMatch match = new FieldMatch(i, datafield);
+                match.fields.addAll(fields);
+                result.add(Collections.singletonList(match));
+            }
+        }
+        return new RecordMatches(result);
+    }
+
+    /**
+     * The result of dispatching a record to all lists of a plan
+     */
+    public class RecordMatches {
+
+        private final List<List<FieldMatch>> matches;
+
+        private RecordMatches(List<List<FieldMatch>> matches) {
+            this.matches = matches;
+        }
+
+        /**
+         * Returns the matching datafields of one list of configuration items, in the format of {@link MappingPlan#dispatch(List)}
+         *
+         * @param configurationItems a list of this plan
+         * @return the matching datafields for each configuration item of the list
+         */
+        public List<List<FieldMatch>> get(List<MetadataConfigurationItem> configurationItems) {
+            Integer offset = offsets.get(configurationItems);
+            if (offset == null) {
+                throw new IllegalArgumentException("The list of configuration items is not part of the mapping plan");
+            }
+            return matches.subList(offset, offset + configurationItems.size());
+        }
+    }
+
+    /**
+     * A datafield of the record together with the configured fields of a single configuration item that match it
+     */
+    public static class FieldMatch {
+
+        private final int itemIndex;
+        private final MarcDatafield datafield;
+
+        private final List<MarcField> fields = new ArrayList<>(1);
+
+        private FieldMatch(int itemIndex, MarcDatafield datafield) {
+            this.itemIndex = itemIndex;
+            this.datafield = datafield;
+        }
+
+        public MarcDatafield getDatafield() {
+            return datafield;
+        }
+
+        public List<MarcField> getFields() {
+            return Collections.unmodifiableList(fields);
+        }
+    }
+
+    private static class FieldRule {
+
+        private final int itemIndex;
+        private final MarcField field;
+        private final String ind1;
+        private final String ind2;
+
+        private FieldRule(int itemIndex, MarcField field) {
+            this.itemIndex = itemIndex;
+            this.field = field;
+            this.ind1 = compileIndicator(field.getFieldInd1());
+            this.ind2 = compileIndicator(field.getFieldInd2());
+        }
+
+        /**
+         * @return null, if any value is accepted, the trimmed indicator value otherwise
+         */
+        private static String compileIndicator(String configuredValue) {
+            if ("any".equals(configuredValue)) {
+                return null;
+            }
+            return configuredValue == null ? "" : configuredValue.trim();
+        }
+
+        private boolean matchesIndicators(String ind1Value, String ind2Value) {
+            return (ind1 == null || ind1.equals(ind1Value)) && (ind2 == null || ind2.equals(ind2Value));
+        }
+    }
+}
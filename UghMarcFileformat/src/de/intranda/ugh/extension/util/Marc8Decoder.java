@@ -0,0 +1,218 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.nio.ByteBuffer;
+import java.text.Normalizer;
+import java.util.Arrays;
+
+/**
+ * Decodes MARC-8 encoded field data with the default character sets, Basic Latin (ASCII) as G0 and Extended Latin (ANSEL) as G1.
+ *
+ * ANSEL combining diacritics precede their base character, they are moved behind it and the result is normalized to NFC. Escape sequences that
+ * switch to other character sets (Greek, Cyrillic, Arabic, Hebrew, CJK, ...) are not supported. G0 and G1 are switched independently, while
+ * G0 is another set its graphic characters (0x21 - 0x7E) are replaced by U+FFFD, while G1 is another set the bytes 0xA0 - 0xFF are replaced.
+ */
+public final class Marc8Decoder {
+
+    private static final char REPLACEMENT = '\uFFFD';
+    private static final byte ESCAPE = 0x1B;
+
+    private static final char[] ANSEL = new char[256];
+
+    static {
+        // spacing characters
+        ANSEL[0x88] = '\u0098'; // non sort begin
+        ANSEL[0x89] = '\u009C'; // non sort end
+        ANSEL[0x8D] = '\u200D';
+        ANSEL[0x8E] = '\u200C';
+        ANSEL[0xA1] = '\u0141';
+        ANSEL[0xA2] = '\u00D8';
+        ANSEL[0xA3] = '\u0110';
+        ANSEL[0xA4] = '\u00DE';
+        ANSEL[0xA5] = '\u00C6';
+        ANSEL[0xA6] = '\u0152';
+        ANSEL[0xA7] = '\u02B9';
+        ANSEL[0xA8] = '\u00B7';
+        ANSEL[0xA9] = '\u266D';
+        ANSEL[0xAA] = '\u00AE';
+        ANSEL[0xAB] = '\u00B1';
+        ANSEL[0xAC] = '\u01A0';
+        ANSEL[0xAD] = '\u01AF';
+        ANSEL[0xAE] = '\u02BC';
+        ANSEL[0xB0] = '\u02BB';
+        ANSEL[0xB1] = '\u0142';
+        ANSEL[0xB2] = '\u00F8';
+        ANSEL[0xB3] = '\u0111';
+        ANSEL[0xB4] = '\u00FE';
+        ANSEL[0xB5] = '\u00E6';
+        ANSEL[0xB6] = '\u0153';
+        ANSEL[0xB7] = '\u02BA';
+        ANSEL[0xB8] = '\u0131';
+        ANSEL[0xB9] = '\u00A3';
+        ANSEL[0xBA] = '\u00F0';
+        ANSEL[0xBC] = '\u01A1';
+        ANSEL[0xBD] = '\u01B0';
+        ANSEL[0xC0] = '\u00B0';
+        ANSEL[0xC1] = '\u2113';
+        ANSEL[0xC2] = '\u2117';
+        ANSEL[0xC3] = '\u00A9';
+        ANSEL[0xC4] = '\u266F';
+        ANSEL[0xC5] = '\u00BF';
+        ANSEL[0xC6] = '\u00A1';
+        ANSEL[0xC7] = '\u00DF';
+        ANSEL[0xC8] = '\u20AC';
+        // combining characters
+        ANSEL[0xE0] = '\u0309';
+        ANSEL[0xE1] = '\u0300';
+        ANSEL[0xE2] = '\u0301';
+        ANSEL[0xE3] = '\u0302';
+        ANSEL[0xE4] = '\u0303';
+        ANSEL[0xE5] = '\u0304';
+        ANSEL[0xE6] = '\u0306';
+        ANSEL[0xE7] = '\u0307';
+        ANSEL[0xE8] = '\u0308';
+        ANSEL[0xE9] = '\u030C';
+        ANSEL[0xEA] = '\u030A';
+        ANSEL[0xEB] = '\uFE20';
+        ANSEL[0xEC] = '\uFE21';
+        ANSEL[0xED] = '\u0315';
+        ANSEL[0xEE] = '\u030B';
+        ANSEL[0xEF] = '\u0310';
+        ANSEL[0xF0] = '\u0327';
+        ANSEL[0xF1] = '\u0328';
+        ANSEL[0xF2] = '\u0323';
+        ANSEL[0xF3] = '\u0324';
+        ANSEL[0xF4] = '\u0325';
+        ANSEL[0xF5] = '\u0333';
+        ANSEL[0xF6] = '\u0332';
+        ANSEL[0xF7] = '\u0326';
+        ANSEL[0xF8] = '\u031C';
+        ANSEL[0xF9] = '\u032E';
+        ANSEL[0xFA] = '\uFE22';
+        ANSEL[0xFB] = '\uFE23';
+        ANSEL[0xFE] = '\u0313';
+    }
+
+    private Marc8Decoder() {
+    }
+
+    private static boolean isCombining(int b) {
+        return b >= 0xE0 && b <= 0xFE;
+    }
+
+    /**
+     * Decodes a part of the buffer. The position of the buffer is not changed.
+     *
+     * @param buffer the buffer
+     * @param offset absolute position of the first byte
+     * @param length number of bytes to decode
+     * @return the decoded value
+     */
+    public static String decode(ByteBuffer buffer, int offset, int length) {
+        char[] chars = new char[length];
+        int size = 0;
+        boolean hasCombining = false;
+        boolean defaultG0 = true;
+        boolean defaultG1 = true;
+        // pending combining characters, they are written after the next base character
+        char[] combining = new char[4];
+        int combiningSize = 0;
+
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int b = buffer.get(i) & 0xFF;
+            if (b == ESCAPE) {
+                int start = i;
+                i = skipEscapeSequence(buffer, i, end);
+                int last = buffer.get(i) & 0xFF;
+                if (designatesG1(buffer, start, i)) {
+                    // ESC ) E restores ANSEL
+                    defaultG1 = last == 'E';
+                } else {
+                    // ESC s and ESC ( B restore ASCII
+                    defaultG0 = last == 's' || last == 'B';
+                }
+                continue;
+            }
+            char c;
+            if (!defaultG0 && b > 0x20 && b < 0x7F || !defaultG1 && b >= 0xA0) {
+                c = REPLACEMENT;
+            } else if (b < 0x80) {
+                c = (char) b;
+            } else if (isCombining(b) && ANSEL[b] != 0) {
+                if (combiningSize == combining.length) {
+                    combining = Arrays.copyOf(combining, combiningSize * 2);
+                }
+                combining[combiningSize++] = ANSEL[b];
+                hasCombining = true;
+                continue;
+            } else {
+                c = ANSEL[b] == 0 ? REPLACEMENT : ANSEL[b];
+            }
+            chars[size++] = c;
+            // every byte results in at most one character, so the combining characters always fit
+            System.arraycopy(combining, 0, chars, size, combiningSize);
+            size += combiningSize;
+            combiningSize = 0;
+        }
+        // combining characters without base character
+        System.arraycopy(combining, 0, chars, size, combiningSize);
+        size += combiningSize;
+        String value = new String(chars, 0, size);
+        if (hasCombining) {
+            return Normalizer.normalize(value, Normalizer.Form.NFC);
+        }
+        return value;
+    }
+
+    /**
+     * Checks the intermediate bytes of an escape sequence. <code>)</code> and <code>-</code> designate a set as G1, with or without a preceding
+     * <code>$</code> for multibyte sets. All other sequences, including the locking shifts without intermediate byte, switch G0.
+     *
+     * @param start position of the escape byte
+     * @param last position of the final byte
+     */
+    private static boolean designatesG1(ByteBuffer buffer, int start, int last) {
+        for (int i = start + 1; i < last; i++) {
+            int b = buffer.get(i) & 0xFF;
+            if (b == ')' || b == '-') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the position of the final byte of the escape sequence
+     */
+    private static int skipEscapeSequence(ByteBuffer buffer, int start, int end) {
+        int i = start + 1;
+        // intermediate bytes are in the range 0x20 - 0x2F, the final byte follows them
+        while (i < end - 1 && (buffer.get(i) & 0xFF) >= 0x20 && (buffer.get(i) & 0xFF) <= 0x2F) {
+            i++;
+        }
+        return Math.min(i, end - 1);
+    }
+}
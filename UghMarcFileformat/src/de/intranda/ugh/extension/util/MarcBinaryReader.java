@@ -0,0 +1,250 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads binary MARC 21 records (ISO 2709). The file is memory mapped in windows, the directory and the fields are decoded directly from the
+ * mapped buffer.
+ *
+ * The character coding scheme is taken from position 9 of the leader of each record: <code>a</code> means UTF-8, everything else is decoded as
+ * MARC-8.
+ */
+public class MarcBinaryReader implements MarcRecordReader {
+
+    private static final byte FIELD_TERMINATOR = 0x1E;
+    private static final byte RECORD_TERMINATOR = 0x1D;
+    private static final byte SUBFIELD_DELIMITER = 0x1F;
+
+    private static final int LEADER_LENGTH = 24;
+    private static final int DIRECTORY_ENTRY_LENGTH = 12;
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+
+    private ByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    public MarcBinaryReader(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    /**
+     * Reads the records from a buffer, starting at the current position of the buffer
+     */
+    public MarcBinaryReader(ByteBuffer buffer) {
+        this.channel = null;
+        this.window = buffer.slice();
+        this.size = window.limit();
+    }
+
+    @Override
+    public MarcRecord nextRecord() throws IOException {
+        skipRecordSeparators();
+        if (position >= size) {
+            return null;
+        }
+        if (size - position < LEADER_LENGTH) {
+            // padding or an end of file character after the last record
+            throw new IOException("Truncated record at offset " + position);
+        }
+        ensureMapped(position, LEADER_LENGTH);
+        int recordLength = parseNumber(window, offset(position), 5);
+        if (recordLength < LEADER_LENGTH || position + recordLength > size) {
+            throw new IOException("Invalid record length " + recordLength + " at offset " + position);
+        }
+        ensureMapped(position, recordLength);
+        MarcRecord marcRecord = parseRecord(window, offset(position), recordLength);
+        position += recordLength;
+        return marcRecord;
+    }
+
+    /**
+     * Parses a single record
+     *
+     * @param buffer the buffer containing the record
+     * @param start absolute position of the record in the buffer
+     * @param recordLength length of the record
+     * @return the record
+     * @throws IOException if the record is malformed
+     */
+    static MarcRecord parseRecord(ByteBuffer buffer, int start, int recordLength) throws IOException {
+        String leader = decodeAscii(buffer, start, LEADER_LENGTH);
+        boolean utf8 = leader.charAt(9) == 'a';
+        int baseAddress = parseNumber(buffer, start + 12, 5);
+        if (baseAddress < LEADER_LENGTH + 1 || baseAddress > recordLength) {
+            throw new IOException("Invalid base address of data " + baseAddress);
+        }
+
+        MarcRecord.Builder builder = new MarcRecord.Builder();
+        builder.setLeader(leader);
+
+        int directoryEnd = start + baseAddress - 1;
+        for (int entry = start + LEADER_LENGTH; entry + DIRECTORY_ENTRY_LENGTH <= directoryEnd; entry += DIRECTORY_ENTRY_LENGTH) {
+            if (buffer.get(entry) == FIELD_TERMINATOR) {
+                break;
+            }
+            String tag = decodeAscii(buffer, entry, 3);
+            int fieldLength = parseNumber(buffer, entry + 3, 4);
+            int fieldStart = start + baseAddress + parseNumber(buffer, entry + 7, 5);
+            int fieldEnd = fieldStart + fieldLength;
+            if (fieldEnd > start + recordLength) {
+                throw new IOException("Field " + tag + " exceeds the record");
+            }
+            // the field terminator is not part of the value
+            if (fieldEnd > fieldStart && buffer.get(fieldEnd - 1) == FIELD_TERMINATOR) {
+                fieldEnd--;
+            }
+
+            if (tag.startsWith("00")) {
+                builder.addControlfield(tag, decode(buffer, fieldStart, fieldEnd - fieldStart, utf8));
+            } else {
+                builder.addDatafield(parseDatafield(buffer, tag, fieldStart, fieldEnd, utf8));
+            }
+        }
+        return builder.build();
+    }
+
+    private static MarcDatafield parseDatafield(ByteBuffer buffer, String tag, int fieldStart, int fieldEnd, boolean utf8) {
+        String ind1 = fieldStart < fieldEnd ? decodeAscii(buffer, fieldStart, 1) : "";
+        String ind2 = fieldStart + 1 < fieldEnd ? decodeAscii(buffer, fieldStart + 1, 1) : "";
+        MarcDatafield.Builder datafield = new MarcDatafield.Builder(tag, ind1, ind2);
+
+        int i = fieldStart + 2;
+        while (i < fieldEnd) {
+            if (buffer.get(i) != SUBFIELD_DELIMITER) {
+                i++;
+                continue;
+            }
+            int codePosition = i + 1;
+            if (codePosition >= fieldEnd) {
+                break;
+            }
+            int valueStart = codePosition + 1;
+            int valueEnd = valueStart;
+            while (valueEnd < fieldEnd && buffer.get(valueEnd) != SUBFIELD_DELIMITER) {
+                valueEnd++;
+            }
+            String code = decodeAscii(buffer, codePosition, 1);
+            String value = valueEnd > valueStart ? decode(buffer, valueStart, valueEnd - valueStart, utf8) : null;
+            datafield.addSubfield(code, value);
+            i = valueEnd;
+        }
+        return datafield.build();
+    }
+
+    private static String decode(ByteBuffer buffer, int offset, int length, boolean utf8) {
+        if (isAscii(buffer, offset, length)) {
+            return decodeAscii(buffer, offset, length);
+        }
+        if (utf8) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(offset + length).position(offset);
+            return StandardCharsets.UTF_8.decode(slice).toString();
+        }
+        return Marc8Decoder.decode(buffer, offset, length);
+    }
+
+    private static boolean isAscii(ByteBuffer buffer, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = buffer.get(i);
+            // escape sequences switch the character set in MARC-8
+            if (b < 0 || b == 0x1B) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decodeAscii(ByteBuffer buffer, int offset, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (buffer.get(offset + i) & 0x7F);
+        }
+        return new String(chars);
+    }
+
+    private static int parseNumber(ByteBuffer buffer, int offset, int length) throws IOException {
+        int value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                throw new IOException("Invalid number in leader or directory");
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Skips line breaks and additional record terminators between two records
+     */
+    private void skipRecordSeparators() throws IOException {
+        while (position < size) {
+            ensureMapped(position, 1);
+            byte b = window.get(offset(position));
+            if (b != RECORD_TERMINATOR && b != '\n' && b != '\r') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private int offset(long filePosition) {
+        return (int) (filePosition - windowStart);
+    }
+
+    /**
+     * Makes sure that the given part of the file is contained in the current window
+     */
+    private void ensureMapped(long start, long length) throws IOException {
+        if (window != null && start >= windowStart && start + length <= windowStart + window.limit()) {
+            return;
+        }
+        if (channel == null) {
+            throw new IOException("Unexpected end of buffer");
+        }
+        // a window always holds at least one complete record
+        long mappedLength = Math.min(WINDOW_SIZE, size - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, mappedLength);
+        windowStart = start;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+
+/**
+ * The result of compiling the <code>Marc</code> section of a ruleset. Errors are configurations that can't work as intended, like invalid tags,
+ * indicators, subfield codes or regular expressions. Warnings are configurations that are ignored during the import, like metadata types that
+ * are not defined in the ruleset.
+ *
+ * An import must not be started with a configuration that has errors, see {@link MarcMappingConfiguration#forImport(ugh.dl.Prefs)}.
+ */
+@Getter
+public class MarcConfigurationReport {
+
+    private final List<String> errors;
+    private final List<String> warnings;
+
+    private final long compileTimeNanos;
+
+    // metadata, person and corporate rules, including the members of groups
+    private final int ruleCount;
+    private final int docstructRuleCount;
+    private final int groupCount;
+    // size of the tag index of the top level and group rules
+    private final int indexedTagCount;
+    private final int indexedFieldCount;
+
+    MarcConfigurationReport(List<String> errors, List<String> warnings, long compileTimeNanos, int ruleCount, int docstructRuleCount,
+            int groupCount, MappingPlan recordPlan) {
+        this.errors = Collections.unmodifiableList(new ArrayList<>(errors));
+        this.warnings = Collections.unmodifiableList(new ArrayList<>(warnings));
+        this.compileTimeNanos = compileTimeNanos;
+        this.ruleCount = ruleCount;
+        this.docstructRuleCount = docstructRuleCount;
+        this.groupCount = groupCount;
+        this.indexedTagCount = recordPlan.getTagCount();
+        this.indexedFieldCount = recordPlan.getFieldCount();
+    }
+
+    /**
+     * @return true, if the configuration has no errors
+     */
+    public boolean isValid() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * @return a single line with compile time, size of the rule index and number of problems
+     */
+    public String getSummary() {
+        return String.format("Compiled marc configuration in %d ms: %d rules, %d docstruct rules, %d groups, %d fields indexed by %d tags, "
+                + "%d errors, %d warnings", TimeUnit.NANOSECONDS.toMillis(compileTimeNanos), ruleCount, docstructRuleCount, groupCount,
+                indexedFieldCount, indexedTagCount, errors.size(), warnings.size());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getSummary());
+        for (String error : errors) {
+            sb.append(System.lineSeparator()).append("ERROR ").append(error);
+        }
+        for (String warning : warnings) {
+            sb.append(System.lineSeparator()).append("WARN  ").append(warning);
+        }
+        return sb.toString();
+    }
+}
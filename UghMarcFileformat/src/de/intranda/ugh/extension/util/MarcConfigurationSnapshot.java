@@ -0,0 +1,254 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.Prefs;
+
+/**
+ * Binary snapshot of a compiled {@link MarcMappingConfiguration}. The snapshot contains the rules of the <code>Marc</code> section with
+ * patterns as source, the type names and the fingerprint. It is stored under a SHA-256 hash of the ruleset file, the library version and the
+ * classes writing the snapshot, so a changed ruleset or an update of the library never uses an old snapshot. The metadata, group and
+ * docstruct types and the tag index are restored from the {@link Prefs} and the rules on loading.
+ */
+@Log4j2
+final class MarcConfigurationSnapshot {
+
+    private static final int MAGIC = 0x4d415243;
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".bin";
+
+    /**
+     * the classes that write and read the snapshot, their bytecode changes with the layout of the snapshot
+     */
+    private static final List<Class<?>> SCHEMA_CLASSES = List.of(MarcConfigurationSnapshot.class, MetadataConfigurationItem.class,
+            DocstructConfigurationItem.class, GroupConfigurationItem.class, SubfieldGroupConfigurationItem.class, MarcField.class);
+
+    private static final String SCHEMA = computeSchema();
+
+    private MarcConfigurationSnapshot() {
+    }
+
+    /**
+     * Reads the snapshot of the ruleset file, or compiles the configuration and writes the snapshot. A snapshot that can't be read or written is
+     * logged and the configuration is compiled.
+     *
+     * @param prefs the ruleset, loaded from the file
+     * @param rulesetFile the ruleset file
+     * @param directory the snapshot directory
+     * @return the configuration
+     * @throws IOException if the ruleset file can't be read
+     */
+    static MarcMappingConfiguration load(Prefs prefs, Path rulesetFile, Path directory) throws IOException {
+        String key = computeKey(rulesetFile);
+        Path file = directory.resolve(key + SUFFIX);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return read(in, prefs, key);
+        } catch (NoSuchFileException e) {
+            // not compiled yet
+        } catch (IOException e) {
+            log.warn("Can't read configuration snapshot " + file, e);
+        }
+
+        MarcMappingConfiguration configuration = new MarcMappingConfiguration(prefs);
+        Path temp = null;
+        try {
+            Files.createDirectories(directory);
+            temp = Files.createTempFile(directory, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                write(configuration, out, key);
+            }
+            // readers in other processes never see incomplete snapshots
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } catch (IOException e) {
+            log.warn("Can't write configuration snapshot " + file, e);
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    log.error(e);
+                }
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * @param rulesetFile the ruleset file
+     * @return SHA-256 hash of the file content and the snapshot schema
+     * @throws IOException if the file can't be read
+     */
+    static String computeKey(Path rulesetFile) throws IOException {
+        return MarcResultCache.hash(SCHEMA + ":" + new String(Files.readAllBytes(rulesetFile), StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * The format version alone misses changes of the item layouts that forgot to increase it. The implementation version is only known in
+     * the jar, the bytecode of the snapshot classes covers builds from the IDE and snapshots.
+     *
+     * @return the format version, the implementation version and a hash of the snapshot classes
+     */
+    private static String computeSchema() {
+        StringBuilder schema = new StringBuilder();
+        schema.append(FORMAT_VERSION).append(':').append(MarcConfigurationSnapshot.class.getPackage().getImplementationVersion());
+        for (Class<?> type : SCHEMA_CLASSES) {
+            schema.append(':').append(type.getSimpleName());
+            try (InputStream in = type.getResourceAsStream(type.getSimpleName() + ".class")) {
+                if (in != null) {
+                    schema.append('=').append(MarcResultCache.hash(new String(in.readAllBytes(), StandardCharsets.ISO_8859_1)));
+                }
+            } catch (IOException e) {
+                log.error(e);
+            }
+        }
+        return schema.toString();
+    }
+
+    static void write(MarcMappingConfiguration configuration, DataOutput out, String key) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        writeString(out, key);
+        writeString(out, configuration.getFingerprint());
+        out.writeBoolean(configuration.isMarcFound());
+        writeMetadataItems(out, configuration.getMetadataList());
+        writeMetadataItems(out, configuration.getPersonList());
+        writeMetadataItems(out, configuration.getCorporationList());
+        out.writeInt(configuration.getDocstructList().size());
+        for (DocstructConfigurationItem item : configuration.getDocstructList()) {
+            item.write(out);
+        }
+        out.writeInt(configuration.getGroupList().size());
+        for (GroupConfigurationItem item : configuration.getGroupList()) {
+            item.write(out);
+        }
+        out.writeInt(configuration.getSubfieldGroupList().size());
+        for (SubfieldGroupConfigurationItem item : configuration.getSubfieldGroupList()) {
+            item.write(out);
+        }
+    }
+
+    static MarcMappingConfiguration read(DataInput in, Prefs prefs, String key) throws IOException {
+        long start = System.nanoTime();
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a configuration snapshot");
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        if (!key.equals(readString(in))) {
+            throw new IOException("Snapshot belongs to another ruleset");
+        }
+        MarcMappingConfiguration.Items items = new MarcMappingConfiguration.Items();
+        items.fingerprint = readString(in);
+        items.marcFound = in.readBoolean();
+        items.metadata.addAll(readMetadataItems(in, prefs));
+        items.persons.addAll(readMetadataItems(in, prefs));
+        items.corporations.addAll(readMetadataItems(in, prefs));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            items.docstructs.add(new DocstructConfigurationItem(in, prefs));
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            items.groups.add(new GroupConfigurationItem(in, prefs));
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            items.subfieldGroups.add(new SubfieldGroupConfigurationItem(in, prefs));
+        }
+        return new MarcMappingConfiguration(start, items);
+    }
+
+    static void writeMetadataItems(DataOutput out, List<MetadataConfigurationItem> items) throws IOException {
+        out.writeInt(items.size());
+        for (MetadataConfigurationItem item : items) {
+            item.write(out);
+        }
+    }
+
+    static List<MetadataConfigurationItem> readMetadataItems(DataInput in, Prefs prefs) throws IOException {
+        int count = in.readInt();
+        List<MetadataConfigurationItem> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(new MetadataConfigurationItem(in, prefs));
+        }
+        return Collections.unmodifiableList(items);
+    }
+
+    static void writeStrings(DataOutput out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    static List<String> readStrings(DataInput in) throws IOException {
+        int count = in.readInt();
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
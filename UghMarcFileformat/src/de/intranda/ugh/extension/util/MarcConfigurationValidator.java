@@ -0,0 +1,243 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+
+import de.intranda.ugh.extension.MarcFileformat;
+
+/**
+ * Checks the compiled items of a configuration once, so broken rules are found before the first record is imported instead of failing or being
+ * skipped silently for each record.
+ */
+final class MarcConfigurationValidator {
+
+    private static final Pattern TAG = Pattern.compile("[0-9A-Za-z]{3}");
+    private static final String ANY = "any";
+
+    private final List<String> errors = new ArrayList<>();
+    private final List<String> warnings = new ArrayList<>();
+
+    private int ruleCount;
+
+    List<String> getErrors() {
+        return errors;
+    }
+
+    List<String> getWarnings() {
+        return warnings;
+    }
+
+    int getRuleCount() {
+        return ruleCount;
+    }
+
+    void validateMetadata(List<MetadataConfigurationItem> items, String parent) {
+        for (MetadataConfigurationItem item : items) {
+            String location = location(parent, MarcFileformat.PREFS_MARC_METADATA_NAME, item.getInternalMetadataName());
+            validateItem(item, location);
+            boolean subfields = false;
+            for (MarcField field : item.getFieldList()) {
+                subfields |= !field.getFieldSubTags().isEmpty();
+            }
+            if (!item.getFieldList().isEmpty() && !subfields) {
+                warnings.add(location + ": no <" + MarcFileformat.PREFS_MARC_SUB_TAG + "> configured, no value is imported");
+            }
+        }
+    }
+
+    void validatePersons(List<MetadataConfigurationItem> items, String parent) {
+        for (MetadataConfigurationItem item : items) {
+            String location = location(parent, MarcFileformat.PREFS_MARC_PERSON_NAME, item.getInternalMetadataName());
+            validateItem(item, location);
+            boolean names = false;
+            for (MarcField field : item.getFieldList()) {
+                names |= !field.getFirstname().isEmpty() || !field.getLastname().isEmpty() || !field.getExpansion().isEmpty();
+            }
+            if (!item.getFieldList().isEmpty() && !names) {
+                warnings.add(location + ": no <" + MarcFileformat.PREFS_MARC_FIRSTNAME + ">, <" + MarcFileformat.PREFS_MARC_LASTNAME + "> or <"
+                        + MarcFileformat.PREFS_MARC_EXPANSION + "> configured, no person is imported");
+            }
+        }
+    }
+
+    void validateCorporations(List<MetadataConfigurationItem> items, String parent) {
+        for (MetadataConfigurationItem item : items) {
+            String location = location(parent, MarcFileformat.PREFS_MARC_CORPORATE_NAME, item.getInternalMetadataName());
+            validateItem(item, location);
+            boolean mainName = false;
+            for (MarcField field : item.getFieldList()) {
+                mainName |= !field.getMainName().isEmpty();
+            }
+            if (!item.getFieldList().isEmpty() && !mainName) {
+                warnings.add(location + ": no <fieldMainName> configured, no corporation is imported");
+            }
+        }
+    }
+
+    void validateGroup(GroupConfigurationItem item) {
+        String location = location(null, MarcFileformat.PREFS_MARC_GROUP_NAME, item.getGroupName());
+        validateGroupType(item.getGroupName(), item.getGroupType() != null, location);
+        validateMembers(item.getMetadataList(), item.getPersonList(), item.getCorporationList(), location);
+    }
+
+    void validateSubfieldGroup(SubfieldGroupConfigurationItem item) {
+        String location = location(null, "SubfieldGroup", item.getGroupName());
+        validateGroupType(item.getGroupName(), item.getGroupType() != null, location);
+        validateTag(item.getFieldMainTag(), location);
+        validateIndicator(item.getFieldInd1(), MarcFileformat.PREFS_MARC_INDICATOR_1, location);
+        validateIndicator(item.getFieldInd2(), MarcFileformat.PREFS_MARC_INDICATOR_2, location);
+        validateMembers(item.getMetadataList(), item.getPersonList(), item.getCorporationList(), location);
+    }
+
+    void validateDocstruct(DocstructConfigurationItem item) {
+        String location = location(null, MarcFileformat.PREFS_MARC_DOCTSRUCT_NAME, item.getInternalName());
+        if (StringUtils.isBlank(item.getInternalName())) {
+            errors.add(location + ": missing <" + MarcFileformat.PREFS_MARC_INTERNAL_METADATA_NAME + ">");
+        } else if (item.getDocStructType() == null) {
+            warnings.add(location + ": DocStruct type is not defined in the ruleset, matching records get no DocStruct");
+        }
+        validatePosition(item.getLeader6(), MarcFileformat.PREFS_MARC_LEADER_6, location);
+        validatePosition(item.getLeader7(), MarcFileformat.PREFS_MARC_LEADER_7, location);
+        validatePosition(item.getLeader19(), MarcFileformat.PREFS_MARC_LEADER_19, location);
+        validatePosition(item.getField007_0(), MarcFileformat.PREFS_MARC_CONTROLFIELD_007_0, location);
+        validatePosition(item.getField007_1(), MarcFileformat.PREFS_MARC_CONTROLFIELD_007_1, location);
+        validatePosition(item.getField008_21(), MarcFileformat.PREFS_MARC_CONTROLFIELD_008_21, location);
+        if (StringUtils.isEmpty(item.getLeader6()) && StringUtils.isEmpty(item.getLeader7()) && StringUtils.isBlank(item.getLeader19())
+                && StringUtils.isBlank(item.getField007_0()) && StringUtils.isBlank(item.getField007_1())
+                && StringUtils.isBlank(item.getField008_21())) {
+            warnings.add(location + ": no leader or controlfield position configured, the rule matches every record");
+        }
+    }
+
+    private void validateMembers(List<MetadataConfigurationItem> metadata, List<MetadataConfigurationItem> persons,
+            List<MetadataConfigurationItem> corporations, String location) {
+        validateMetadata(metadata, location);
+        validatePersons(persons, location);
+        validateCorporations(corporations, location);
+    }
+
+    private void validateGroupType(String groupName, boolean defined, String location) {
+        if (StringUtils.isBlank(groupName)) {
+            errors.add(location + ": missing <" + MarcFileformat.PREFS_MARC_INTERNAL_METADATA_NAME + ">");
+        } else if (!defined) {
+            warnings.add(location + ": metadata group type is not defined in the ruleset, the group is ignored");
+        }
+    }
+
+    private void validateItem(MetadataConfigurationItem item, String location) {
+        ruleCount++;
+        if (StringUtils.isBlank(item.getInternalMetadataName())) {
+            errors.add(location + ": missing <" + MarcFileformat.PREFS_MARC_INTERNAL_METADATA_NAME + ">");
+        } else if (item.getMetadataType() == null) {
+            warnings.add(location + ": metadata type is not defined in the ruleset, the rule is ignored");
+        }
+        if (item.getFieldList().isEmpty()) {
+            warnings.add(location + ": no <" + MarcFileformat.PREFS_MARC_FIELD_NAME + "> configured, the rule is ignored");
+        }
+        for (MarcField field : item.getFieldList()) {
+            validateTag(field.getFieldMainTag(), location);
+            validateIndicator(field.getFieldInd1(), MarcFileformat.PREFS_MARC_INDICATOR_1, location);
+            validateIndicator(field.getFieldInd2(), MarcFileformat.PREFS_MARC_INDICATOR_2, location);
+            validateCodes(field.getFieldSubTags(), MarcFileformat.PREFS_MARC_SUB_TAG, location);
+            validateCodes(field.getFirstname(), MarcFileformat.PREFS_MARC_FIRSTNAME, location);
+            validateCodes(field.getLastname(), MarcFileformat.PREFS_MARC_LASTNAME, location);
+            validateCodes(field.getExpansion(), MarcFileformat.PREFS_MARC_EXPANSION, location);
+            validateCodes(field.getMainName(), "fieldMainName", location);
+            validateCodes(field.getSubName(), "fieldSubName", location);
+            validateCodes(field.getPartName(), "fieldPartName", location);
+        }
+
+        if (StringUtils.isNotBlank(item.getConditionField())) {
+            validateCode(item.getConditionField(), MarcFileformat.PREFS_MARC_CONDITION_FIELD, location);
+            if (StringUtils.isBlank(item.getConditionValue())) {
+                warnings.add(location + ": <" + MarcFileformat.PREFS_MARC_CONDITION_FIELD + "> without <" + MarcFileformat.PREFS_MARC_CONDITION_VALUE
+                        + ">, the condition is ignored");
+            }
+        }
+        if (StringUtils.isNotBlank(item.getConditionValue()) && item.getConditionPattern() == null) {
+            errors.add(location + ": invalid regular expression in <" + MarcFileformat.PREFS_MARC_CONDITION_VALUE + "> '" + item.getConditionValue()
+                    + "'");
+        }
+        if (StringUtils.isNotBlank(item.getIdentifierField())) {
+            validateCode(item.getIdentifierField(), MarcFileformat.PREFS_MARC_IDENTIFIER, location);
+        }
+        if (StringUtils.isNotBlank(item.getIdentifierConditionField()) && item.getIdentifierConditionPattern() == null) {
+            errors.add(location + ": invalid regular expression in <" + MarcFileformat.PREFS_MARC_IDENTIFIER_CONDITION + "> '"
+                    + item.getIdentifierConditionField() + "'");
+        }
+        if (StringUtils.isNotBlank(item.getFieldReplacement()) && item.getFieldReplacementRule() == null) {
+            errors.add(location + ": invalid regular expression in <" + MarcFileformat.PREFS_MARC_VALUE_REPLACEMENT + "> '"
+                    + item.getFieldReplacement() + "'");
+        }
+        if (StringUtils.isNotBlank(item.getIdentifierReplacement()) && item.getIdentifierReplacementRule() == null) {
+            errors.add(location + ": invalid regular expression in <" + MarcFileformat.PREFS_MARC_IDENTIFIER_REPLACEMENT + "> '"
+                    + item.getIdentifierReplacement() + "'");
+        }
+    }
+
+    private void validateTag(String tag, String location) {
+        if (tag == null || !TAG.matcher(tag).matches()) {
+            errors.add(location + ": invalid <" + MarcFileformat.PREFS_MARC_MAIN_TAG + "> '" + StringUtils.defaultString(tag) + "'");
+        }
+    }
+
+    private void validateIndicator(String indicator, String elementName, String location) {
+        // a missing or blank indicator matches datafields with a blank indicator
+        if (indicator != null && !ANY.equals(indicator) && indicator.trim().length() > 1) {
+            errors.add(location + ": invalid <" + elementName + "> '" + indicator + "', use a single character or '" + ANY + "'");
+        }
+    }
+
+    private void validateCodes(List<String> codes, String elementName, String location) {
+        for (String code : codes) {
+            validateCode(code, elementName, location);
+        }
+    }
+
+    private void validateCode(String code, String elementName, String location) {
+        if (code == null || code.isBlank()) {
+            errors.add(location + ": invalid subfield code in <" + elementName + "> '" + StringUtils.defaultString(code) + "'");
+        } else if (code.length() != 1) {
+            // MARC only knows single character codes, but the code is still compared as string
+            warnings.add(location + ": subfield code in <" + elementName + "> '" + code + "' is not a single character, it only matches equal codes");
+        }
+    }
+
+    private void validatePosition(String value, String elementName, String location) {
+        // only the first character is compared
+        if (value != null && value.length() > 1) {
+            errors.add(location + ": invalid <" + elementName + "> '" + value + "', use a single character");
+        }
+    }
+
+    private static String location(String parent, String elementName, String name) {
+        String location = "<" + elementName + "> " + StringUtils.defaultIfBlank(name, "(unnamed)");
+        return parent == null ? location : parent + " / " + location;
+    }
+}
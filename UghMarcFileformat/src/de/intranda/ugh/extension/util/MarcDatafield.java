@@ -0,0 +1,219 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import de.intranda.ugh.extension.MarcFileformat;
+import lombok.Getter;
+
+/**
+ * Immutable datafield of a marc record. The indicators are stored trimmed, a missing indicator is stored as empty string. Subfield codes and
+ * values are kept in two parallel arrays in document order. The codes that occur in the datafield are indexed in a bit set, see
+ * {@link SubfieldCodes#containsAny(MarcDatafield)}.
+ */
+public final class MarcDatafield {
+
+    private static final String[] EMPTY = new String[0];
+
+    @Getter
+    private final String tag;
+    @Getter
+    private final String ind1;
+    @Getter
+    private final String ind2;
+
+    private final String[] codes;
+    private final String[] values;
+    // number of subfields in the source, including subfields a filter skipped
+    private final int sourceSubfieldCount;
+
+    // bits of the single character codes 0-63 and 64-127
+    private final long codeBitsLow;
+    private final long codeBitsHigh;
+    // true, if any code is not a single ASCII character
+    private final boolean otherCodes;
+
+    private MarcDatafield(String tag, String ind1, String ind2, String[] codes, String[] values, int sourceSubfieldCount) {
+        this.tag = tag;
+        this.ind1 = ind1 == null ? "" : ind1.trim();
+        this.ind2 = ind2 == null ? "" : ind2.trim();
+        this.codes = codes;
+        this.values = values;
+        this.sourceSubfieldCount = sourceSubfieldCount;
+
+        long low = 0L;
+        long high = 0L;
+        boolean other = false;
+        for (String code : codes) {
+            if (code != null && code.length() == 1 && code.charAt(0) < 64) {
+                low |= 1L << code.charAt(0);
+            } else if (code != null && code.length() == 1 && code.charAt(0) < 128) {
+                high |= 1L << (code.charAt(0) - 64);
+            } else if (code != null) {
+                other = true;
+            }
+        }
+        codeBitsLow = low;
+        codeBitsHigh = high;
+        otherCodes = other;
+    }
+
+    public int getSubfieldCount() {
+        return codes.length;
+    }
+
+    /**
+     * @return the number of subfields in the source record. Differs from {@link #getSubfieldCount()}, if a {@link MarcFieldFilter} skipped
+     *         subfields while reading.
+     */
+    public int getSourceSubfieldCount() {
+        return sourceSubfieldCount;
+    }
+
+    /**
+     * @return the code of the subfield at the given position, can be null if the subfield has no code attribute
+     */
+    public String getCode(int index) {
+        return codes[index];
+    }
+
+    /**
+     * @return the value of the subfield at the given position, null if the subfield is empty
+     */
+    public String getValue(int index) {
+        return values[index];
+    }
+
+    long getCodeBitsLow() {
+        return codeBitsLow;
+    }
+
+    long getCodeBitsHigh() {
+        return codeBitsHigh;
+    }
+
+    boolean hasOtherCodes() {
+        return otherCodes;
+    }
+
+    /**
+     * Creates a datafield from a <code>datafield</code> element. Every child element is treated as subfield.
+     *
+     * @param node the datafield element
+     * @return the datafield
+     */
+    public static MarcDatafield fromNode(Node node) {
+        NamedNodeMap attributes = node.getAttributes();
+        Builder builder = new Builder(getAttribute(attributes, "tag"), getAttribute(attributes, "ind1"), getAttribute(attributes, "ind2"));
+        NodeList subfields = node.getChildNodes();
+        for (int i = 0; i < subfields.getLength(); i++) {
+            Node subfield = subfields.item(i);
+            if (subfield.getNodeType() == Node.ELEMENT_NODE) {
+                builder.addSubfield(getAttribute(subfield.getAttributes(), "code"), MarcFileformat.readTextNode(subfield));
+            }
+        }
+        return builder.build();
+    }
+
+    public static List<MarcDatafield> fromNodes(List<Node> nodes) {
+        List<MarcDatafield> datafields = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            datafields.add(fromNode(node));
+        }
+        return datafields;
+    }
+
+    static String getAttribute(NamedNodeMap attributes, String name) {
+        if (attributes == null) {
+            return null;
+        }
+        Node attribute = attributes.getNamedItem(name);
+        return attribute == null ? null : attribute.getNodeValue();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(tag).append(' ').append(ind1.isEmpty() ? "_" : ind1).append(ind2.isEmpty() ? "_" : ind2);
+        for (int i = 0; i < codes.length; i++) {
+            sb.append(" $").append(codes[i]).append(' ').append(values[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Collects the subfields of a datafield, independent of the source format
+     */
+    public static class Builder {
+
+        private final String tag;
+        private final String ind1;
+        private final String ind2;
+
+        private String[] codes = EMPTY;
+        private String[] values = EMPTY;
+        private int size;
+        private int skipped;
+
+        public Builder(String tag, String ind1, String ind2) {
+            this.tag = tag;
+            this.ind1 = ind1;
+            this.ind2 = ind2;
+        }
+
+        public Builder addSubfield(String code, String value) {
+            if (size == codes.length) {
+                int capacity = Math.max(4, size * 2);
+                codes = Arrays.copyOf(codes, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            codes[size] = code;
+            values[size] = value;
+            size++;
+            return this;
+        }
+
+        /**
+         * Counts a subfield of the source that is not added, see {@link MarcDatafield#getSourceSubfieldCount()}
+         */
+        public Builder skipSubfield() {
+            skipped++;
+            return this;
+        }
+
+        public MarcDatafield build() {
+            if (size == 0) {
+                return new MarcDatafield(tag, ind1, ind2, EMPTY, EMPTY, skipped);
+            }
+            return new MarcDatafield(tag, ind1, ind2, Arrays.copyOf(codes, size), Arrays.copyOf(values, size), size + skipped);
+        }
+    }
+}
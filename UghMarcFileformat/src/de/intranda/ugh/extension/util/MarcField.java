@@ -1,6 +1,10 @@
 package de.intranda.ugh.extension.util;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.w3c.dom.Node;
@@ -30,27 +34,51 @@ import de.intranda.ugh.extension.MarcFileformat;
  * 
  * This copyright notice MUST APPEAR in all copies of this file!
  ******************************************************************************/
-import lombok.Data;
-import lombok.NoArgsConstructor;
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
 
-@NoArgsConstructor
-public @Data class MarcField {
+/**
+ * A configured datafield of a metadata, person or corporate rule. The field is immutable, it is shared by all threads using the same
+ * {@link MarcMappingConfiguration}.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public class MarcField {
 
-    private String fieldMainTag = "";
-    private List<String> fieldSubTags = new ArrayList<>();
+    private final String fieldMainTag;
+    private final List<String> fieldSubTags;
 
-    private List<String> firstname = new ArrayList<>();
-    private List<String> lastname = new ArrayList<>();
-    private List<String> expansion = new ArrayList<>();
+    private final List<String> firstname;
+    private final List<String> lastname;
+    private final List<String> expansion;
 
-    private List<String> mainName = new ArrayList<>();
-    private List<String> subName = new ArrayList<>();
-    private List<String> partName = new ArrayList<>();
+    private final List<String> mainName;
+    private final List<String> subName;
+    private final List<String> partName;
 
-    private String fieldInd1 = "any";
-    private String fieldInd2 = "any";
+    private final String fieldInd1;
+    private final String fieldInd2;
+
+    // compiled subfield codes
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    @Getter(AccessLevel.NONE)
+    private final Codes compiledCodes;
 
     public MarcField(Node node) {
+        String mainTag = "";
+        String ind1 = "any";
+        String ind2 = "any";
+        List<String> subTags = new ArrayList<>();
+        List<String> firstnames = new ArrayList<>();
+        List<String> lastnames = new ArrayList<>();
+        List<String> expansions = new ArrayList<>();
+        List<String> mainNames = new ArrayList<>();
+        List<String> subNames = new ArrayList<>();
+        List<String> partNames = new ArrayList<>();
         NodeList children = node.getChildNodes();
 
         for (int i = 0; i < children.getLength(); i++) {
@@ -58,31 +86,158 @@ public @Data class MarcField {
 
             if (n.getNodeType() == Node.ELEMENT_NODE) {
                 if (MarcFileformat.PREFS_MARC_MAIN_TAG.equalsIgnoreCase(n.getNodeName())) {
-                    fieldMainTag = MarcFileformat.readTextNode(n);
+                    mainTag = MarcFileformat.readTextNode(n);
                 } else if (MarcFileformat.PREFS_MARC_SUB_TAG.equalsIgnoreCase(n.getNodeName())) {
-                    fieldSubTags.add(MarcFileformat.readTextNode(n));
+                    subTags.add(MarcFileformat.readTextNode(n));
                 } else if (MarcFileformat.PREFS_MARC_INDICATOR_1.equalsIgnoreCase(n.getNodeName())) {
-                    fieldInd1 = MarcFileformat.readTextNode(n);
+                    ind1 = MarcFileformat.readTextNode(n);
                 } else if (MarcFileformat.PREFS_MARC_INDICATOR_2.equalsIgnoreCase(n.getNodeName())) {
-                    fieldInd2 = MarcFileformat.readTextNode(n);
+                    ind2 = MarcFileformat.readTextNode(n);
                 } else if (MarcFileformat.PREFS_MARC_FIRSTNAME.equalsIgnoreCase(n.getNodeName())) {
-                    firstname.add(MarcFileformat.readTextNode(n));
+                    firstnames.add(MarcFileformat.readTextNode(n));
                 } else if (MarcFileformat.PREFS_MARC_LASTNAME.equalsIgnoreCase(n.getNodeName())) {
-                    lastname.add(MarcFileformat.readTextNode(n));
+                    lastnames.add(MarcFileformat.readTextNode(n));
                 } else if (MarcFileformat.PREFS_MARC_EXPANSION.equalsIgnoreCase(n.getNodeName())) {
-                    expansion.add(MarcFileformat.readTextNode(n));
+                    expansions.add(MarcFileformat.readTextNode(n));
                 }
 
                 else if ("fieldMainName".equalsIgnoreCase(n.getNodeName())) {
-                    mainName.add(MarcFileformat.readTextNode(n));
+                    mainNames.add(MarcFileformat.readTextNode(n));
                 } else if ("fieldSubName".equalsIgnoreCase(n.getNodeName())) {
-                    subName.add(MarcFileformat.readTextNode(n));
+                    subNames.add(MarcFileformat.readTextNode(n));
                 } else if ("fieldPartName".equalsIgnoreCase(n.getNodeName())) {
-                    partName.add(MarcFileformat.readTextNode(n));
+                    partNames.add(MarcFileformat.readTextNode(n));
                 }
             }
         }
 
+        fieldMainTag = mainTag;
+        fieldSubTags = Collections.unmodifiableList(subTags);
+        firstname = Collections.unmodifiableList(firstnames);
+        lastname = Collections.unmodifiableList(lastnames);
+        expansion = Collections.unmodifiableList(expansions);
+        mainName = Collections.unmodifiableList(mainNames);
+        subName = Collections.unmodifiableList(subNames);
+        partName = Collections.unmodifiableList(partNames);
+        fieldInd1 = ind1;
+        fieldInd2 = ind2;
+        compiledCodes = new Codes(this);
+    }
+
+    private MarcField(String fieldMainTag, List<String> fieldSubTags, List<String> firstname, List<String> lastname, List<String> expansion,
+            List<String> mainName, List<String> subName, List<String> partName, String fieldInd1, String fieldInd2) {
+        this.fieldMainTag = fieldMainTag;
+        this.fieldSubTags = Collections.unmodifiableList(fieldSubTags);
+        this.firstname = Collections.unmodifiableList(firstname);
+        this.lastname = Collections.unmodifiableList(lastname);
+        this.expansion = Collections.unmodifiableList(expansion);
+        this.mainName = Collections.unmodifiableList(mainName);
+        this.subName = Collections.unmodifiableList(subName);
+        this.partName = Collections.unmodifiableList(partName);
+        this.fieldInd1 = fieldInd1;
+        this.fieldInd2 = fieldInd2;
+        compiledCodes = new Codes(this);
+    }
+
+    /**
+     * Creates a copy of this field with another main tag and indicators, the subfield codes are kept
+     *
+     * @param mainTag the main tag of the copy
+     * @param ind1 the first indicator of the copy
+     * @param ind2 the second indicator of the copy
+     * @return the copy
+     */
+    public MarcField withMainTag(String mainTag, String ind1, String ind2) {
+        return new MarcField(mainTag, fieldSubTags, firstname, lastname, expansion, mainName, subName, partName, ind1, ind2);
+    }
+
+    /**
+     * Reads a field from a configuration snapshot, see {@link #write(DataOutput)}
+     */
+    static MarcField read(DataInput in) throws IOException {
+        String mainTag = MarcConfigurationSnapshot.readString(in);
+        List<String> subTags = MarcConfigurationSnapshot.readStrings(in);
+        List<String> firstnames = MarcConfigurationSnapshot.readStrings(in);
+        List<String> lastnames = MarcConfigurationSnapshot.readStrings(in);
+        List<String> expansions = MarcConfigurationSnapshot.readStrings(in);
+        List<String> mainNames = MarcConfigurationSnapshot.readStrings(in);
+        List<String> subNames = MarcConfigurationSnapshot.readStrings(in);
+        List<String> partNames = MarcConfigurationSnapshot.readStrings(in);
+        String ind1 = MarcConfigurationSnapshot.readString(in);
+        String ind2 = MarcConfigurationSnapshot.readString(in);
+        return new MarcField(mainTag, subTags, firstnames, lastnames, expansions, mainNames, subNames, partNames, ind1, ind2);
     }
 
+    void write(DataOutput out) throws IOException {
+        MarcConfigurationSnapshot.writeString(out, fieldMainTag);
+        MarcConfigurationSnapshot.writeStrings(out, fieldSubTags);
+        MarcConfigurationSnapshot.writeStrings(out, firstname);
+        MarcConfigurationSnapshot.writeStrings(out, lastname);
+        MarcConfigurationSnapshot.writeStrings(out, expansion);
+        MarcConfigurationSnapshot.writeStrings(out, mainName);
+        MarcConfigurationSnapshot.writeStrings(out, subName);
+        MarcConfigurationSnapshot.writeStrings(out, partName);
+        MarcConfigurationSnapshot.writeString(out, fieldInd1);
+        MarcConfigurationSnapshot.writeString(out, fieldInd2);
+    }
+
+    /**
+     * @return the configured subfield codes, compiled for constant time lookups
+     */
+    public Codes getCodes() {
+        return compiledCodes;
+    }
+
+    /**
+     * The subfield codes of a field as {@link SubfieldCodes}
+     */
+    public static final class Codes {
+
+        private final SubfieldCodes subTags;
+        private final SubfieldCodes firstname;
+        private final SubfieldCodes lastname;
+        // only the first configured expansion is used
+        private final SubfieldCodes expansion;
+        private final SubfieldCodes mainName;
+        private final SubfieldCodes subName;
+        private final SubfieldCodes partName;
+
+        private Codes(MarcField field) {
+            subTags = SubfieldCodes.of(field.fieldSubTags);
+            firstname = SubfieldCodes.of(field.firstname);
+            lastname = SubfieldCodes.of(field.lastname);
+            expansion = field.expansion.isEmpty() ? SubfieldCodes.NONE : SubfieldCodes.of(field.expansion.get(0));
+            mainName = SubfieldCodes.of(field.mainName);
+            subName = SubfieldCodes.of(field.subName);
+            partName = SubfieldCodes.of(field.partName);
+        }
+
+        public SubfieldCodes getSubTags() {
+            return subTags;
+        }
+
+        public SubfieldCodes getFirstname() {
+            return firstname;
+        }
+
+        public SubfieldCodes getLastname() {
+            return lastname;
+        }
+
+        public SubfieldCodes getExpansion() {
+            return expansion;
+        }
+
+        public SubfieldCodes getMainName() {
+            return mainName;
+        }
+
+        public SubfieldCodes getSubName() {
+            return subName;
+        }
+
+        public SubfieldCodes getPartName() {
+            return partName;
+        }
+    }
 }
@@ -0,0 +1,92 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The datafields and subfields a mapping configuration actually reads. Readers can use the filter to skip everything else, the result of the
+ * mapping doesn't change.
+ */
+public final class MarcFieldFilter {
+
+    private final Map<String, Set<String>> codesByTag = new HashMap<>();
+
+    /**
+     * Collects the tags and subfield codes used by the given configuration items
+     *
+     * @param itemLists the lists of metadata, person and corporate configurations, including the members of groups
+     * @param datafieldTags additional datafields that are used, without any subfields
+     */
+    public MarcFieldFilter(Collection<List<MetadataConfigurationItem>> itemLists, Collection<String> datafieldTags) {
+        for (String tag : datafieldTags) {
+            codesByTag.computeIfAbsent(tag, k -> new HashSet<>());
+        }
+        for (List<MetadataConfigurationItem> items : itemLists) {
+            for (MetadataConfigurationItem item : items) {
+                for (MarcField field : item.getFieldList()) {
+                    Set<String> codes = codesByTag.computeIfAbsent(field.getFieldMainTag(), k -> new HashSet<>());
+                    codes.addAll(field.getFieldSubTags());
+                    codes.addAll(field.getFirstname());
+                    codes.addAll(field.getLastname());
+                    codes.addAll(field.getExpansion());
+                    codes.addAll(field.getMainName());
+                    codes.addAll(field.getSubName());
+                    codes.addAll(field.getPartName());
+                    if (StringUtils.isNotBlank(item.getConditionField())) {
+                        codes.add(item.getConditionField());
+                    }
+                    if (StringUtils.isNotBlank(item.getIdentifierField())) {
+                        codes.add(item.getIdentifierField());
+                    }
+                }
+            }
+        }
+        codesByTag.replaceAll((tag, codes) -> Collections.unmodifiableSet(codes));
+    }
+
+    /**
+     * @param tag the tag of a datafield
+     * @return true, if any configured field uses the datafield
+     */
+    public boolean acceptsDatafield(String tag) {
+        return codesByTag.containsKey(tag);
+    }
+
+    /**
+     * @param tag the tag of a datafield
+     * @return the codes of the used subfields, null if the datafield isn't used at all
+     */
+    public Set<String> getSubfieldCodes(String tag) {
+        return codesByTag.get(tag);
+    }
+}
@@ -0,0 +1,98 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+
+/**
+ * Receives timings and counts of a marc import. The import calls the instrumentation after each phase of a record and after the evaluation of
+ * each configured metadata, person or corporate rule.
+ *
+ * Implementations must be thread safe, one instance can be used by several imports at the same time. If {@link #isEnabled()} returns false,
+ * no timings are taken and no other method gets called.
+ */
+public interface MarcImportInstrumentation {
+
+    /**
+     * Instrumentation that doesn't record anything
+     */
+    MarcImportInstrumentation NOOP = new MarcImportInstrumentation() {
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void phaseCompleted(Phase phase, long durationNanos, int createdCount) {
+            // nothing to record
+        }
+
+        @Override
+        public void ruleEvaluated(MetadataConfigurationItem item, long durationNanos, int matchedFieldCount, int createdCount) {
+            // nothing to record
+        }
+    };
+
+    /**
+     * The phases of a record import
+     */
+    enum Phase {
+        /** reading a record from the file */
+        PARSE,
+        /** detecting the docstruct type */
+        DOCSTRUCT,
+        /** mapping the configured metadata */
+        METADATA,
+        /** mapping the configured persons */
+        PERSONS,
+        /** mapping the configured corporations */
+        CORPORATIONS,
+        /** mapping the configured groups and subfield groups */
+        GROUPS
+    }
+
+    /**
+     * @return true, if the import should take timings and call this instrumentation
+     */
+    boolean isEnabled();
+
+    /**
+     * Called after a phase of a record import finished
+     *
+     * @param phase the phase
+     * @param durationNanos the duration of the phase in nanoseconds
+     * @param createdCount the number of objects created in this phase, like records, docstructs, metadata, persons, corporations or groups
+     */
+    void phaseCompleted(Phase phase, long durationNanos, int createdCount);
+
+    /**
+     * Called after a configured metadata, person or corporate was mapped for a record. Rules that are part of a group are reported as well.
+     *
+     * @param item the configuration of the rule
+     * @param durationNanos the duration of the evaluation in nanoseconds
+     * @param matchedFieldCount the number of datafields that matched the configured fields of the rule
+     * @param createdCount the number of created {@link ugh.dl.Metadata}, {@link ugh.dl.Person} or {@link ugh.dl.Corporate} objects
+     */
+    void ruleEvaluated(MetadataConfigurationItem item, long durationNanos, int matchedFieldCount, int createdCount);
+}
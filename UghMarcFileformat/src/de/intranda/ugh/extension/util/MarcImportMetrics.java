@@ -0,0 +1,252 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the timings of marc imports in memory. Durations are kept in histograms with power of two buckets, so recording a value never
+ * allocates and the percentiles are accurate up to a factor of two.
+ *
+ * The metrics can be shared by any number of imports:
+ *
+ * <pre>
+ * MarcImportMetrics metrics = new MarcImportMetrics();
+ * fileformat.setInstrumentation(metrics);
+ * ...
+ * log.info(metrics.getSummary());
+ * </pre>
+ */
+public class MarcImportMetrics implements MarcImportInstrumentation {
+
+    private final Map<Phase, Histogram> phases = new EnumMap<>(Phase.class);
+    private final Map<Phase, LongAdder> createdObjects = new EnumMap<>(Phase.class);
+
+    // the configuration items belong to the cached configuration, so identity is sufficient
+    private final Map<MetadataConfigurationItem, RuleStatistics> rules = new ConcurrentHashMap<>();
+
+    public MarcImportMetrics() {
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new Histogram());
+            createdObjects.put(phase, new LongAdder());
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void phaseCompleted(Phase phase, long durationNanos, int createdCount) {
+        phases.get(phase).record(durationNanos);
+        createdObjects.get(phase).add(createdCount);
+    }
+
+    @Override
+    public void ruleEvaluated(MetadataConfigurationItem item, long durationNanos, int matchedFieldCount, int createdCount) {
+        RuleStatistics statistics = rules.get(item);
+        if (statistics == null) {
+            statistics = rules.computeIfAbsent(item, RuleStatistics::new);
+        }
+        statistics.durations.record(durationNanos);
+        statistics.matchedFields.add(matchedFieldCount);
+        statistics.createdObjects.add(createdCount);
+    }
+
+    /**
+     * @param phase the phase
+     * @return the durations of the phase
+     */
+    public Histogram getHistogram(Phase phase) {
+        return phases.get(phase);
+    }
+
+    /**
+     * @param phase the phase
+     * @return the number of objects created in the phase
+     */
+    public long getCreatedCount(Phase phase) {
+        return createdObjects.get(phase).sum();
+    }
+
+    /**
+     * @return the statistics of all evaluated rules, the rules with the highest total duration first
+     */
+    public List<RuleStatistics> getRuleStatistics() {
+        List<RuleStatistics> result = new ArrayList<>(rules.values());
+        result.sort(Collections.reverseOrder((a, b) -> Long.compare(a.durations.getTotalNanos(), b.durations.getTotalNanos())));
+        return result;
+    }
+
+    /**
+     * Removes all recorded values
+     */
+    public void reset() {
+        for (Phase phase : Phase.values()) {
+            phases.get(phase).reset();
+            createdObjects.get(phase).reset();
+        }
+        rules.clear();
+    }
+
+    /**
+     * @return a human readable overview of all phases and the ten most expensive rules
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            Histogram histogram = phases.get(phase);
+            sb.append(String.format("%-12s count=%d total=%dms mean=%dus p50<=%dus p99<=%dus max=%dus created=%d%n", phase, histogram.getCount(),
+                    TimeUnit.NANOSECONDS.toMillis(histogram.getTotalNanos()), TimeUnit.NANOSECONDS.toMicros(histogram.getMeanNanos()),
+                    TimeUnit.NANOSECONDS.toMicros(histogram.getPercentileNanos(0.5)),
+                    TimeUnit.NANOSECONDS.toMicros(histogram.getPercentileNanos(0.99)), TimeUnit.NANOSECONDS.toMicros(histogram.getMaxNanos()),
+                    getCreatedCount(phase)));
+        }
+        List<RuleStatistics> ruleStatistics = getRuleStatistics();
+        for (RuleStatistics rule : ruleStatistics.subList(0, Math.min(10, ruleStatistics.size()))) {
+            sb.append(String.format("rule %-20s count=%d total=%dms matched=%d created=%d%n", rule.getInternalMetadataName(),
+                    rule.durations.getCount(), TimeUnit.NANOSECONDS.toMillis(rule.durations.getTotalNanos()), rule.getMatchedFieldCount(),
+                    rule.getCreatedCount()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Durations of a single rule, together with the number of matched datafields and created objects
+     */
+    public static class RuleStatistics {
+
+        private final MetadataConfigurationItem item;
+        private final Histogram durations = new Histogram();
+        private final LongAdder matchedFields = new LongAdder();
+        private final LongAdder createdObjects = new LongAdder();
+
+        private RuleStatistics(MetadataConfigurationItem item) {
+            this.item = item;
+        }
+
+        public MetadataConfigurationItem getItem() {
+            return item;
+        }
+
+        public String getInternalMetadataName() {
+            return item.getInternalMetadataName();
+        }
+
+        public Histogram getDurations() {
+            return durations;
+        }
+
+        public long getMatchedFieldCount() {
+            return matchedFields.sum();
+        }
+
+        public long getCreatedCount() {
+            return createdObjects.sum();
+        }
+    }
+
+    /**
+     * Histogram of durations in nanoseconds. Bucket i contains the values between 2^(i-1) and 2^i - 1.
+     */
+    public static class Histogram {
+
+        private static final int BUCKETS = 64;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+            total.add(value);
+            max.accumulate(value);
+        }
+
+        private void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            total.reset();
+            max.reset();
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return total.sum();
+        }
+
+        public long getMaxNanos() {
+            return max.get();
+        }
+
+        public long getMeanNanos() {
+            long count = getCount();
+            return count == 0 ? 0 : getTotalNanos() / count;
+        }
+
+        /**
+         * @param quantile a value between 0 and 1
+         * @return the upper bound of the bucket that contains the quantile, 0 if nothing was recorded
+         */
+        public long getPercentileNanos(double quantile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, getMaxNanos());
+                }
+            }
+            return getMaxNanos();
+        }
+    }
+}
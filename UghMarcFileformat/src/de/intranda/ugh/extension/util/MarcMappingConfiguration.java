@@ -0,0 +1,389 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import de.intranda.ugh.extension.MarcFileformat;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.Prefs;
+import ugh.exceptions.PreferencesException;
+
+/**
+ * The compiled <code>Marc</code> section of a ruleset. The configuration is immutable after it was created and can be shared between threads
+ * and {@link MarcFileformat} instances.
+ *
+ * Use {@link #forPrefs(Prefs)} to get the configuration of a ruleset, it is only compiled once for each {@link Prefs} instance. Processes that
+ * load the same ruleset file can share the compiled rules with {@link #forPrefs(Prefs, Path, Path)}.
+ */
+@Getter
+@Log4j2
+public final class MarcMappingConfiguration {
+
+    // weak keys, the configuration is dropped together with the Prefs
+    private static final Map<Prefs, MarcMappingConfiguration> CACHE = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final List<MetadataConfigurationItem> metadataList;
+    private final List<MetadataConfigurationItem> personList;
+    private final List<MetadataConfigurationItem> corporationList;
+    private final List<DocstructConfigurationItem> docstructList;
+    private final List<GroupConfigurationItem> groupList;
+    private final List<SubfieldGroupConfigurationItem> subfieldGroupList;
+
+    // docstruct rules, indexed by leader position 6 and 7
+    private final DocstructDecisionTable docstructTable;
+
+    // dispatches a record to the top level metadata, persons and corporations and to all groups in a single pass
+    private final MappingPlan recordPlan;
+
+    // all datafields and subfields read by any rule, readers skip everything else
+    private final MarcFieldFilter fieldFilter;
+
+    // SHA-256 hash of the whole ruleset, identifies the configuration in the result cache
+    private final String fingerprint;
+
+    // names of all metadata and group types the configuration creates on the top level of a DocStruct
+    private final Set<String> mappedTypeNames;
+
+    // problems found while compiling, compile time and size of the rule index
+    private final MarcConfigurationReport report;
+
+    // false, if the ruleset has no Marc section
+    @Getter(AccessLevel.NONE)
+    private final boolean marcFound;
+
+    // plan over all members of each subfield group, and the main tags used by subfield groups
+    @Getter(AccessLevel.NONE)
+    private final Map<SubfieldGroupConfigurationItem, MappingPlan> subfieldGroupPlans = new IdentityHashMap<>();
+    @Getter(AccessLevel.NONE)
+    private final Set<String> subfieldGroupTags = new HashSet<>();
+
+    // compiled tag index for each list of configuration items, only read after the constructor finished
+    @Getter(AccessLevel.NONE)
+    private final Map<List<MetadataConfigurationItem>, MappingPlan> mappingPlans = new IdentityHashMap<>();
+
+    /**
+     * Returns the configuration of the given ruleset. The configuration is compiled on first access and cached as long as the {@link Prefs} are
+     * in use.
+     *
+     * @param prefs the ruleset
+     * @return the configuration
+     */
+    public static MarcMappingConfiguration forPrefs(Prefs prefs) {
+        return CACHE.computeIfAbsent(prefs, MarcMappingConfiguration::new);
+    }
+
+    /**
+     * Returns the configuration of the given ruleset, if it can be used for an import. Long running imports should use this method, so a broken
+     * configuration stops the import before the first record is read.
+     *
+     * @param prefs the ruleset
+     * @return the configuration
+     * @throws PreferencesException if the <code>Marc</code> section is missing or has errors, the message contains all errors
+     */
+    public static MarcMappingConfiguration forImport(Prefs prefs) throws PreferencesException {
+        MarcMappingConfiguration configuration = forPrefs(prefs);
+        if (!configuration.getReport().isValid()) {
+            throw new PreferencesException(configuration.getReport().toString());
+        }
+        return configuration;
+    }
+
+    /**
+     * Returns the configuration of the given ruleset, restored from a snapshot if the ruleset file was compiled before. Workers that load the same
+     * ruleset skip reading and compiling the <code>Marc</code> section, only the metadata, group and docstruct types are resolved again from the
+     * {@link Prefs}. If there is no snapshot for the current content of the file, the configuration is compiled and the snapshot is written.
+     *
+     * @param prefs the ruleset, loaded from the file
+     * @param rulesetFile the file the ruleset was loaded from, its content is the key of the snapshot
+     * @param snapshotDirectory directory of the snapshots, created if it doesn't exist
+     * @return the configuration
+     * @throws IOException if the ruleset file can't be read
+     */
+    public static MarcMappingConfiguration forPrefs(Prefs prefs, Path rulesetFile, Path snapshotDirectory) throws IOException {
+        MarcMappingConfiguration configuration = CACHE.get(prefs);
+        if (configuration == null) {
+            configuration = MarcConfigurationSnapshot.load(prefs, rulesetFile, snapshotDirectory);
+            MarcMappingConfiguration existing = CACHE.putIfAbsent(prefs, configuration);
+            if (existing != null) {
+                configuration = existing;
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * Compiles the configuration. All metadata, group and docstruct types are resolved once, unknown types are logged here instead of for each
+     * record.
+     *
+     * @param prefs the ruleset
+     */
+    public MarcMappingConfiguration(Prefs prefs) {
+        this(System.nanoTime(), new Items(prefs));
+    }
+
+    /**
+     * Builds the tag index and validates the rules
+     *
+     * @param start start of the compilation, in nanoseconds
+     * @param items the rules, read from the ruleset or from a snapshot
+     */
+    MarcMappingConfiguration(long start, Items items) {
+        marcFound = items.marcFound;
+        MarcConfigurationValidator validator = new MarcConfigurationValidator();
+        if (!marcFound) {
+            validator.getErrors().add("<" + MarcFileformat.MARC_PREFS_NODE_NAME_STRING + "> not found in the ruleset");
+        }
+        List<MetadataConfigurationItem> metadata = items.metadata;
+        List<MetadataConfigurationItem> persons = items.persons;
+        List<MetadataConfigurationItem> corporations = items.corporations;
+        List<DocstructConfigurationItem> docstructs = items.docstructs;
+        List<GroupConfigurationItem> groups = items.groups;
+        List<SubfieldGroupConfigurationItem> subfieldGroups = items.subfieldGroups;
+
+        metadataList = Collections.unmodifiableList(metadata);
+        personList = Collections.unmodifiableList(persons);
+        corporationList = Collections.unmodifiableList(corporations);
+        docstructList = Collections.unmodifiableList(docstructs);
+        groupList = Collections.unmodifiableList(groups);
+        subfieldGroupList = Collections.unmodifiableList(subfieldGroups);
+        docstructTable = new DocstructDecisionTable(docstructList);
+
+        // compile the tag index once, instead of comparing each configured field with each datafield of every record
+        addMappingPlan(metadataList);
+        addMappingPlan(personList);
+        addMappingPlan(corporationList);
+        for (GroupConfigurationItem item : groupList) {
+            addMappingPlan(item.getMetadataList());
+            addMappingPlan(item.getPersonList());
+            addMappingPlan(item.getCorporationList());
+        }
+        for (SubfieldGroupConfigurationItem item : subfieldGroupList) {
+            addMappingPlan(item.getMetadataList());
+            addMappingPlan(item.getPersonList());
+            addMappingPlan(item.getCorporationList());
+            subfieldGroupPlans.put(item, new MappingPlan(Arrays.asList(item.getMetadataList(), item.getPersonList(), item.getCorporationList())));
+            if (item.getFieldMainTag() != null) {
+                subfieldGroupTags.add(item.getFieldMainTag());
+            }
+        }
+
+        List<List<MetadataConfigurationItem>> recordLists = new ArrayList<>();
+        recordLists.add(metadataList);
+        recordLists.add(personList);
+        recordLists.add(corporationList);
+        for (GroupConfigurationItem item : groupList) {
+            recordLists.add(item.getMetadataList());
+            recordLists.add(item.getPersonList());
+            recordLists.add(item.getCorporationList());
+        }
+        recordPlan = new MappingPlan(recordLists);
+
+        List<List<MetadataConfigurationItem>> allLists = new ArrayList<>(recordLists);
+        for (SubfieldGroupConfigurationItem item : subfieldGroupList) {
+            allLists.add(item.getMetadataList());
+            allLists.add(item.getPersonList());
+            allLists.add(item.getCorporationList());
+        }
+        fieldFilter = new MarcFieldFilter(allLists, subfieldGroupTags);
+        fingerprint = items.fingerprint;
+
+        Set<String> typeNames = new HashSet<>();
+        for (List<MetadataConfigurationItem> list : Arrays.asList(metadataList, personList, corporationList)) {
+            for (MetadataConfigurationItem item : list) {
+                if (item.getMetadataType() != null) {
+                    typeNames.add(item.getMetadataType().getName());
+                }
+            }
+        }
+        for (GroupConfigurationItem item : groupList) {
+            if (item.getGroupType() != null) {
+                typeNames.add(item.getGroupType().getName());
+            }
+        }
+        for (SubfieldGroupConfigurationItem item : subfieldGroupList) {
+            if (item.getGroupType() != null) {
+                typeNames.add(item.getGroupType().getName());
+            }
+        }
+        mappedTypeNames = Collections.unmodifiableSet(typeNames);
+
+        validator.validateMetadata(metadataList, null);
+        validator.validatePersons(personList, null);
+        validator.validateCorporations(corporationList, null);
+        groupList.forEach(validator::validateGroup);
+        subfieldGroupList.forEach(validator::validateSubfieldGroup);
+        docstructList.forEach(validator::validateDocstruct);
+        report = new MarcConfigurationReport(validator.getErrors(), validator.getWarnings(), System.nanoTime() - start, validator.getRuleCount(),
+                docstructList.size(), groupList.size() + subfieldGroupList.size(), recordPlan);
+        log.info(report.getSummary());
+        for (String error : report.getErrors()) {
+            log.error(error);
+        }
+    }
+
+    /**
+     * Writes element names, attributes and trimmed text of a configuration node. Formatting and comments don't change the result.
+     */
+    private static void appendCanonicalForm(Node node, StringBuilder sb) {
+        if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+            String text = node.getNodeValue().trim();
+            if (!text.isEmpty()) {
+                sb.append('"').append(text.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            return;
+        }
+        if (node.getNodeType() != Node.ELEMENT_NODE) {
+            return;
+        }
+        sb.append('<').append(node.getNodeName());
+        NamedNodeMap attributes = node.getAttributes();
+        List<String> sortedAttributes = new ArrayList<>();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            sortedAttributes.add(attributes.item(i).getNodeName() + "=\"" + attributes.item(i).getNodeValue() + "\"");
+        }
+        Collections.sort(sortedAttributes);
+        for (String attribute : sortedAttributes) {
+            sb.append(' ').append(attribute);
+        }
+        sb.append('>');
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            appendCanonicalForm(children.item(i), sb);
+        }
+        sb.append("</>");
+    }
+
+    /**
+     * The rules of a configuration, before the tag index is built
+     */
+    static final class Items {
+
+        final List<MetadataConfigurationItem> metadata = new ArrayList<>();
+        final List<MetadataConfigurationItem> persons = new ArrayList<>();
+        final List<MetadataConfigurationItem> corporations = new ArrayList<>();
+        final List<DocstructConfigurationItem> docstructs = new ArrayList<>();
+        final List<GroupConfigurationItem> groups = new ArrayList<>();
+        final List<SubfieldGroupConfigurationItem> subfieldGroups = new ArrayList<>();
+        String fingerprint;
+        boolean marcFound = true;
+
+        Items() {
+        }
+
+        /**
+         * Reads the rules from the <code>Marc</code> section of the ruleset
+         */
+        Items(Prefs prefs) {
+            Node marcNode = prefs.getPreferenceNode(MarcFileformat.MARC_PREFS_NODE_NAME_STRING);
+            StringBuilder canonicalForm = new StringBuilder();
+            if (marcNode == null) {
+                log.error("Can't read preferences for marcxml fileformat! Node 'Marc' in XML-file not found!");
+                marcFound = false;
+            } else {
+                // the result also depends on the types the rules resolve and the members allowed in groups, which are defined outside of the
+                // Marc section
+                Node ruleset = marcNode.getOwnerDocument() == null ? null : marcNode.getOwnerDocument().getDocumentElement();
+                appendCanonicalForm(ruleset == null ? marcNode : ruleset, canonicalForm);
+                NodeList children = marcNode.getChildNodes();
+                for (int i = 0; i < children.getLength(); i++) {
+                    Node n = children.item(i);
+                    if (n.getNodeType() == Node.ELEMENT_NODE) {
+                        if (MarcFileformat.PREFS_MARC_METADATA_NAME.equalsIgnoreCase(n.getNodeName())) {
+                            metadata.add(new MetadataConfigurationItem(n, prefs));
+                        } else if (MarcFileformat.PREFS_MARC_PERSON_NAME.equalsIgnoreCase(n.getNodeName())) {
+                            persons.add(new MetadataConfigurationItem(n, prefs));
+                        } else if (MarcFileformat.PREFS_MARC_DOCTSRUCT_NAME.equalsIgnoreCase(n.getNodeName())) {
+                            docstructs.add(new DocstructConfigurationItem(n, prefs));
+                        } else if (MarcFileformat.PREFS_MARC_GROUP_NAME.equalsIgnoreCase(n.getNodeName())) {
+                            groups.add(new GroupConfigurationItem(n, prefs));
+                        } else if (MarcFileformat.PREFS_MARC_CORPORATE_NAME.equalsIgnoreCase(n.getNodeName())) {
+                            corporations.add(new MetadataConfigurationItem(n, prefs));
+                        } else if ("SubfieldGroup".equalsIgnoreCase(n.getNodeName())) {
+                            subfieldGroups.add(new SubfieldGroupConfigurationItem(n, prefs));
+                        }
+                    }
+                }
+            }
+            fingerprint = MarcResultCache.hash(canonicalForm.toString());
+        }
+    }
+
+    boolean isMarcFound() {
+        return marcFound;
+    }
+
+    private void addMappingPlan(List<MetadataConfigurationItem> configurationItems) {
+        mappingPlans.put(configurationItems, new MappingPlan(configurationItems));
+    }
+
+    /**
+     * @param tag the tag of a datafield
+     * @return true, if a subfield group is configured for the tag
+     */
+    public boolean isSubfieldGroupTag(String tag) {
+        return subfieldGroupTags.contains(tag);
+    }
+
+    /**
+     * Returns the plan over all members of a subfield group. All configured fields of the members share the main tag and indicators of the
+     * group.
+     *
+     * @param item a subfield group of this configuration
+     * @return the mapping plan
+     */
+    public MappingPlan getSubfieldGroupPlan(SubfieldGroupConfigurationItem item) {
+        return subfieldGroupPlans.get(item);
+    }
+
+    /**
+     * Returns the compiled tag index of a list of configuration items. Lists that are not part of this configuration are compiled on each call.
+     *
+     * @param configurationItems a list of this configuration
+     * @return the mapping plan
+     */
+    public MappingPlan getMappingPlan(List<MetadataConfigurationItem> configurationItems) {
+        MappingPlan plan = mappingPlans.get(configurationItems);
+        if (plan == null) {
+            plan = new MappingPlan(configurationItems);
+        }
+        return plan;
+    }
+}
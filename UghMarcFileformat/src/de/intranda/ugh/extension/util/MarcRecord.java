@@ -0,0 +1,158 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import de.intranda.ugh.extension.MarcFileformat;
+import lombok.Getter;
+
+/**
+ * Immutable in-memory representation of a single marc record. The record is extracted once from its source (DOM, StAX, ...), all mapping rules
+ * are evaluated against this model instead of the source document.
+ */
+public final class MarcRecord {
+
+    /**
+     * the leader, null if the record has no leader
+     */
+    @Getter
+    private final String leader;
+
+    private final List<Controlfield> controlfields;
+    private final List<MarcDatafield> datafields;
+
+    private MarcRecord(String leader, List<Controlfield> controlfields, List<MarcDatafield> datafields) {
+        this.leader = leader;
+        this.controlfields = Collections.unmodifiableList(controlfields);
+        this.datafields = Collections.unmodifiableList(datafields);
+    }
+
+    public List<Controlfield> getControlfields() {
+        return controlfields;
+    }
+
+    public List<MarcDatafield> getDatafields() {
+        return datafields;
+    }
+
+    /**
+     * @return the value of the first controlfield with the given tag or null
+     */
+    public String getControlfield(String tag) {
+        for (Controlfield controlfield : controlfields) {
+            if (tag.equals(controlfield.getTag())) {
+                return controlfield.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates a record from a <code>record</code> element. Namespace prefixes of the child elements are ignored.
+     *
+     * @param recordNode the record element
+     * @return the record
+     */
+    public static MarcRecord fromNode(Node recordNode) {
+        Builder builder = new Builder();
+        NodeList nl = recordNode.getChildNodes();
+        for (int i = 0; i < nl.getLength(); i++) {
+            Node n = nl.item(i);
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                String nodename = n.getNodeName();
+                if (nodename.contains(":")) {
+                    nodename = nodename.substring(nodename.indexOf(":") + 1);
+                }
+                if ("leader".equalsIgnoreCase(nodename)) {
+                    builder.setLeader(MarcFileformat.readTextNode(n));
+                } else if ("controlfield".equalsIgnoreCase(nodename)) {
+                    builder.addControlfield(MarcDatafield.getAttribute(n.getAttributes(), "tag"), MarcFileformat.readTextNode(n));
+                } else if ("datafield".equalsIgnoreCase(nodename)) {
+                    builder.addDatafield(MarcDatafield.fromNode(n));
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * A controlfield of the record
+     */
+    public static final class Controlfield {
+
+        private final String tag;
+        private final String value;
+
+        private Controlfield(String tag, String value) {
+            this.tag = tag;
+            this.value = value;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        /**
+         * @return the value, null if the controlfield is empty
+         */
+        public String getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * Collects the parts of a record, independent of the source format
+     */
+    public static class Builder {
+
+        private String leader;
+        private final List<Controlfield> controlfields = new ArrayList<>();
+        private final List<MarcDatafield> datafields = new ArrayList<>();
+
+        public Builder setLeader(String leader) {
+            this.leader = leader;
+            return this;
+        }
+
+        public Builder addControlfield(String tag, String value) {
+            controlfields.add(new Controlfield(tag, value));
+            return this;
+        }
+
+        public Builder addDatafield(MarcDatafield datafield) {
+            datafields.add(datafield);
+            return this;
+        }
+
+        public MarcRecord build() {
+            return new MarcRecord(leader, new ArrayList<>(controlfields), new ArrayList<>(datafields));
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+
+import ugh.dl.Corporate;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataGroup;
+import ugh.dl.NamePart;
+import ugh.dl.Person;
+
+/**
+ * Creates marc records from DocStructs by inverting the mapping rules of a configuration. For each metadata, person, corporate and group type
+ * the first configured rule is used: the value is written into the main tag, indicators and first subfield code of its first field.
+ *
+ * The mapping is not fully reversible. Values that were joined from several subfields or fields are written into a single subfield, replacements
+ * and regular expression conditions can't be inverted. Literal conditions are written as condition subfield, authority values as identifier
+ * subfield, prefixed with the source of a literal identifier condition.
+ */
+public class MarcRecordExporter {
+
+    private static final String DEFAULT_LEADER = "00000nam a2200000   4500";
+
+    // condition values without any regular expression syntax, optionally anchored
+    private static final Pattern LITERAL_CONDITION = Pattern.compile("\\^?[^\\\\^$.|?*+()\\[\\]{}]+\\$?");
+
+    // the first rule for each type, keyed by type name
+    private final Map<String, MetadataConfigurationItem> metadataRules = new HashMap<>();
+    private final Map<String, MetadataConfigurationItem> personRules = new HashMap<>();
+    private final Map<String, MetadataConfigurationItem> corporateRules = new HashMap<>();
+    private final Map<String, GroupConfigurationItem> groupRules = new HashMap<>();
+    private final Map<String, SubfieldGroupConfigurationItem> subfieldGroupRules = new HashMap<>();
+    private final Map<String, DocstructConfigurationItem> docstructRules = new HashMap<>();
+
+    public MarcRecordExporter(MarcMappingConfiguration configuration) {
+        addRules(metadataRules, configuration.getMetadataList());
+        addRules(personRules, configuration.getPersonList());
+        addRules(corporateRules, configuration.getCorporationList());
+        for (GroupConfigurationItem item : configuration.getGroupList()) {
+            if (item.getGroupType() != null) {
+                groupRules.putIfAbsent(item.getGroupType().getName(), item);
+            }
+        }
+        for (SubfieldGroupConfigurationItem item : configuration.getSubfieldGroupList()) {
+            if (item.getGroupType() != null && StringUtils.isNotBlank(item.getFieldMainTag())) {
+                subfieldGroupRules.putIfAbsent(item.getGroupType().getName(), item);
+            }
+        }
+        for (DocstructConfigurationItem item : configuration.getDocstructList()) {
+            if (item.getDocStructType() != null) {
+                docstructRules.putIfAbsent(item.getDocStructType().getName(), item);
+            }
+        }
+    }
+
+    private static void addRules(Map<String, MetadataConfigurationItem> rules, List<MetadataConfigurationItem> items) {
+        for (MetadataConfigurationItem item : items) {
+            if (item.getMetadataType() != null && !item.getFieldList().isEmpty()
+                    && StringUtils.isNotBlank(item.getFieldList().get(0).getFieldMainTag())) {
+                rules.putIfAbsent(item.getMetadataType().getName(), item);
+            }
+        }
+    }
+
+    /**
+     * Creates the records of a document: the logical DocStruct and all descendants with a type that is configured as marc docstruct, in the
+     * order the import links them
+     *
+     * @param document the document
+     * @return the records
+     */
+    public List<MarcRecord> exportDocument(DigitalDocument document) {
+        List<MarcRecord> records = new ArrayList<>();
+        DocStruct logical = document.getLogicalDocStruct();
+        if (logical != null) {
+            records.add(exportRecord(logical));
+            addChildren(logical, records);
+        }
+        return records;
+    }
+
+    private void addChildren(DocStruct parent, List<MarcRecord> records) {
+        if (parent.getAllChildren() == null) {
+            return;
+        }
+        for (DocStruct child : parent.getAllChildren()) {
+            if (child.getType() != null && docstructRules.containsKey(child.getType().getName())) {
+                records.add(exportRecord(child));
+                addChildren(child, records);
+            }
+        }
+    }
+
+    /**
+     * Creates the record of a single DocStruct, children are ignored
+     *
+     * @param ds the DocStruct
+     * @return the record
+     */
+    public MarcRecord exportRecord(DocStruct ds) {
+        MarcRecord.Builder builder = new MarcRecord.Builder();
+        DocstructConfigurationItem docstruct = ds.getType() == null ? null : docstructRules.get(ds.getType().getName());
+        builder.setLeader(createLeader(docstruct));
+        if (docstruct != null && StringUtils.isNotEmpty(docstruct.getField007_0())) {
+            char[] field007 = { docstruct.getField007_0().charAt(0), firstChar(docstruct.getField007_1(), ' ') };
+            builder.addControlfield("007", new String(field007));
+        }
+        if (docstruct != null && StringUtils.isNotEmpty(docstruct.getField008_21())) {
+            char[] field008 = StringUtils.repeat(' ', 40).toCharArray();
+            field008[21] = docstruct.getField008_21().charAt(0);
+            builder.addControlfield("008", new String(field008));
+        }
+
+        List<MarcDatafield> datafields = new ArrayList<>();
+        if (ds.getAllMetadata() != null) {
+            for (Metadata md : ds.getAllMetadata()) {
+                addDatafield(datafields, metadataRules.get(md.getType().getName()), md);
+            }
+        }
+        if (ds.getAllPersons() != null) {
+            for (Person person : ds.getAllPersons()) {
+                addDatafield(datafields, personRules.get(person.getType().getName()), person);
+            }
+        }
+        if (ds.getAllCorporates() != null) {
+            for (Corporate corporate : ds.getAllCorporates()) {
+                addDatafield(datafields, corporateRules.get(corporate.getType().getName()), corporate);
+            }
+        }
+        if (ds.getAllMetadataGroups() != null) {
+            for (MetadataGroup group : ds.getAllMetadataGroups()) {
+                addGroup(datafields, group);
+            }
+        }
+
+        // marc records are ordered by tag, the order within a tag is kept
+        datafields.sort(Comparator.comparing(MarcDatafield::getTag));
+        for (MarcDatafield datafield : datafields) {
+            builder.addDatafield(datafield);
+        }
+        return builder.build();
+    }
+
+    private static String createLeader(DocstructConfigurationItem docstruct) {
+        char[] leader = DEFAULT_LEADER.toCharArray();
+        if (docstruct != null) {
+            leader[6] = firstChar(docstruct.getLeader6(), leader[6]);
+            leader[7] = firstChar(docstruct.getLeader7(), leader[7]);
+            leader[19] = firstChar(docstruct.getLeader19(), leader[19]);
+        }
+        return new String(leader);
+    }
+
+    private static char firstChar(String value, char defaultValue) {
+        return StringUtils.isEmpty(value) ? defaultValue : value.charAt(0);
+    }
+
+    private void addGroup(List<MarcDatafield> datafields, MetadataGroup group) {
+        String typeName = group.getType().getName();
+        SubfieldGroupConfigurationItem subfieldGroup = subfieldGroupRules.get(typeName);
+        if (subfieldGroup != null) {
+            // all members share a single datafield
+            MarcDatafield.Builder builder = new MarcDatafield.Builder(subfieldGroup.getFieldMainTag(), indicator(subfieldGroup.getFieldInd1()),
+                    indicator(subfieldGroup.getFieldInd2()));
+            boolean empty = true;
+            for (Metadata md : listOf(group.getMetadataList())) {
+                empty &= !addSubfields(builder, findRule(subfieldGroup.getMetadataList(), md), md);
+            }
+            for (Person person : listOf(group.getPersonList())) {
+                empty &= !addSubfields(builder, findRule(subfieldGroup.getPersonList(), person), person);
+            }
+            for (Corporate corporate : listOf(group.getCorporateList())) {
+                empty &= !addSubfields(builder, findRule(subfieldGroup.getCorporationList(), corporate), corporate);
+            }
+            if (!empty) {
+                datafields.add(builder.build());
+            }
+            return;
+        }
+
+        GroupConfigurationItem groupRule = groupRules.get(typeName);
+        if (groupRule != null) {
+            // each member has its own datafield
+            for (Metadata md : listOf(group.getMetadataList())) {
+                addDatafield(datafields, findRule(groupRule.getMetadataList(), md), md);
+            }
+            for (Person person : listOf(group.getPersonList())) {
+                addDatafield(datafields, findRule(groupRule.getPersonList(), person), person);
+            }
+            for (Corporate corporate : listOf(group.getCorporateList())) {
+                addDatafield(datafields, findRule(groupRule.getCorporationList(), corporate), corporate);
+            }
+        }
+    }
+
+    private static MetadataConfigurationItem findRule(List<MetadataConfigurationItem> items, Metadata md) {
+        for (MetadataConfigurationItem item : items) {
+            if (item.getMetadataType() != null && item.getMetadataType().getName().equals(md.getType().getName()) && !item.getFieldList().isEmpty()) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private void addDatafield(List<MarcDatafield> datafields, MetadataConfigurationItem rule, Metadata md) {
+        if (rule == null) {
+            return;
+        }
+        MarcField field = rule.getFieldList().get(0);
+        MarcDatafield.Builder builder = new MarcDatafield.Builder(field.getFieldMainTag(), indicator(field.getFieldInd1()),
+                indicator(field.getFieldInd2()));
+        if (md instanceof Person && StringUtils.isEmpty(indicator(field.getFieldInd1())) && !field.getExpansion().isEmpty()
+                && field.getFirstname().isEmpty() && field.getLastname().isEmpty()) {
+            // the expansion subfield is read as "lastname, firstname" with first indicator 1
+            builder = new MarcDatafield.Builder(field.getFieldMainTag(), "1", indicator(field.getFieldInd2()));
+        }
+        if (addSubfields(builder, rule, md)) {
+            datafields.add(builder.build());
+        }
+    }
+
+    /**
+     * Writes the subfields of a single metadata, person or corporate
+     *
+     * @return true, if any value was written
+     */
+    private boolean addSubfields(MarcDatafield.Builder builder, MetadataConfigurationItem rule, Metadata md) {
+        if (rule == null) {
+            return false;
+        }
+        MarcField field = rule.getFieldList().get(0);
+        boolean written;
+        if (md instanceof Person) {
+            written = addPersonSubfields(builder, field, (Person) md);
+        } else if (md instanceof Corporate) {
+            written = addCorporateSubfields(builder, field, (Corporate) md);
+        } else {
+            written = addSubfield(builder, first(field.getFieldSubTags()), md.getValue());
+        }
+        if (!written) {
+            return false;
+        }
+
+        if (StringUtils.isNotBlank(rule.getIdentifierField()) && StringUtils.isNotBlank(md.getAuthorityValue())) {
+            String identifier = md.getAuthorityValue();
+            // the import removes the source prefix, e.g. (DE-588), restore it to satisfy the identifier condition
+            String source = literalValue(rule.getIdentifierConditionPattern());
+            if (source != null && !rule.matchesIdentifierCondition(identifier)) {
+                identifier = "(" + source + ")" + identifier;
+            }
+            builder.addSubfield(rule.getIdentifierField(), identifier);
+        }
+        String condition = StringUtils.isBlank(rule.getConditionField()) ? null : literalValue(rule.getConditionPattern());
+        if (condition != null && !field.getFieldSubTags().contains(rule.getConditionField())) {
+            builder.addSubfield(rule.getConditionField(), condition);
+        }
+        return true;
+    }
+
+    private static boolean addPersonSubfields(MarcDatafield.Builder builder, MarcField field, Person person) {
+        String firstname = StringUtils.defaultString(person.getFirstname());
+        String lastname = StringUtils.defaultString(person.getLastname());
+        if (!field.getFirstname().isEmpty() || !field.getLastname().isEmpty()) {
+            boolean written = addSubfield(builder, first(field.getLastname()), lastname);
+            return addSubfield(builder, first(field.getFirstname()), firstname) || written;
+        }
+        String expansion = lastname;
+        if (!firstname.isEmpty()) {
+            expansion = lastname.isEmpty() ? firstname : lastname + ", " + firstname;
+        }
+        return addSubfield(builder, first(field.getExpansion()), expansion);
+    }
+
+    private static boolean addCorporateSubfields(MarcDatafield.Builder builder, MarcField field, Corporate corporate) {
+        if (!addSubfield(builder, first(field.getMainName()), corporate.getMainName())) {
+            return false;
+        }
+        String subNameCode = first(field.getSubName());
+        if (corporate.getSubNames() != null) {
+            for (NamePart subName : corporate.getSubNames()) {
+                addSubfield(builder, subNameCode, subName.getValue());
+            }
+        }
+        addSubfield(builder, first(field.getPartName()), corporate.getPartName());
+        return true;
+    }
+
+    private static boolean addSubfield(MarcDatafield.Builder builder, String code, String value) {
+        if (code == null || StringUtils.isBlank(value)) {
+            return false;
+        }
+        builder.addSubfield(code, value);
+        return true;
+    }
+
+    /**
+     * @return the value of a condition without regular expression syntax, null if the condition is missing or uses regular expressions
+     */
+    private static String literalValue(Pattern conditionPattern) {
+        if (conditionPattern == null) {
+            return null;
+        }
+        String pattern = conditionPattern.pattern();
+        if (!LITERAL_CONDITION.matcher(pattern).matches()) {
+            return null;
+        }
+        return StringUtils.removeEnd(StringUtils.removeStart(pattern, "^"), "$");
+    }
+
+    /**
+     * @return the indicator to write, "any" and missing indicators are blank
+     */
+    private static String indicator(String configuredValue) {
+        if (configuredValue == null || "any".equals(configuredValue)) {
+            return "";
+        }
+        return configuredValue.trim();
+    }
+
+    private static String first(List<String> codes) {
+        return codes.isEmpty() ? null : codes.get(0);
+    }
+
+    private static <T> List<T> listOf(List<T> values) {
+        return values == null ? new ArrayList<>() : values;
+    }
+}
@@ -0,0 +1,96 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Reads marc records one by one from a file, independent of the serialization
+ */
+public interface MarcRecordReader extends Closeable {
+
+    /**
+     * Reads the next record
+     *
+     * @return the next record or <code>null</code>, if there are no more records
+     * @throws IOException if the file can't be read or is malformed
+     */
+    MarcRecord nextRecord() throws IOException;
+
+    /**
+     * Opens a reader for the given file. Files starting with a five digit record length are read as binary MARC 21 (ISO 2709), everything else as
+     * MARCXML.
+     *
+     * @param file the file to read
+     * @return the reader
+     * @throws IOException
+     */
+    static MarcRecordReader open(File file) throws IOException {
+        if (isBinaryMarc(file)) {
+            return new MarcBinaryReader(file);
+        }
+        try {
+            return new MarcXmlStreamReader(file);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Opens a reader for the mapping of the given file. MARCXML files are read with the {@link MarcXmlByteScanner}, datafields and subfields that
+     * are not accepted by the filter are left out of the records.
+     *
+     * @param file the file to read
+     * @param filter the datafields and subfields to read, null to read everything
+     * @return the reader
+     * @throws IOException
+     */
+    static MarcRecordReader open(File file, MarcFieldFilter filter) throws IOException {
+        if (isBinaryMarc(file)) {
+            return new MarcBinaryReader(file);
+        }
+        return MarcXmlByteScanner.open(file, filter);
+    }
+
+    private static boolean isBinaryMarc(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] start = in.readNBytes(5);
+            if (start.length < 5) {
+                return false;
+            }
+            for (byte b : start) {
+                if (b < '0' || b > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
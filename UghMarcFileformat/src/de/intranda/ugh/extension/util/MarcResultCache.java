@@ -0,0 +1,302 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * On-disk cache of mapping results. The key is a SHA-256 hash of the record together with the fingerprint of the mapping configuration, so a
+ * changed record or a changed ruleset never hits an old entry.
+ *
+ * The total size of the entries is bounded. If the limit is exceeded, the least recently used entries are removed until the cache is filled to
+ * 90 percent of its size. Each entry is a single file, so several processes can share the directory.
+ *
+ * <pre>
+ * MarcFileformat fileformat = new MarcFileformat(prefs);
+ * fileformat.setResultCache(new MarcResultCache(Paths.get("/opt/import/cache"), 512L * 1024 * 1024));
+ * </pre>
+ */
+@Log4j2
+public class MarcResultCache {
+
+    private static final String SUFFIX = ".bin";
+
+    private final Path directory;
+    private final long maxSizeBytes;
+    private final AtomicLong currentSize = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Opens a cache directory, existing entries are kept
+     *
+     * @param directory the directory, created if it doesn't exist
+     * @param maxSizeBytes the maximum size of all entries
+     * @throws IOException if the directory can't be created or read
+     */
+    public MarcResultCache(Path directory, long maxSizeBytes) throws IOException {
+        this.directory = directory;
+        this.maxSizeBytes = maxSizeBytes;
+        Files.createDirectories(directory);
+        long size = 0;
+        for (Path entry : listEntries()) {
+            size += Files.size(entry);
+        }
+        currentSize.set(size);
+    }
+
+    /**
+     * Computes the cache key of a record
+     *
+     * @param marcRecord the record
+     * @param configuration the configuration used to map the record
+     * @return the key as hex string
+     */
+    public static String computeKey(MarcRecord marcRecord, MarcMappingConfiguration configuration) {
+        MessageDigest digest = newDigest();
+        try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), digest))) {
+            out.writeInt(MappedRecord.FORMAT_VERSION);
+            writeString(out, configuration.getFingerprint());
+            writeString(out, marcRecord.getLeader());
+            out.writeInt(marcRecord.getControlfields().size());
+            for (MarcRecord.Controlfield controlfield : marcRecord.getControlfields()) {
+                writeString(out, controlfield.getTag());
+                writeString(out, controlfield.getValue());
+            }
+            out.writeInt(marcRecord.getDatafields().size());
+            for (MarcDatafield datafield : marcRecord.getDatafields()) {
+                writeString(out, datafield.getTag());
+                writeString(out, datafield.getInd1());
+                writeString(out, datafield.getInd2());
+                out.writeInt(datafield.getSubfieldCount());
+                for (int i = 0; i < datafield.getSubfieldCount(); i++) {
+                    writeString(out, datafield.getCode(i));
+                    writeString(out, datafield.getValue(i));
+                }
+            }
+        } catch (IOException e) {
+            // not possible, nothing is written
+            throw new IllegalStateException(e);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Computes a SHA-256 hash of the given text
+     *
+     * @param text the text
+     * @return the hash as hex string
+     */
+    public static String hash(String text) {
+        return toHex(newDigest().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Reads a cached result
+     *
+     * @param key the key of the record
+     * @return the cached result or null, if the record is not cached
+     */
+    public MappedRecord get(String key) {
+        Path file = getFile(key);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            MappedRecord mappedRecord = MappedRecord.read(in);
+            // the modification time is used to find the least recently used entries
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.increment();
+            return mappedRecord;
+        } catch (NoSuchFileException e) {
+            misses.increment();
+        } catch (IOException e) {
+            log.warn("Can't read cache entry " + file, e);
+            misses.increment();
+        }
+        return null;
+    }
+
+    /**
+     * Stores the result of a record. The entry is written to a temporary file first, readers never see incomplete entries.
+     *
+     * @param key the key of the record
+     * @param mappedRecord the result
+     */
+    public void put(String key, MappedRecord mappedRecord) {
+        Path file = getFile(key);
+        Path temp = null;
+        try {
+            Files.createDirectories(file.getParent());
+            temp = Files.createTempFile(file.getParent(), key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                mappedRecord.write(out);
+            }
+            long size = Files.size(temp);
+            long replaced = Files.exists(file) ? Files.size(file) : 0;
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            if (currentSize.addAndGet(size - replaced) > maxSizeBytes) {
+                evict();
+            }
+        } catch (IOException e) {
+            log.warn("Can't write cache entry " + file, e);
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    log.error(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used entries, until the cache is filled to 90 percent
+     */
+    private synchronized void evict() throws IOException {
+        if (currentSize.get() <= maxSizeBytes) {
+            return;
+        }
+        long before = currentSize.get();
+        List<Path> entries = listEntries();
+        List<FileInfo> files = new ArrayList<>(entries.size());
+        long size = 0;
+        for (Path entry : entries) {
+            try {
+                FileInfo info = new FileInfo(entry, Files.size(entry), Files.getLastModifiedTime(entry).toMillis());
+                files.add(info);
+                size += info.size;
+            } catch (NoSuchFileException e) {
+                // removed by another process
+            }
+        }
+        files.sort(Comparator.comparingLong(info -> info.lastModified));
+        long target = maxSizeBytes / 10 * 9;
+        long freed = 0;
+        for (FileInfo info : files) {
+            if (size - freed <= target) {
+                break;
+            }
+            if (Files.deleteIfExists(info.path)) {
+                freed += info.size;
+            }
+        }
+        // syncs with the size on disk, which also covers entries removed by other processes, but keeps entries written in the meantime
+        currentSize.addAndGet(size - freed - before);
+    }
+
+    private List<Path> listEntries() throws IOException {
+        try (Stream<Path> files = Files.walk(directory, 2)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SUFFIX) && Files.isRegularFile(file)).collect(Collectors.toList());
+        }
+    }
+
+    private Path getFile(String key) {
+        // two levels, to keep the directories small
+        return directory.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+    }
+
+    /**
+     * @return the number of records found in the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of records that were not cached
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the size of all entries in bytes
+     */
+    public long getSize() {
+        return currentSize.get();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static final class FileInfo {
+
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+
+        private FileInfo(Path path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,815 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Reads MARCXML records directly from the bytes of a UTF-8 encoded document. Only the MARCXML elements and the attributes <code>tag</code>,
+ * <code>ind1</code>, <code>ind2</code> and <code>code</code> are interpreted, values are only decoded into strings if they are part of the
+ * record. With a {@link MarcFieldFilter}, datafields and subfields that are not used by the mapping are skipped without decoding them.
+ *
+ * The records are the same as the ones created by {@link MarcXmlStreamReader}. Documents the scanner can't handle, like documents in other
+ * encodings, with a DOCTYPE, unknown entities or malformed markup, are read with the {@link MarcXmlStreamReader} instead.
+ */
+@Log4j2
+public class MarcXmlByteScanner implements MarcRecordReader {
+
+    private static final int RECORD_DEPTH = 1;
+    private static final int FIELD_DEPTH = 2;
+    private static final int SUBFIELD_DEPTH = 3;
+
+    private static final int OTHER = 0;
+    private static final int LEADER = 1;
+    private static final int CONTROLFIELD = 2;
+    private static final int DATAFIELD = 3;
+
+    private static final byte[] RECORD = bytes("record");
+    private static final byte[] LEADER_NAME = bytes("leader");
+    private static final byte[] CONTROLFIELD_NAME = bytes("controlfield");
+    private static final byte[] DATAFIELD_NAME = bytes("datafield");
+    private static final byte[] TAG = bytes("tag");
+    private static final byte[] IND1 = bytes("ind1");
+    private static final byte[] IND2 = bytes("ind2");
+    private static final byte[] CODE = bytes("code");
+
+    // single ASCII characters, used for codes and indicators
+    private static final String[] ASCII = new String[128];
+
+    static {
+        for (int i = 0; i < ASCII.length; i++) {
+            ASCII[i] = String.valueOf((char) i);
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int limit;
+    private final MarcFieldFilter filter;
+
+    // three character tags, keyed by their bytes
+    private final Map<Integer, String> tags = new HashMap<>();
+    // character data since the last start or end tag
+    private final TextSegments text = new TextSegments();
+    // names of the open elements inside of the current record
+    private int[] nameStart = new int[8];
+    private int[] nameLength = new int[8];
+    // attribute values of the current start tag, start and end positions
+    private final int[] attributes = new int[8];
+
+    private byte[] scratch = new byte[256];
+    private int position;
+    private int recordCount;
+    private MarcRecordReader fallback;
+    private boolean emptyElement;
+
+    /**
+     * Creates a scanner for a document in a buffer
+     *
+     * @param buffer the document, from the current position to the limit of the buffer
+     * @param filter the used fields, null to read all fields
+     */
+    public MarcXmlByteScanner(ByteBuffer buffer, MarcFieldFilter filter) {
+        this.buffer = buffer.slice();
+        this.limit = this.buffer.limit();
+        this.filter = filter;
+        if (!checkProlog()) {
+            useFallback(0);
+        }
+    }
+
+    /**
+     * Creates a scanner for a document
+     *
+     * @param data the document
+     * @param filter the used fields, null to read all fields
+     */
+    public MarcXmlByteScanner(byte[] data, MarcFieldFilter filter) {
+        this(ByteBuffer.wrap(data), filter);
+    }
+
+    /**
+     * Opens a MARCXML file. The file is memory mapped, files larger than 2 GB are streamed with the {@link MarcXmlStreamReader}.
+     *
+     * @param file the file
+     * @param filter the used fields, null to read all fields
+     * @return the reader
+     * @throws IOException
+     */
+    public static MarcRecordReader open(File file, MarcFieldFilter filter) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() <= Integer.MAX_VALUE) {
+                // the mapping stays valid after the channel is closed
+                return new MarcXmlByteScanner(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), filter);
+            }
+        }
+        try {
+            return new MarcXmlStreamReader(file);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public MarcRecord nextRecord() throws IOException {
+        if (fallback == null) {
+            try {
+                MarcRecord marcRecord = scanRecord();
+                if (marcRecord != null) {
+                    recordCount++;
+                }
+                return marcRecord;
+            } catch (UnsupportedContentException e) {
+                log.debug("Reading the document with the XML parser: {}", e.getMessage());
+                useFallback(recordCount);
+            }
+        }
+        return fallback.nextRecord();
+    }
+
+    /**
+     * Continues with the {@link MarcXmlStreamReader}, the records that were already returned are skipped
+     */
+    private void useFallback(int skippedRecords) {
+        try {
+            fallback = new MarcXmlStreamReader(new BufferInputStream(buffer.duplicate()));
+            for (int i = 0; i < skippedRecords; i++) {
+                fallback.nextRecord();
+            }
+        } catch (XMLStreamException | IOException e) {
+            // the XML parser reports the error with the next record
+            fallback = new FailedReader(e);
+        }
+    }
+
+    /**
+     * Checks the byte order mark and the XML declaration
+     *
+     * @return true, if the document is encoded in UTF-8
+     */
+    private boolean checkProlog() {
+        if (limit >= 3 && (buffer.get(0) & 0xFF) == 0xEF && (buffer.get(1) & 0xFF) == 0xBB && (buffer.get(2) & 0xFF) == 0xBF) {
+            position = 3;
+        } else if (limit >= 2 && (buffer.get(0) == 0 || buffer.get(1) == 0 || (buffer.get(0) & 0xFF) >= 0xFE)) {
+            // UTF-16 or UTF-32
+            return false;
+        }
+        if (!startsWith(position, "<?xml")) {
+            return true;
+        }
+        int end = indexOf(position, "?>");
+        if (end < 0) {
+            return false;
+        }
+        String declaration = new String(copy(position, end), StandardCharsets.US_ASCII);
+        int index = declaration.indexOf("encoding");
+        if (index < 0) {
+            return true;
+        }
+        String encoding = declaration.substring(index + "encoding".length()).replaceAll("^\\s*=\\s*[\"']([^\"']*)[\"'].*$", "$1").trim();
+        return "UTF-8".equalsIgnoreCase(encoding) || "UTF8".equalsIgnoreCase(encoding) || "US-ASCII".equalsIgnoreCase(encoding)
+                || "ASCII".equalsIgnoreCase(encoding);
+    }
+
+    /**
+     * Scans the document up to the end of the next record. The handling of the elements is the same as in {@link MarcXmlStreamReader}.
+     */
+    private MarcRecord scanRecord() throws UnsupportedContentException {
+        MarcRecord.Builder currentRecord = null;
+        MarcDatafield.Builder currentDatafield = null;
+        Set<String> usedCodes = null;
+        int currentElement = OTHER;
+        String currentCode = null;
+        boolean keepSubfield = false;
+        int depth = 0;
+        text.clear();
+
+        while (position < limit) {
+            if (buffer.get(position) != '<') {
+                int end = indexOf(position, (byte) '<');
+                if (end < 0) {
+                    end = limit;
+                }
+                if (currentRecord != null && depth > RECORD_DEPTH) {
+                    text.add(position, end, false);
+                }
+                position = end;
+                continue;
+            }
+            if (position + 1 >= limit) {
+                throw new UnsupportedContentException("unexpected end of document");
+            }
+            byte next = buffer.get(position + 1);
+            if (next == '?') {
+                position = skipPast(position + 2, "?>");
+                continue;
+            }
+            if (next == '!') {
+                if (startsWith(position, "<!--")) {
+                    position = skipPast(position + 4, "-->");
+                } else if (startsWith(position, "<![CDATA[")) {
+                    int end = indexOf(position + 9, "]]>");
+                    if (end < 0) {
+                        throw new UnsupportedContentException("unterminated CDATA section");
+                    }
+                    if (currentRecord != null && depth > RECORD_DEPTH) {
+                        text.add(position + 9, end, true);
+                    }
+                    position = end + 3;
+                } else {
+                    throw new UnsupportedContentException("document type declaration");
+                }
+                continue;
+            }
+
+            if (next == '/') {
+                // end tag
+                int start = position + 2;
+                int end = scanName(start);
+                position = skipWhitespace(end);
+                if (position >= limit || buffer.get(position) != '>') {
+                    throw new UnsupportedContentException("malformed end tag at " + start);
+                }
+                position++;
+                if (currentRecord == null) {
+                    continue;
+                }
+                if (!matchesName(depth, start, end)) {
+                    throw new UnsupportedContentException("end tag doesn't match start tag at " + start);
+                }
+            } else {
+                // start tag, the attributes are read into the attribute array
+                int start = position + 1;
+                int end = scanName(start);
+                position = scanAttributes(end);
+                int localStart = localName(start, end);
+
+                if (nameEquals(localStart, end, RECORD, false)) {
+                    // start a new record, a previously started record was only a wrapper
+                    currentRecord = new MarcRecord.Builder();
+                    currentDatafield = null;
+                    text.clear();
+                    depth = RECORD_DEPTH;
+                    pushName(depth, start, end);
+                } else if (currentRecord != null) {
+                    depth++;
+                    pushName(depth, start, end);
+                    text.clear();
+                    if (depth == FIELD_DEPTH) {
+                        if (nameEquals(localStart, end, DATAFIELD_NAME, true)) {
+                            currentElement = DATAFIELD;
+                            String tag = decodeTag(0);
+                            usedCodes = filter == null ? null : filter.getSubfieldCodes(tag);
+                            if (filter == null || usedCodes != null) {
+                                currentDatafield = new MarcDatafield.Builder(tag, decodeAttribute(1), decodeAttribute(2));
+                            }
+                        } else if (nameEquals(localStart, end, CONTROLFIELD_NAME, true)) {
+                            currentElement = CONTROLFIELD;
+                            currentCode = decodeTag(0);
+                        } else {
+                            currentElement = nameEquals(localStart, end, LEADER_NAME, true) ? LEADER : OTHER;
+                        }
+                    } else if (depth == SUBFIELD_DEPTH && currentDatafield != null) {
+                        currentCode = decodeAttribute(3);
+                        keepSubfield = usedCodes == null || usedCodes.contains(currentCode);
+                    }
+                }
+                if (!emptyElement) {
+                    continue;
+                }
+            }
+
+            // end of an element
+            if (currentRecord == null) {
+                continue;
+            }
+            if (depth == RECORD_DEPTH) {
+                return currentRecord.build();
+            }
+            if (depth == SUBFIELD_DEPTH && currentDatafield != null) {
+                if (keepSubfield) {
+                    currentDatafield.addSubfield(currentCode, text.decode());
+                } else {
+                    // the mapping still needs to know that the datafield wasn't empty
+                    currentDatafield.skipSubfield();
+                }
+            } else if (depth == FIELD_DEPTH) {
+                if (currentElement == LEADER) {
+                    currentRecord.setLeader(text.decode());
+                } else if (currentElement == CONTROLFIELD) {
+                    currentRecord.addControlfield(currentCode, text.decode());
+                } else if (currentDatafield != null) {
+                    currentRecord.addDatafield(currentDatafield.build());
+                    currentDatafield = null;
+                }
+            }
+            text.clear();
+            depth--;
+        }
+        if (currentRecord != null) {
+            throw new UnsupportedContentException("unexpected end of document");
+        }
+        return null;
+    }
+
+    /**
+     * Reads the attributes of a start tag. The positions of the values of <code>tag</code>, <code>ind1</code>, <code>ind2</code> and
+     * <code>code</code> are stored in the attribute array, missing attributes have a start position of -1.
+     *
+     * @return the position after the start tag
+     */
+    private int scanAttributes(int from) throws UnsupportedContentException {
+        for (int i = 0; i < attributes.length; i += 2) {
+            attributes[i] = -1;
+        }
+        int pos = from;
+        while (true) {
+            pos = skipWhitespace(pos);
+            if (pos >= limit) {
+                throw new UnsupportedContentException("unterminated start tag");
+            }
+            byte b = buffer.get(pos);
+            if (b == '>') {
+                emptyElement = false;
+                return pos + 1;
+            }
+            if (b == '/') {
+                if (pos + 1 >= limit || buffer.get(pos + 1) != '>') {
+                    throw new UnsupportedContentException("malformed start tag at " + pos);
+                }
+                emptyElement = true;
+                return pos + 2;
+            }
+            int nameStart = pos;
+            int nameEnd = scanName(pos);
+            if (nameEnd == nameStart) {
+                throw new UnsupportedContentException("malformed attribute at " + pos);
+            }
+            pos = skipWhitespace(nameEnd);
+            if (pos >= limit || buffer.get(pos) != '=') {
+                throw new UnsupportedContentException("malformed attribute at " + pos);
+            }
+            pos = skipWhitespace(pos + 1);
+            if (pos >= limit || (buffer.get(pos) != '"' && buffer.get(pos) != '\'')) {
+                throw new UnsupportedContentException("malformed attribute at " + pos);
+            }
+            byte quote = buffer.get(pos);
+            int valueStart = pos + 1;
+            int valueEnd = indexOf(valueStart, quote);
+            if (valueEnd < 0) {
+                throw new UnsupportedContentException("unterminated attribute value");
+            }
+            int localStart = localName(nameStart, nameEnd);
+            int index = -1;
+            if (nameEquals(localStart, nameEnd, TAG, false)) {
+                index = 0;
+            } else if (nameEquals(localStart, nameEnd, IND1, false)) {
+                index = 2;
+            } else if (nameEquals(localStart, nameEnd, IND2, false)) {
+                index = 4;
+            } else if (nameEquals(localStart, nameEnd, CODE, false)) {
+                index = 6;
+            }
+            if (index >= 0) {
+                attributes[index] = valueStart;
+                attributes[index + 1] = valueEnd;
+            }
+            pos = valueEnd + 1;
+        }
+    }
+
+    /**
+     * Decodes the tag attribute, three character tags are cached
+     */
+    private String decodeTag(int attribute) throws UnsupportedContentException {
+        int start = attributes[attribute * 2];
+        int end = attributes[attribute * 2 + 1];
+        if (start >= 0 && end - start == 3) {
+            int b0 = buffer.get(start);
+            int b1 = buffer.get(start + 1);
+            int b2 = buffer.get(start + 2);
+            if (isPlainAscii(b0) && isPlainAscii(b1) && isPlainAscii(b2)) {
+                int key = (b0 << 16) | (b1 << 8) | b2;
+                String tag = tags.get(key);
+                if (tag == null) {
+                    tag = new String(new char[] { (char) b0, (char) b1, (char) b2 });
+                    tags.put(key, tag);
+                }
+                return tag;
+            }
+        }
+        return decodeAttribute(attribute);
+    }
+
+    /**
+     * Decodes an attribute value, single characters are taken from a table
+     *
+     * @param attribute 0 for tag, 1 for ind1, 2 for ind2, 3 for code
+     * @return the value or null, if the attribute is missing
+     */
+    private String decodeAttribute(int attribute) throws UnsupportedContentException {
+        int start = attributes[attribute * 2];
+        int end = attributes[attribute * 2 + 1];
+        if (start < 0) {
+            return null;
+        }
+        if (end - start == 1) {
+            int b = buffer.get(start);
+            if (isPlainAscii(b)) {
+                return ASCII[b];
+            }
+        }
+        String value = decode(start, end, false);
+        // attribute value normalization
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\t' || c == '\n' || c == '\r') {
+                if (sb == null) {
+                    sb = new StringBuilder(value);
+                }
+                sb.setCharAt(i, ' ');
+            }
+        }
+        return sb == null ? value : sb.toString();
+    }
+
+    /**
+     * @return true, if the byte is an ASCII character that needs no decoding
+     */
+    private static boolean isPlainAscii(int b) {
+        return b >= 0x20 && b < 0x80 && b != '&';
+    }
+
+    /**
+     * Decodes character data, resolves the predefined entities and character references and normalizes line ends
+     *
+     * @param raw true for CDATA sections, entities are not resolved
+     */
+    private String decode(int start, int end, boolean raw) throws UnsupportedContentException {
+        int length = end - start;
+        byte[] bytes;
+        int offset;
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            offset = buffer.arrayOffset() + start;
+        } else {
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.position(start);
+            view.get(scratch, 0, length);
+            bytes = scratch;
+            offset = 0;
+        }
+
+        boolean plain = true;
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] == '\r' || (bytes[i] == '&' && !raw)) {
+                plain = false;
+                break;
+            }
+        }
+        if (plain) {
+            return new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+
+        StringBuilder sb = new StringBuilder(length);
+        int runStart = offset;
+        int i = offset;
+        while (i < offset + length) {
+            byte b = bytes[i];
+            if (b == '\r') {
+                sb.append(new String(bytes, runStart, i - runStart, StandardCharsets.UTF_8)).append('\n');
+                i++;
+                if (i < offset + length && bytes[i] == '\n') {
+                    i++;
+                }
+                runStart = i;
+            } else if (b == '&' && !raw) {
+                sb.append(new String(bytes, runStart, i - runStart, StandardCharsets.UTF_8));
+                int semicolon = i + 1;
+                while (semicolon < offset + length && bytes[semicolon] != ';') {
+                    semicolon++;
+                }
+                if (semicolon >= offset + length) {
+                    throw new UnsupportedContentException("unterminated entity reference");
+                }
+                appendEntity(sb, new String(bytes, i + 1, semicolon - i - 1, StandardCharsets.US_ASCII));
+                i = semicolon + 1;
+                runStart = i;
+            } else {
+                i++;
+            }
+        }
+        sb.append(new String(bytes, runStart, offset + length - runStart, StandardCharsets.UTF_8));
+        return sb.toString();
+    }
+
+    private static void appendEntity(StringBuilder sb, String name) throws UnsupportedContentException {
+        switch (name) {
+            case "lt":
+                sb.append('<');
+                break;
+            case "gt":
+                sb.append('>');
+                break;
+            case "amp":
+                sb.append('&');
+                break;
+            case "quot":
+                sb.append('"');
+                break;
+            case "apos":
+                sb.append('\'');
+                break;
+            default:
+                if (name.startsWith("#")) {
+                    try {
+                        int codePoint = name.startsWith("#x") ? Integer.parseInt(name.substring(2), 16) : Integer.parseInt(name.substring(1));
+                        sb.appendCodePoint(codePoint);
+                        break;
+                    } catch (IllegalArgumentException e) {
+                        throw new UnsupportedContentException("invalid character reference &" + name + ";");
+                    }
+                }
+                throw new UnsupportedContentException("entity reference &" + name + ";");
+        }
+    }
+
+    private void pushName(int depth, int start, int end) {
+        if (depth >= nameStart.length) {
+            int size = nameStart.length * 2;
+            int[] starts = new int[size];
+            int[] lengths = new int[size];
+            System.arraycopy(nameStart, 0, starts, 0, nameStart.length);
+            System.arraycopy(nameLength, 0, lengths, 0, nameLength.length);
+            nameStart = starts;
+            nameLength = lengths;
+        }
+        nameStart[depth] = start;
+        nameLength[depth] = end - start;
+    }
+
+    /**
+     * @return true, if the name of the end tag is the name of the open element at the given depth
+     */
+    private boolean matchesName(int depth, int start, int end) {
+        if (depth < RECORD_DEPTH || end - start != nameLength[depth]) {
+            return false;
+        }
+        int open = nameStart[depth];
+        for (int i = 0; i < end - start; i++) {
+            if (buffer.get(start + i) != buffer.get(open + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the end of the name starting at the given position
+     */
+    private int scanName(int from) {
+        int pos = from;
+        while (pos < limit) {
+            byte b = buffer.get(pos);
+            if (b == '>' || b == '/' || b == '=' || b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the start of the local name, after the namespace prefix
+     */
+    private int localName(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == ':') {
+                return i + 1;
+            }
+        }
+        return start;
+    }
+
+    private boolean nameEquals(int start, int end, byte[] name, boolean ignoreCase) {
+        if (end - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            int b = buffer.get(start + i);
+            if (b != name[i] && !(ignoreCase && b >= 'A' && b <= 'Z' && b + ('a' - 'A') == name[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skipWhitespace(int from) {
+        int pos = from;
+        while (pos < limit) {
+            byte b = buffer.get(pos);
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    private int skipPast(int from, String terminator) throws UnsupportedContentException {
+        int end = indexOf(from, terminator);
+        if (end < 0) {
+            throw new UnsupportedContentException("missing " + terminator);
+        }
+        return end + terminator.length();
+    }
+
+    private int indexOf(int from, byte b) {
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(int from, String value) {
+        byte first = (byte) value.charAt(0);
+        for (int i = indexOf(from, first); i >= 0 && i + value.length() <= limit; i = indexOf(i + 1, first)) {
+            if (startsWith(i, value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWith(int from, String value) {
+        if (from + value.length() > limit) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (buffer.get(from + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] copy(int start, int end) {
+        byte[] result = new byte[end - start];
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        view.get(result);
+        return result;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fallback != null) {
+            fallback.close();
+        }
+    }
+
+    /**
+     * Positions of the character data of an element. The text is only decoded if the value is used.
+     */
+    private class TextSegments {
+
+        private int[] segments = new int[6];
+        private int count;
+
+        private void clear() {
+            count = 0;
+        }
+
+        private void add(int start, int end, boolean raw) {
+            if (count + 3 > segments.length) {
+                int[] larger = new int[segments.length * 2];
+                System.arraycopy(segments, 0, larger, 0, segments.length);
+                segments = larger;
+            }
+            segments[count++] = start;
+            segments[count++] = end;
+            segments[count++] = raw ? 1 : 0;
+        }
+
+        /**
+         * @return the text or null, if the element had no character data
+         */
+        private String decode() throws UnsupportedContentException {
+            if (count == 0) {
+                return null;
+            }
+            if (count == 3) {
+                return MarcXmlByteScanner.this.decode(segments[0], segments[1], segments[2] == 1);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < count; i += 3) {
+                sb.append(MarcXmlByteScanner.this.decode(segments[i], segments[i + 1], segments[i + 2] == 1));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Signals content the scanner doesn't handle, the document is read with the XML parser instead
+     */
+    private static class UnsupportedContentException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        private UnsupportedContentException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * Input stream over a buffer, used to read the document with the XML parser
+     */
+    private static class BufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+    }
+
+    /**
+     * Reports an error of the XML parser when the next record is requested
+     */
+    private static class FailedReader implements MarcRecordReader {
+
+        private final Exception exception;
+
+        private FailedReader(Exception exception) {
+            this.exception = exception;
+        }
+
+        @Override
+        public MarcRecord nextRecord() throws IOException {
+            throw exception instanceof IOException ? (IOException) exception : new IOException(exception);
+        }
+
+        @Override
+        public void close() {
+            // nothing to close
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pulls marc records one by one from a MARCXML document. Only the record that is currently read is kept in memory, everything else in the
+ * document is skipped while streaming through it.
+ *
+ * The records are extracted directly from the stream into {@link MarcRecord}s, no DOM tree is created.
+ *
+ * Records embedded in other documents, like the responses of a SRU server, can be read by naming the element that contains the records, see
+ * {@link #forSruResponse(InputStream)}.
+ */
+public class MarcXmlStreamReader implements MarcRecordReader {
+
+    private static final String RECORD_ELEMENT = "record";
+
+    /**
+     * the element of a SRU <code>searchRetrieveResponse</code> that contains the marc record
+     */
+    public static final String SRU_RECORD_CONTAINER = "recordData";
+
+    // nesting depth of the record element and its children
+    private static final int RECORD_DEPTH = 1;
+    private static final int FIELD_DEPTH = 2;
+    private static final int SUBFIELD_DEPTH = 3;
+
+    private final InputStream inputStream;
+    private final XMLStreamReader reader;
+
+    // only records that are direct children of this element are read, null to read all records
+    private final String container;
+    // nesting depth of the elements outside of records, and the depth of the open container element or -1
+    private int documentDepth;
+    private int containerDepth = -1;
+
+    public MarcXmlStreamReader(File file) throws IOException, XMLStreamException {
+        this(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    public MarcXmlStreamReader(InputStream inputStream) throws XMLStreamException {
+        this(inputStream, null);
+    }
+
+    /**
+     * Creates a reader for records that are embedded in another document
+     *
+     * @param inputStream the document
+     * @param container local name of the element that contains the records, only records that are direct children of such an element are read.
+     *            If null, every record is read.
+     * @throws XMLStreamException
+     */
+    public MarcXmlStreamReader(InputStream inputStream, String container) throws XMLStreamException {
+        this.inputStream = inputStream;
+        this.container = container;
+        this.reader = XmlInputFactories.get().createXMLStreamReader(inputStream);
+    }
+
+    /**
+     * Creates a reader for the records of a SRU <code>searchRetrieveResponse</code>. Only the marc records inside the <code>recordData</code>
+     * elements are read, the response itself is skipped while streaming through it. Records with <code>recordPacking</code> <code>string</code>
+     * are not supported.
+     *
+     * @param inputStream the response
+     * @return the reader
+     * @throws XMLStreamException
+     */
+    public static MarcXmlStreamReader forSruResponse(InputStream inputStream) throws XMLStreamException {
+        return new MarcXmlStreamReader(inputStream, SRU_RECORD_CONTAINER);
+    }
+
+    /**
+     * Reads the next marc record from the stream.
+     *
+     * A record element that contains another record element (like the <code>record</code> element of a SRU response) is treated as a wrapper, in
+     * this case the inner record is returned. If a container element was configured, all record elements outside of it are ignored.
+     *
+     * @return the next record or <code>null</code>, if the end of the document was reached
+     * @throws IOException if the document is not well-formed
+     */
+    @Override
+    public MarcRecord nextRecord() throws IOException {
+        try {
+            return readRecord();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private MarcRecord readRecord() throws XMLStreamException {
+        MarcRecord.Builder currentRecord = null;
+        MarcDatafield.Builder currentDatafield = null;
+        String currentElement = null;
+        String currentCode = null;
+        StringBuilder text = null;
+        int depth = 0;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String localName = getLocalName();
+                    if (currentRecord == null && container != null) {
+                        // outside of a record, only track the position in the surrounding document
+                        documentDepth++;
+                        if (container.equals(localName)) {
+                            containerDepth = documentDepth;
+                        } else if (RECORD_ELEMENT.equals(localName) && containerDepth >= 0 && documentDepth == containerDepth + 1) {
+                            currentRecord = new MarcRecord.Builder();
+                            depth = RECORD_DEPTH;
+                        }
+                    } else if (RECORD_ELEMENT.equals(localName) && container == null) {
+                        // start a new record, a previously started record was only a wrapper
+                        currentRecord = new MarcRecord.Builder();
+                        currentDatafield = null;
+                        text = null;
+                        depth = RECORD_DEPTH;
+                    } else if (currentRecord != null) {
+                        depth++;
+                        text = null;
+                        if (depth == FIELD_DEPTH) {
+                            currentElement = localName;
+                            if ("datafield".equalsIgnoreCase(localName)) {
+                                currentDatafield = new MarcDatafield.Builder(getAttribute("tag"), getAttribute("ind1"), getAttribute("ind2"));
+                            } else if ("controlfield".equalsIgnoreCase(localName)) {
+                                currentCode = getAttribute("tag");
+                            }
+                        } else if (depth == SUBFIELD_DEPTH && currentDatafield != null) {
+                            currentCode = getAttribute("code");
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (currentRecord == null) {
+                        if (container != null) {
+                            if (documentDepth == containerDepth) {
+                                containerDepth = -1;
+                            }
+                            documentDepth--;
+                        }
+                        break;
+                    }
+                    if (depth == RECORD_DEPTH) {
+                        if (container != null) {
+                            documentDepth--;
+                        }
+                        return currentRecord.build();
+                    }
+                    String value = text == null ? null : text.toString();
+                    if (depth == SUBFIELD_DEPTH && currentDatafield != null) {
+                        currentDatafield.addSubfield(currentCode, value);
+                    } else if (depth == FIELD_DEPTH) {
+                        if ("leader".equalsIgnoreCase(currentElement)) {
+                            currentRecord.setLeader(value);
+                        } else if ("controlfield".equalsIgnoreCase(currentElement)) {
+                            currentRecord.addControlfield(currentCode, value);
+                        } else if (currentDatafield != null) {
+                            currentRecord.addDatafield(currentDatafield.build());
+                            currentDatafield = null;
+                        }
+                    }
+                    text = null;
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (currentRecord != null && depth > RECORD_DEPTH) {
+                        if (text == null) {
+                            text = new StringBuilder();
+                        }
+                        text.append(reader.getText());
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the name of the current element without namespace prefix
+     */
+    private String getLocalName() {
+        String name = reader.getLocalName();
+        int index = name.indexOf(':');
+        return index < 0 ? name : name.substring(index + 1);
+    }
+
+    private String getAttribute(String name) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (name.equals(reader.getAttributeLocalName(i))) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes marc records as MARCXML <code>collection</code>. Each record is written as soon as it is passed to the writer, so any number of records
+ * can be exported without holding them in memory.
+ *
+ * <pre>
+ * try (MarcXmlStreamWriter writer = new MarcXmlStreamWriter(out)) {
+ *     for (MarcRecord marcRecord : records) {
+ *         writer.writeRecord(marcRecord);
+ *     }
+ * }
+ * </pre>
+ */
+public class MarcXmlStreamWriter implements Closeable {
+
+    public static final String MARC_NAMESPACE = "http://www.loc.gov/MARC21/slim";
+    private static final String PREFIX = "marc";
+
+    private final XMLStreamWriter writer;
+    private boolean closed;
+
+    /**
+     * Starts the document and the collection. The stream is not closed by the writer.
+     *
+     * @param out the target of the UTF-8 encoded document
+     * @throws IOException if the document can't be started
+     */
+    public MarcXmlStreamWriter(OutputStream out) throws IOException {
+        try {
+            writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+            writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            writer.writeStartElement(PREFIX, "collection", MARC_NAMESPACE);
+            writer.writeNamespace(PREFIX, MARC_NAMESPACE);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Appends a record to the collection
+     *
+     * @param marcRecord the record
+     * @throws IOException if the record can't be written
+     */
+    public void writeRecord(MarcRecord marcRecord) throws IOException {
+        try {
+            writer.writeStartElement(PREFIX, "record", MARC_NAMESPACE);
+            if (marcRecord.getLeader() != null) {
+                writer.writeStartElement(PREFIX, "leader", MARC_NAMESPACE);
+                writer.writeCharacters(marcRecord.getLeader());
+                writer.writeEndElement();
+            }
+            for (MarcRecord.Controlfield controlfield : marcRecord.getControlfields()) {
+                writer.writeStartElement(PREFIX, "controlfield", MARC_NAMESPACE);
+                writer.writeAttribute("tag", controlfield.getTag());
+                writeText(controlfield.getValue());
+                writer.writeEndElement();
+            }
+            for (MarcDatafield datafield : marcRecord.getDatafields()) {
+                writer.writeStartElement(PREFIX, "datafield", MARC_NAMESPACE);
+                writer.writeAttribute("tag", datafield.getTag());
+                // blank indicators are written as space
+                writer.writeAttribute("ind1", datafield.getInd1().isEmpty() ? " " : datafield.getInd1());
+                writer.writeAttribute("ind2", datafield.getInd2().isEmpty() ? " " : datafield.getInd2());
+                for (int i = 0; i < datafield.getSubfieldCount(); i++) {
+                    writer.writeStartElement(PREFIX, "subfield", MARC_NAMESPACE);
+                    writer.writeAttribute("code", datafield.getCode(i));
+                    writeText(datafield.getValue(i));
+                    writer.writeEndElement();
+                }
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void writeText(String value) throws XMLStreamException {
+        if (value != null) {
+            writer.writeCharacters(value);
+        }
+    }
+
+    /**
+     * Ends the collection and flushes the document
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -23,19 +23,29 @@ package de.intranda.ugh.extension.util;
  * 
  * This copyright notice MUST APPEAR in all copies of this file!
  ******************************************************************************/
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
+import org.apache.commons.lang3.StringUtils;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import de.intranda.ugh.extension.MarcFileformat;
 import lombok.Getter;
-import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.MetadataType;
+import ugh.dl.Prefs;
+import ugh.fileformats.mets.MetsModsImportExport;
 
 @Getter
-@Setter
+@Log4j2
 public class MetadataConfigurationItem {
 
     private String internalMetadataName;
@@ -62,7 +72,32 @@ public class MetadataConfigurationItem {
 
     private boolean abortAfterFirstMatch = true;
 
+    // compiled once from the configured expressions, null if nothing or an invalid expression is configured
+    private Pattern conditionPattern;
+    private Pattern identifierConditionPattern;
+    private ValueReplacement fieldReplacementRule;
+    private ValueReplacement identifierReplacementRule;
+
+    // resolved once from the ruleset, null if the type is unknown
+    private MetadataType metadataType;
+
+    // the condition subfield, empty if no condition is configured
+    private SubfieldCodes conditionCodes;
+    private SubfieldCodes identifierCodes;
+    // a condition that also accepts datafields without the condition subfield
+    private boolean emptyCondition;
+    // a condition that rejects datafields without a matching condition subfield
+    private boolean conditionRequired;
+
     public MetadataConfigurationItem(Node node) {
+        this(node, null);
+    }
+
+    /**
+     * @param node the configuration element
+     * @param prefs the ruleset used to resolve the metadata type, can be null
+     */
+    public MetadataConfigurationItem(Node node, Prefs prefs) {
         NodeList children = node.getChildNodes();
 
         for (int i = 0; i < children.getLength(); i++) {
@@ -139,6 +174,165 @@ public class MetadataConfigurationItem {
                 separateMainfields = false;
             }
         }
+
+        compile(prefs);
+    }
+
+    /**
+     * Reads an item from a configuration snapshot, see {@link #write(DataOutput)}
+     *
+     * @param in the snapshot
+     * @param prefs the ruleset used to resolve the metadata type, can be null
+     * @throws IOException if the snapshot can't be read
+     */
+    MetadataConfigurationItem(DataInput in, Prefs prefs) throws IOException {
+        internalMetadataName = MarcConfigurationSnapshot.readString(in);
+        separator = MarcConfigurationSnapshot.readString(in);
+        int fieldCount = in.readInt();
+        for (int i = 0; i < fieldCount; i++) {
+            fieldList.add(MarcField.read(in));
+        }
+        identifierField = MarcConfigurationSnapshot.readString(in);
+        identifierConditionField = MarcConfigurationSnapshot.readString(in);
+        identifierReplacement = MarcConfigurationSnapshot.readString(in);
+        conditionField = MarcConfigurationSnapshot.readString(in);
+        conditionValue = MarcConfigurationSnapshot.readString(in);
+        fieldReplacement = MarcConfigurationSnapshot.readString(in);
+        separateEntries = in.readBoolean();
+        byte subfields = in.readByte();
+        separateSubfields = subfields < 0 ? null : subfields == 1;
+        separateMainfields = in.readBoolean();
+        separationType = MarcConfigurationSnapshot.readString(in);
+        abortAfterFirstMatch = in.readBoolean();
+        compile(prefs);
+    }
+
+    /**
+     * Writes the configured values. The compiled expressions and the resolved type are not written, they are created again when the item is
+     * read.
+     *
+     * @param out the snapshot
+     * @throws IOException if the snapshot can't be written
+     */
+    void write(DataOutput out) throws IOException {
+        MarcConfigurationSnapshot.writeString(out, internalMetadataName);
+        MarcConfigurationSnapshot.writeString(out, separator);
+        out.writeInt(fieldList.size());
+        for (MarcField field : fieldList) {
+            field.write(out);
+        }
+        MarcConfigurationSnapshot.writeString(out, identifierField);
+        MarcConfigurationSnapshot.writeString(out, identifierConditionField);
+        MarcConfigurationSnapshot.writeString(out, identifierReplacement);
+        MarcConfigurationSnapshot.writeString(out, conditionField);
+        MarcConfigurationSnapshot.writeString(out, conditionValue);
+        MarcConfigurationSnapshot.writeString(out, fieldReplacement);
+        out.writeBoolean(separateEntries);
+        out.writeByte(separateSubfields == null ? -1 : separateSubfields ? 1 : 0);
+        out.writeBoolean(separateMainfields);
+        MarcConfigurationSnapshot.writeString(out, separationType);
+        out.writeBoolean(abortAfterFirstMatch);
+    }
+
+    /**
+     * Moves all configured fields to the main tag and indicators of a subfield group. Only used while the group is created, before the item is
+     * shared.
+     */
+    void moveToGroupField(String mainTag, String ind1, String ind2) {
+        List<MarcField> fields = new ArrayList<>(fieldList.size());
+        for (MarcField field : fieldList) {
+            fields.add(field.withMainTag(mainTag, ind1, ind2));
+        }
+        fieldList = Collections.unmodifiableList(fields);
+    }
+
+    private void compile(Prefs prefs) {
+        fieldList = Collections.unmodifiableList(fieldList);
+        conditionPattern = compilePattern(MarcFileformat.PREFS_MARC_CONDITION_VALUE, conditionValue);
+        identifierConditionPattern = compilePattern(MarcFileformat.PREFS_MARC_IDENTIFIER_CONDITION, identifierConditionField);
+        fieldReplacementRule = compileReplacement(MarcFileformat.PREFS_MARC_VALUE_REPLACEMENT, fieldReplacement);
+        identifierReplacementRule = compileReplacement(MarcFileformat.PREFS_MARC_IDENTIFIER_REPLACEMENT, identifierReplacement);
+
+        boolean conditional = StringUtils.isNotBlank(conditionField) && StringUtils.isNotBlank(conditionValue);
+        conditionCodes = conditional ? SubfieldCodes.of(conditionField) : SubfieldCodes.NONE;
+        identifierCodes = SubfieldCodes.of(identifierField);
+        emptyCondition = "/empty/".equals(conditionValue);
+        conditionRequired = conditional && !emptyCondition;
+
+        if (prefs != null) {
+            metadataType = prefs.getMetadataTypeByName(internalMetadataName);
+            if (metadataType == null) {
+                log.error("Metadata type {} is not defined in the ruleset, the configured marc fields are ignored", internalMetadataName);
+            }
+        }
+    }
+
+    private Pattern compilePattern(String elementName, String expression) {
+        if (StringUtils.isBlank(expression)) {
+            return null;
+        }
+        try {
+            return Pattern.compile(MetsModsImportExport.splitRegularExpression(expression).get(0));
+        } catch (PatternSyntaxException | IndexOutOfBoundsException e) {
+            log.error("Invalid regular expression '{}' in <{}> of {}, the condition will never match: {}", expression, elementName,
+                    internalMetadataName, e.getMessage());
+            return null;
+        }
+    }
+
+    private ValueReplacement compileReplacement(String elementName, String expression) {
+        if (StringUtils.isBlank(expression)) {
+            return null;
+        }
+        try {
+            return ValueReplacement.compile(expression);
+        } catch (PatternSyntaxException e) {
+            log.error("Invalid regular expression '{}' in <{}> of {}, the replacement is ignored: {}", expression, elementName,
+                    internalMetadataName, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Checks if the value of the condition subfield matches the configured <code>conditionValue</code>
+     */
+    public boolean matchesCondition(String value) {
+        return conditionPattern != null && value != null && conditionPattern.matcher(value).find();
+    }
+
+    /**
+     * Checks a condition subfield. The value matches the configured <code>conditionValue</code>, or the value is blank and the condition is
+     * <code>/empty/</code>.
+     */
+    public boolean acceptsConditionValue(String value) {
+        return matchesCondition(value) || emptyCondition && StringUtils.isBlank(value);
+    }
+
+    /**
+     * Checks if a datafield can't match the condition, because the required condition subfield is missing. Subfields skipped by a
+     * {@link MarcFieldFilter} count, so a filtered datafield gives the same result as the complete one.
+     */
+    public boolean isConditionMissing(MarcDatafield datafield) {
+        return conditionRequired && datafield.getSourceSubfieldCount() > 0 && !conditionCodes.containsAny(datafield);
+    }
+
+    /**
+     * Checks if an identifier matches the configured <code>identifierConditionField</code>. Every identifier matches, if no condition is
+     * configured.
+     */
+    public boolean matchesIdentifierCondition(String identifier) {
+        if (StringUtils.isBlank(identifierConditionField)) {
+            return true;
+        }
+        return identifierConditionPattern != null && identifierConditionPattern.matcher(identifier).find();
+    }
+
+    public String applyFieldReplacement(String value) {
+        return fieldReplacementRule == null ? value : fieldReplacementRule.apply(value);
+    }
+
+    public String applyIdentifierReplacement(String identifier) {
+        return identifierReplacementRule == null ? identifier : identifierReplacementRule.apply(identifier);
     }
     
     public boolean isSeparateSubfields() {
@@ -0,0 +1,121 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable set of subfield codes. Single ASCII character codes, which are the only codes MARC allows, are stored in a 128 bit set, so a
+ * lookup is a single bit test. Other codes are kept in a list and compared as strings.
+ */
+public final class SubfieldCodes {
+
+    public static final SubfieldCodes NONE = new SubfieldCodes(0L, 0L, Collections.emptyList());
+
+    // bits of the codes 0-63 and 64-127
+    private final long low;
+    private final long high;
+    // codes that are not a single ASCII character
+    private final List<String> otherCodes;
+
+    private SubfieldCodes(long low, long high, List<String> otherCodes) {
+        this.low = low;
+        this.high = high;
+        this.otherCodes = otherCodes;
+    }
+
+    /**
+     * @param codes the codes, blank codes are ignored
+     * @return the compiled set
+     */
+    public static SubfieldCodes of(Collection<String> codes) {
+        long low = 0L;
+        long high = 0L;
+        List<String> otherCodes = new ArrayList<>(0);
+        for (String code : codes) {
+            if (code == null || code.isBlank()) {
+                continue;
+            }
+            if (code.length() == 1 && code.charAt(0) < 64) {
+                low |= 1L << code.charAt(0);
+            } else if (code.length() == 1 && code.charAt(0) < 128) {
+                high |= 1L << (code.charAt(0) - 64);
+            } else if (!otherCodes.contains(code)) {
+                otherCodes.add(code);
+            }
+        }
+        if (low == 0L && high == 0L && otherCodes.isEmpty()) {
+            return NONE;
+        }
+        return new SubfieldCodes(low, high, otherCodes.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(otherCodes));
+    }
+
+    /**
+     * @param code a single code, can be blank
+     * @return the compiled set, empty if the code is blank
+     */
+    public static SubfieldCodes of(String code) {
+        return of(Collections.singletonList(code));
+    }
+
+    public boolean contains(String code) {
+        if (code == null) {
+            return false;
+        }
+        if (code.length() == 1) {
+            char c = code.charAt(0);
+            if (c < 64) {
+                return (low & 1L << c) != 0;
+            } else if (c < 128) {
+                return (high & 1L << (c - 64)) != 0;
+            }
+        }
+        return !otherCodes.isEmpty() && otherCodes.contains(code);
+    }
+
+    /**
+     * @return true, if any of the codes of the datafield is in this set
+     */
+    public boolean containsAny(MarcDatafield datafield) {
+        if ((low & datafield.getCodeBitsLow()) != 0 || (high & datafield.getCodeBitsHigh()) != 0) {
+            return true;
+        }
+        if (otherCodes.isEmpty() || !datafield.hasOtherCodes()) {
+            return false;
+        }
+        for (int i = 0; i < datafield.getSubfieldCount(); i++) {
+            if (otherCodes.contains(datafield.getCode(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return this == NONE;
+    }
+}
@@ -23,19 +23,25 @@ package de.intranda.ugh.extension.util;
  * 
  * This copyright notice MUST APPEAR in all copies of this file!
  ******************************************************************************/
-import java.util.LinkedList;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import de.intranda.ugh.extension.MarcFileformat;
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.MetadataGroupType;
+import ugh.dl.Prefs;
 
 @Getter
-@Setter
-
+@Log4j2
 public class SubfieldGroupConfigurationItem {
 
     private String groupName;
@@ -44,11 +50,28 @@ public class SubfieldGroupConfigurationItem {
     private String fieldInd1 = "any";
     private String fieldInd2 = "any";
 
-    private List<MetadataConfigurationItem> metadataList = new LinkedList<>();
-    private List<MetadataConfigurationItem> personList = new LinkedList<>();
-    private List<MetadataConfigurationItem> corporationList = new LinkedList<>();
+    private List<MetadataConfigurationItem> metadataList = new ArrayList<>();
+    private List<MetadataConfigurationItem> personList = new ArrayList<>();
+    private List<MetadataConfigurationItem> corporationList = new ArrayList<>();
+
+    // resolved once from the ruleset, null if the type is unknown
+    private MetadataGroupType groupType;
+
+    // trimmed indicators, null matches any value
+    @Getter(AccessLevel.NONE)
+    private String ind1Value;
+    @Getter(AccessLevel.NONE)
+    private String ind2Value;
 
     public SubfieldGroupConfigurationItem(Node node) {
+        this(node, null);
+    }
+
+    /**
+     * @param node the configuration element
+     * @param prefs the ruleset used to resolve the group and metadata types, can be null
+     */
+    public SubfieldGroupConfigurationItem(Node node, Prefs prefs) {
         NodeList children = node.getChildNodes();
         for (int i = 0; i < children.getLength(); i++) {
             Node n = children.item(i);
@@ -63,40 +86,91 @@ public class SubfieldGroupConfigurationItem {
                 } else if (MarcFileformat.PREFS_MARC_INDICATOR_2.equalsIgnoreCase(n.getNodeName())) {
                     fieldInd2 = MarcFileformat.readTextNode(n);
                 } else if (MarcFileformat.PREFS_MARC_METADATA_NAME.equalsIgnoreCase(n.getNodeName())) {
-                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n);
+                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n, prefs);
                     metadataList.add(metadata);
                 } else if (MarcFileformat.PREFS_MARC_PERSON_NAME.equalsIgnoreCase(n.getNodeName())) {
-                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n);
+                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n, prefs);
                     personList.add(metadata);
                 } else if (MarcFileformat.PREFS_MARC_CORPORATE_NAME.equalsIgnoreCase(n.getNodeName())) {
-                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n);
+                    MetadataConfigurationItem metadata = new MetadataConfigurationItem(n, prefs);
                     corporationList.add(metadata);
                 }
             }
         }
 
         for (MetadataConfigurationItem item : metadataList) {
-            for (MarcField field : item.getFieldList()) {
-                updateField(field);
-            }
+            updateFields(item);
         }
         for (MetadataConfigurationItem item : personList) {
-            for (MarcField field : item.getFieldList()) {
-                updateField(field);
-            }
+            updateFields(item);
         }
         for (MetadataConfigurationItem item : corporationList) {
-            for (MarcField field : item.getFieldList()) {
-                updateField(field);
+            updateFields(item);
+        }
+        metadataList = Collections.unmodifiableList(metadataList);
+        personList = Collections.unmodifiableList(personList);
+        corporationList = Collections.unmodifiableList(corporationList);
+
+        compile(prefs);
+    }
+
+    /**
+     * Reads an item from a configuration snapshot, see {@link #write(DataOutput)}. The fields of the metadata were already updated with the
+     * main tag and indicators of the group when the snapshot was written.
+     */
+    SubfieldGroupConfigurationItem(DataInput in, Prefs prefs) throws IOException {
+        groupName = MarcConfigurationSnapshot.readString(in);
+        fieldMainTag = MarcConfigurationSnapshot.readString(in);
+        fieldInd1 = MarcConfigurationSnapshot.readString(in);
+        fieldInd2 = MarcConfigurationSnapshot.readString(in);
+        metadataList = MarcConfigurationSnapshot.readMetadataItems(in, prefs);
+        personList = MarcConfigurationSnapshot.readMetadataItems(in, prefs);
+        corporationList = MarcConfigurationSnapshot.readMetadataItems(in, prefs);
+        compile(prefs);
+    }
+
+    void write(DataOutput out) throws IOException {
+        MarcConfigurationSnapshot.writeString(out, groupName);
+        MarcConfigurationSnapshot.writeString(out, fieldMainTag);
+        MarcConfigurationSnapshot.writeString(out, fieldInd1);
+        MarcConfigurationSnapshot.writeString(out, fieldInd2);
+        MarcConfigurationSnapshot.writeMetadataItems(out, metadataList);
+        MarcConfigurationSnapshot.writeMetadataItems(out, personList);
+        MarcConfigurationSnapshot.writeMetadataItems(out, corporationList);
+    }
+
+    private void compile(Prefs prefs) {
+        ind1Value = compileIndicator(fieldInd1);
+        ind2Value = compileIndicator(fieldInd2);
+
+        if (prefs != null) {
+            groupType = prefs.getMetadataGroupTypeByName(groupName);
+            if (groupType == null) {
+                log.error("Metadata group type {} is not defined in the ruleset, the group is ignored", groupName);
             }
         }
+    }
+
+    private static String compileIndicator(String configuredValue) {
+        if ("any".equals(configuredValue)) {
+            return null;
+        }
+        return configuredValue == null ? "" : configuredValue.trim();
+    }
 
+    /**
+     * Checks the indicators of a datafield with the main tag of this group
+     *
+     * @param ind1 first indicator of the datafield
+     * @param ind2 second indicator of the datafield
+     * @return true, if both indicators match the configured values
+     */
+    public boolean matchesIndicators(String ind1, String ind2) {
+        return (ind1Value == null || ind1Value.equals(ind1)) && (ind2Value == null || ind2Value.equals(ind2));
     }
 
-    private void updateField(MarcField field) {
-        field.setFieldMainTag(fieldMainTag);
-        field.setFieldInd1(fieldInd1);
-        field.setFieldInd2(fieldInd2);
+    private void updateFields(MetadataConfigurationItem item) {
+        item.moveToGroupField(fieldMainTag, fieldInd1, fieldInd2);
     }
 
 }
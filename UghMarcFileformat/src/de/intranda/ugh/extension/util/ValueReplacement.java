@@ -0,0 +1,344 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import ugh.fileformats.mets.MetsModsImportExport;
+
+/**
+ * A precompiled replacement expression in the form <code>s/regex/replacement/g</code>. Applying it is equivalent to
+ * <code>value.replaceAll(regex, replacement)</code>, but the regular expression is only compiled once.
+ *
+ * Most configured expressions are simple rewrites. They are detected when the expression is compiled and applied with plain string operations
+ * instead of the regex engine:
+ * <ul>
+ * <li>literal text, e.g. <code>s/ ; /, /g</code></li>
+ * <li>a literal prefix or suffix, e.g. <code>s/^\[//g</code> or <code>s/ \/$//g</code></li>
+ * <li>a leading or trailing run of characters, e.g. <code>s/[ :;\/]+$//g</code></li>
+ * <li>a span between two delimiters, e.g. <code>s/\(.+\)//g</code></li>
+ * </ul>
+ * The replacement must not contain group references. All other expressions, and values with line terminators, use the regular expression.
+ */
+public final class ValueReplacement {
+
+    private enum Kind {
+        REGEX,
+        LITERAL,
+        PREFIX,
+        SUFFIX,
+        TRIM_START,
+        TRIM_END,
+        SPAN
+    }
+
+    // characters with a special meaning outside of a character class
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    private final Pattern pattern;
+    private final String replacement;
+
+    private final Kind kind;
+    // the text of LITERAL, PREFIX and SUFFIX, the character set of TRIM_START and TRIM_END
+    private final String text;
+    // the delimiters of SPAN
+    private final char open;
+    private final char close;
+    // the minimal number of characters between the delimiters, 0 for .* and 1 for .+
+    private final int minSpan;
+    private final boolean reluctant;
+
+    private ValueReplacement(Pattern pattern, String replacement, Kind kind, String text, char open, char close, int minSpan, boolean reluctant) {
+        this.pattern = pattern;
+        this.replacement = replacement;
+        this.kind = kind;
+        this.text = text;
+        this.open = open;
+        this.close = close;
+        this.minSpan = minSpan;
+        this.reluctant = reluctant;
+    }
+
+    /**
+     * Parses and compiles a replacement expression
+     *
+     * @param expression the expression, as used in <code>fieldReplacement</code> or <code>identifierReplacement</code>
+     * @return the compiled replacement
+     * @throws PatternSyntaxException if the expression is not a valid regular expression
+     */
+    public static ValueReplacement compile(String expression) {
+        List<String> parts = MetsModsImportExport.splitRegularExpression(expression);
+        if (parts.isEmpty()) {
+            throw new PatternSyntaxException("Missing regular expression", expression, 0);
+        }
+        String regex = parts.get(0);
+        String replacement = parts.size() > 1 ? parts.get(1) : "";
+        // the regular expression is always compiled, invalid expressions are reported the same way
+        Pattern pattern = Pattern.compile(regex);
+        if (replacement.indexOf('$') >= 0 || replacement.indexOf('\\') >= 0) {
+            return new ValueReplacement(pattern, replacement, Kind.REGEX, null, '\0', '\0', 0, false);
+        }
+
+        String literal = parseLiteral(regex, 0, regex.length());
+        if (literal != null) {
+            return new ValueReplacement(pattern, replacement, Kind.LITERAL, literal, '\0', '\0', 0, false);
+        }
+        if (regex.startsWith("^")) {
+            literal = parseLiteral(regex, 1, regex.length());
+            if (literal != null) {
+                return new ValueReplacement(pattern, replacement, Kind.PREFIX, literal, '\0', '\0', 0, false);
+            }
+            String characters = parseRun(regex, 1, regex.length());
+            if (characters != null) {
+                return new ValueReplacement(pattern, replacement, Kind.TRIM_START, characters, '\0', '\0', 0, false);
+            }
+        }
+        if (regex.endsWith("$") && !regex.endsWith("\\$")) {
+            literal = parseLiteral(regex, 0, regex.length() - 1);
+            if (literal != null) {
+                return new ValueReplacement(pattern, replacement, Kind.SUFFIX, literal, '\0', '\0', 0, false);
+            }
+            String characters = parseRun(regex, 0, regex.length() - 1);
+            if (characters != null) {
+                return new ValueReplacement(pattern, replacement, Kind.TRIM_END, characters, '\0', '\0', 0, false);
+            }
+        }
+        ValueReplacement span = parseSpan(pattern, replacement);
+        if (span != null) {
+            return span;
+        }
+        return new ValueReplacement(pattern, replacement, Kind.REGEX, null, '\0', '\0', 0, false);
+    }
+
+    /**
+     * @return the text matched by the expression between start and end, or null if the expression is not a plain text
+     */
+    private static String parseLiteral(String regex, int start, int end) {
+        if (start >= end) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= end || !isEscapedLiteral(regex.charAt(i + 1))) {
+                    return null;
+                }
+                sb.append(regex.charAt(++i));
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                return null;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses a run of characters like <code>[ ,;:]+</code>, <code>\s+</code> or <code> +</code>
+     *
+     * @return the characters of the run, or null if the expression is not such a run
+     */
+    private static String parseRun(String regex, int start, int end) {
+        if (end - start < 2 || regex.charAt(end - 1) != '+') {
+            return null;
+        }
+        end--;
+        if (regex.charAt(start) == '[') {
+            if (regex.charAt(end - 1) != ']') {
+                return null;
+            }
+            return parseCharacterClass(regex, start + 1, end - 1);
+        }
+        if (end - start == 2 && regex.charAt(start) == '\\' && regex.charAt(start + 1) == 's') {
+            return " \t\n\u000B\f\r";
+        }
+        String literal = parseLiteral(regex, start, end);
+        return literal != null && literal.length() == 1 ? literal : null;
+    }
+
+    private static String parseCharacterClass(String regex, int start, int end) {
+        if (start >= end || regex.charAt(start) == '^') {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= end) {
+                    return null;
+                }
+                char escaped = regex.charAt(++i);
+                if (escaped == 's') {
+                    sb.append(" \t\n\u000B\f\r");
+                } else if (isEscapedLiteral(escaped)) {
+                    sb.append(escaped);
+                } else {
+                    return null;
+                }
+            } else if (c == '[' || c == ']' || c == '&' || c == '-' && i > start && i < end - 1) {
+                // nested classes, intersections and ranges
+                return null;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses a span between two delimiters like <code>\(.+\)</code> or <code>&lt;.*?&gt;</code>
+     */
+    private static ValueReplacement parseSpan(Pattern pattern, String replacement) {
+        String regex = pattern.pattern();
+        int openEnd = regex.startsWith("\\") ? 2 : 1;
+        if (regex.length() < openEnd + 3) {
+            return null;
+        }
+        String openText = parseLiteral(regex, 0, openEnd);
+        if (openText == null || regex.charAt(openEnd) != '.') {
+            return null;
+        }
+        char quantifier = regex.charAt(openEnd + 1);
+        if (quantifier != '+' && quantifier != '*') {
+            return null;
+        }
+        int closeStart = openEnd + 2;
+        boolean reluctant = regex.charAt(closeStart) == '?';
+        if (reluctant) {
+            closeStart++;
+        }
+        String closeText = parseLiteral(regex, closeStart, regex.length());
+        if (closeText == null || closeText.length() != 1) {
+            return null;
+        }
+        return new ValueReplacement(pattern, replacement, Kind.SPAN, null, openText.charAt(0), closeText.charAt(0), quantifier == '+' ? 1 : 0,
+                reluctant);
+    }
+
+    private static boolean isEscapedLiteral(char c) {
+        // escaped letters and digits are character classes, back references or control characters
+        return c < 128 && !Character.isLetterOrDigit(c);
+    }
+
+    public String apply(String value) {
+        switch (kind) {
+            case LITERAL:
+                return value.replace(text, replacement);
+            case PREFIX:
+                return value.startsWith(text) ? replacement.concat(value.substring(text.length())) : value;
+            case TRIM_START:
+                return trimStart(value);
+            case SUFFIX:
+                if (endsWithLineTerminator(value)) {
+                    break;
+                }
+                return value.endsWith(text) ? value.substring(0, value.length() - text.length()).concat(replacement) : value;
+            case TRIM_END:
+                if (endsWithLineTerminator(value)) {
+                    break;
+                }
+                return trimEnd(value);
+            case SPAN:
+                if (containsLineTerminator(value)) {
+                    break;
+                }
+                return replaceSpans(value);
+            default:
+                break;
+        }
+        return pattern.matcher(value).replaceAll(replacement);
+    }
+
+    private String trimStart(String value) {
+        int index = 0;
+        while (index < value.length() && text.indexOf(value.charAt(index)) >= 0) {
+            index++;
+        }
+        return index == 0 ? value : replacement.concat(value.substring(index));
+    }
+
+    private String trimEnd(String value) {
+        int index = value.length();
+        while (index > 0 && text.indexOf(value.charAt(index - 1)) >= 0) {
+            index--;
+        }
+        return index == value.length() ? value : value.substring(0, index).concat(replacement);
+    }
+
+    private String replaceSpans(String value) {
+        StringBuilder sb = null;
+        int copied = 0;
+        int from = 0;
+        while (true) {
+            int start = value.indexOf(open, from);
+            if (start < 0) {
+                break;
+            }
+            int minEnd = start + 1 + minSpan;
+            int end = reluctant ? value.indexOf(close, minEnd) : value.lastIndexOf(close);
+            if (end < minEnd) {
+                // no later delimiter can start a match either
+                break;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(value.length());
+            }
+            sb.append(value, copied, start).append(replacement);
+            copied = end + 1;
+            from = end + 1;
+        }
+        if (sb == null) {
+            return value;
+        }
+        return sb.append(value, copied, value.length()).toString();
+    }
+
+    private static boolean endsWithLineTerminator(String value) {
+        return !value.isEmpty() && isLineTerminator(value.charAt(value.length() - 1));
+    }
+
+    private static boolean containsLineTerminator(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (isLineTerminator(value.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true for the characters that end a line for <code>.</code> and <code>$</code>
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    @Override
+    public String toString() {
+        return "s/" + pattern.pattern() + "/" + replacement + "/g";
+    }
+}
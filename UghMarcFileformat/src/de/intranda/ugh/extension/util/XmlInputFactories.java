@@ -0,0 +1,73 @@
+package de.intranda.ugh.extension.util;
+
+/******************************************************************************
+ * Copyright notice
+ *
+ * (c) 2016 intranda GmbH, Göttingen
+ * http://www.intranda.com
+ *
+ * All rights reserved
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * The GNU Lesser General Public License can be found at
+ * http://www.gnu.org/licenses/lgpl-3.0
+ *
+ * This Library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * This copyright notice MUST APPEAR in all copies of this file!
+ ******************************************************************************/
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Provides configured {@link XMLInputFactory} instances. The factory lookup is expensive and factories are not guaranteed to be thread safe, so
+ * each thread creates its factory once and reuses it for all documents.
+ *
+ * The factories are non-validating and not namespace aware, DTDs and external entities are disabled.
+ */
+@Log4j2
+public final class XmlInputFactories {
+
+    private static final ThreadLocal<XMLInputFactory> FACTORIES = ThreadLocal.withInitial(XmlInputFactories::createFactory);
+
+    private XmlInputFactories() {
+    }
+
+    /**
+     * @return the factory of the current thread
+     */
+    public static XMLInputFactory get() {
+        return FACTORIES.get();
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_VALIDATING, Boolean.FALSE);
+        // protection against XXE
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        setOptionalProperty(factory, XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        setOptionalProperty(factory, XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+        return factory;
+    }
+
+    private static void setOptionalProperty(XMLInputFactory factory, String name, Object value) {
+        try {
+            factory.setProperty(name, value);
+        } catch (IllegalArgumentException e) {
+            // not supported by all StAX implementations, DTDs are disabled anyway
+            log.debug("Property {} is not supported by {}", name, factory.getClass().getName());
+        }
+    }
+}
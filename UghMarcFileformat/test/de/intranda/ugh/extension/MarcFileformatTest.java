@@ -5,13 +5,20 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -26,12 +33,30 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import de.intranda.ugh.extension.util.Marc8Decoder;
+import de.intranda.ugh.extension.util.MarcConfigurationReport;
+import de.intranda.ugh.extension.util.MarcDatafield;
+import de.intranda.ugh.extension.util.MarcFieldFilter;
+import de.intranda.ugh.extension.util.MarcImportInstrumentation.Phase;
+import de.intranda.ugh.extension.util.MarcImportMetrics;
+import de.intranda.ugh.extension.util.MarcMappingConfiguration;
+import de.intranda.ugh.extension.util.MarcRecord;
+import de.intranda.ugh.extension.util.MarcRecordReader;
+import de.intranda.ugh.extension.util.MarcResultCache;
+import de.intranda.ugh.extension.util.MarcXmlByteScanner;
+import de.intranda.ugh.extension.util.MarcXmlStreamReader;
+import de.intranda.ugh.extension.util.SubfieldCodes;
+import de.intranda.ugh.extension.util.ValueReplacement;
 import ugh.dl.Corporate;
+import ugh.dl.DigitalDocument;
 import ugh.dl.DocStruct;
 import ugh.dl.Metadata;
 import ugh.dl.MetadataGroup;
+import ugh.dl.MetadataType;
 import ugh.dl.Person;
 import ugh.dl.Prefs;
+import ugh.exceptions.PreferencesException;
+import ugh.fileformats.mets.MetsModsImportExport;
 
 public class MarcFileformatTest {
 
@@ -345,7 +370,7 @@ public class MarcFileformatTest {
         Prefs prefs = new Prefs();
         Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
         MarcFileformat mfc = new MarcFileformat(prefs);
-        assertFalse(mfc.isWritable());
+        Assert.assertTrue(mfc.isWritable());
     }
 
     @Test
@@ -353,7 +378,7 @@ public class MarcFileformatTest {
         Prefs prefs = new Prefs();
         Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
         MarcFileformat mfc = new MarcFileformat(prefs);
-        assertFalse(mfc.isExportable());
+        Assert.assertTrue(mfc.isExportable());
     }
 
     @Test
@@ -467,4 +492,626 @@ public class MarcFileformatTest {
         assertEquals("Gesplittet in: Landes-Regierungsblatt für das Herzogthum Steiermark. 2. Abtheilung", mdl.get(1).getValue());
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testReadFirstRecordOfCollection() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        MarcFileformat mfc = new MarcFileformat(prefs);
+
+        Assert.assertTrue(mfc.read("resources/test/collection.xml"));
+        DocStruct logical = mfc.getDigitalDocument().getLogicalDocStruct();
+        assertEquals("MultiVolumeWork", logical.getType().getName());
+        List<? extends Metadata> titles = logical.getAllMetadataByType(prefs.getMetadataTypeByName("TitleDocMain"));
+        assertEquals("<<Der>> blaue Hummer /", titles.get(0).getValue());
+    }
+
+    @Test
+    public void testReadAllRecordsOfCollection() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        MarcFileformat mfc = new MarcFileformat(prefs);
+
+        Assert.assertTrue(mfc.read("resources/test/collection.xml", null, true));
+        DocStruct logical = mfc.getDigitalDocument().getLogicalDocStruct();
+        assertEquals("MultiVolumeWork", logical.getType().getName());
+        assertEquals(1, logical.getAllChildren().size());
+
+        DocStruct child = logical.getAllChildren().get(0);
+        assertEquals("Volume", child.getType().getName());
+        List<? extends Metadata> titles = child.getAllMetadataByType(prefs.getMetadataTypeByName("TitleDocMain"));
+        assertEquals("<<Der>> dramatische Dilettantismus, sein Wesen und seine Existenzberechtigung :", titles.get(0).getValue());
+    }
+
+    @Test
+    public void testReadCollectionNodeKeepsRecordOrder() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        MarcFileformat mfc = new MarcFileformat(prefs);
+        // the records are mapped on another thread, the hierarchy must still follow the document order
+        mfc.setExecutor(command -> new Thread(command).start());
+
+        Assert.assertTrue(mfc.read(loadMarcDocument("resources/test/collection.xml").getDocumentElement()));
+        DocStruct logical = mfc.getDigitalDocument().getLogicalDocStruct();
+        assertEquals("MultiVolumeWork", logical.getType().getName());
+        assertEquals(1, logical.getAllChildren().size());
+        assertEquals("Volume", logical.getAllChildren().get(0).getType().getName());
+    }
+
+    @Test
+    public void testReadRecordFromSruResponse() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        MarcFileformat mfc = new MarcFileformat(prefs);
+
+        Assert.assertTrue(mfc.read("resources/test/000348732.xml"));
+        DocStruct logical = mfc.getDigitalDocument().getLogicalDocStruct();
+        assertNotNull(logical);
+        assertEquals("Livas", logical.getAllPersons().get(0).getLastname());
+    }
+
+    @Test
+    public void testReadBinaryCollection() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        MarcFileformat mfc = new MarcFileformat(prefs);
+
+        Assert.assertTrue(mfc.read("resources/test/collection.mrc", null, true));
+        DocStruct logical = mfc.getDigitalDocument().getLogicalDocStruct();
+        assertEquals("MultiVolumeWork", logical.getType().getName());
+        List<? extends Metadata> titles = logical.getAllMetadataByType(prefs.getMetadataTypeByName("TitleDocMain"));
+        assertEquals("<<Der>> blaue Hummer /", titles.get(0).getValue());
+
+        DocStruct child = logical.getAllChildren().get(0);
+        assertEquals("Volume", child.getType().getName());
+        titles = child.getAllMetadataByType(prefs.getMetadataTypeByName("TitleDocMain"));
+        assertEquals("<<Der>> dramatische Dilettantismus, sein Wesen und seine Existenzberechtigung :", titles.get(0).getValue());
+    }
+
+    @Test
+    public void testDecodeMarc8() throws Exception {
+        // combining diaeresis and acute accent precede the base character
+        byte[] value = { 'M', (byte) 0xE8, 'u', 'l', 'l', 'e', 'r', ' ', (byte) 0xE2, 'e', ' ', (byte) 0xA2 };
+        assertEquals("Müller é Ø", Marc8Decoder.decode(ByteBuffer.wrap(value), 0, value.length));
+
+        // Hebrew as G1 only replaces the G1 bytes, ASCII text in G0 is kept
+        value = new byte[] { 'a', 'b', 0x1B, ')', '2', 'c', 'd', (byte) 0xE0, 0x1B, ')', 'E', 'e', (byte) 0xA2 };
+        assertEquals("abcd\uFFFDeØ", Marc8Decoder.decode(ByteBuffer.wrap(value), 0, value.length));
+        // restoring G1 doesn't restore G0
+        value = new byte[] { 0x1B, '(', 'N', 'a', ' ', 0x1B, ')', 'E', (byte) 0xA2, 'b', 0x1B, 's', 'c' };
+        assertEquals("\uFFFD Ø\uFFFDc", Marc8Decoder.decode(ByteBuffer.wrap(value), 0, value.length));
+    }
+
+    @Test
+    public void testBulkImportKeepsRecordOrder() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        MarcBulkImporter importer = new MarcBulkImporter(prefs);
+        importer.setMaxPendingRecords(1);
+
+        List<MarcImportResult> results;
+        try (Stream<MarcImportResult> stream = importer.importFiles(List.of(Paths.get("resources/test/collection.xml"),
+                Paths.get("resources/test/collection.mrc")))) {
+            results = stream.collect(Collectors.toList());
+        }
+        assertEquals(4, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            MarcImportResult result = results.get(i);
+            Assert.assertTrue(result.toString(), result.isSuccessful());
+            assertEquals(i % 2, result.getRecordNumber());
+            assertEquals(i % 2 == 0 ? "MultiVolumeWork" : "Volume", result.getDigitalDocument().getLogicalDocStruct().getType().getName());
+        }
+    }
+
+    @Test
+    public void testConfigurationIsSharedPerPrefs() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        MarcMappingConfiguration configuration = MarcMappingConfiguration.forPrefs(prefs);
+        Assert.assertSame(configuration, MarcMappingConfiguration.forPrefs(prefs));
+
+        MarcFileformat first = new MarcFileformat(prefs);
+        MarcFileformat second = new MarcFileformat(prefs, configuration);
+        Assert.assertSame(first.metadataList, second.metadataList);
+        Assert.assertFalse(configuration.getMetadataList().isEmpty());
+        // types are resolved once, when the configuration is compiled
+        assertEquals("Volume", configuration.getDocstructList().get(0).getDocStructType().getName());
+    }
+
+    @Test
+    public void testReadDoesNotResolveExternalEntities() throws Exception {
+        Path secret = Files.createTempFile("secret", ".txt");
+        Path marcFile = Files.createTempFile("xxe", ".xml");
+        try {
+            Files.writeString(secret, "SECRET");
+            Files.writeString(marcFile, "<?xml version=\"1.0\"?>\n<!DOCTYPE record [<!ENTITY xxe SYSTEM \"" + secret.toUri() + "\">]>\n"
+                    + "<record><leader>00000nam a2200000 c 4500</leader>"
+                    + "<datafield tag=\"245\" ind1=\"0\" ind2=\"0\"><subfield code=\"a\">&xxe;</subfield></datafield></record>");
+
+            Prefs prefs = new Prefs();
+            Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+            MarcFileformat mfc = new MarcFileformat(prefs);
+            // DTDs are not supported, the entity stays undeclared and the record is rejected instead of reading the file
+            assertFalse(mfc.read(marcFile.toString()));
+
+            // the same record without the entity is read
+            Files.writeString(marcFile, "<?xml version=\"1.0\"?>\n<record><leader>00000nam a2200000 c 4500</leader>"
+                    + "<datafield tag=\"245\" ind1=\"0\" ind2=\"0\"><subfield code=\"a\">Title</subfield></datafield></record>");
+            Assert.assertTrue(mfc.read(marcFile.toString()));
+        } finally {
+            Files.delete(secret);
+            Files.delete(marcFile);
+        }
+    }
+
+    @Test
+    public void testDetectDocstructWithShortLeader() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        MarcFileformat mfc = new MarcFileformat(prefs);
+        mfc.setDigitalDocument(new DigitalDocument());
+
+        // leader 19 is missing, the rules for Volume and MultiVolumeWork don't match
+        MarcRecord shortLeader = new MarcRecord.Builder().setLeader("00000nam").build();
+        assertEquals("Monograph", mfc.parseDocstruct(shortLeader).getType().getName());
+
+        Assert.assertNull(mfc.parseDocstruct(new MarcRecord.Builder().build()));
+        Assert.assertNull(mfc.parseDocstruct(new MarcRecord.Builder().setLeader("00000").addControlfield("008", "1234").build()));
+    }
+
+    @Test
+    public void testImportMetrics() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        MarcImportMetrics metrics = new MarcImportMetrics();
+        MarcFileformat mfc = new MarcFileformat(prefs);
+        mfc.setInstrumentation(metrics);
+        Assert.assertTrue(mfc.read("resources/test/group.xml"));
+
+        assertEquals(1, metrics.getHistogram(Phase.PARSE).getCount());
+        assertEquals(1, metrics.getCreatedCount(Phase.DOCSTRUCT));
+        Assert.assertTrue(metrics.getCreatedCount(Phase.METADATA) >= mfc.getDigitalDocument().getLogicalDocStruct().getAllMetadata().size());
+        Assert.assertFalse(metrics.getRuleStatistics().isEmpty());
+        Assert.assertTrue(metrics.getHistogram(Phase.METADATA).getPercentileNanos(0.99) <= metrics.getHistogram(Phase.METADATA).getMaxNanos());
+    }
+
+    @Test
+    public void testBulkImportSruResponse() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        String marcRecord = "<marc:record xmlns:marc=\"http://www.loc.gov/MARC21/slim\"><marc:leader>00000nam a2200000 c 4500</marc:leader>"
+                + "<marc:controlfield tag=\"001\">%s</marc:controlfield></marc:record>";
+        String response = "<zs:searchRetrieveResponse xmlns:zs=\"http://www.loc.gov/zing/srw/\"><zs:records>"
+                + "<zs:record><zs:recordData>" + String.format(marcRecord, "first") + "</zs:recordData>"
+                + "<zs:extraRecordData><record><leader>ignored</leader></record></zs:extraRecordData></zs:record>"
+                + "<zs:record><zs:recordData>" + String.format(marcRecord, "second") + "</zs:recordData></zs:record>"
+                + "</zs:records></zs:searchRetrieveResponse>";
+
+        MarcBulkImporter importer = new MarcBulkImporter(prefs);
+        try (Stream<MarcImportResult> results = importer.importSruResponse(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)),
+                "sru")) {
+            List<String> identifiers = results.map(MarcImportResult::getRecordIdentifier).collect(Collectors.toList());
+            assertEquals(List.of("first", "second"), identifiers);
+        }
+
+        try (Stream<MarcImportResult> results = importer.importSruResponse(Paths.get("resources/test/000348732.xml"))) {
+            List<MarcImportResult> list = results.collect(Collectors.toList());
+            assertEquals(1, list.size());
+            assertEquals("Livas", list.get(0).getDigitalDocument().getLogicalDocStruct().getAllPersons().get(0).getLastname());
+        }
+    }
+
+    @Test
+    public void testResultCacheRestoresMappedRecord() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset_group.xml"));
+        Path directory = Files.createTempDirectory("marccache");
+        try {
+            MarcResultCache cache = new MarcResultCache(directory, 1024 * 1024);
+            List<DocStruct> results = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                MarcFileformat mfc = new MarcFileformat(prefs);
+                mfc.setResultCache(cache);
+                Assert.assertTrue(mfc.read("resources/test/group.xml"));
+                results.add(mfc.getDigitalDocument().getLogicalDocStruct());
+            }
+            assertEquals(1, cache.getHitCount());
+
+            DocStruct mapped = results.get(0);
+            DocStruct cached = results.get(1);
+            assertEquals(mapped.getAllMetadata().size(), cached.getAllMetadata().size());
+            for (int i = 0; i < mapped.getAllMetadata().size(); i++) {
+                assertEquals(mapped.getAllMetadata().get(i).getType().getName(), cached.getAllMetadata().get(i).getType().getName());
+                assertEquals(mapped.getAllMetadata().get(i).getValue(), cached.getAllMetadata().get(i).getValue());
+            }
+            MetadataGroup group = cached.getAllMetadataGroups().get(0);
+            assertEquals("PublisherGroup", group.getType().getName());
+            assertEquals(5, group.getMetadataList().size());
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void testDiffAndUpdateExistingDocStruct() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        MarcFileformat mfc = new MarcFileformat(prefs);
+        Assert.assertTrue(mfc.read("resources/test/34220059.xml"));
+        DocStruct existing = mfc.getDigitalDocument().getLogicalDocStruct();
+
+        String document = Files.readString(Paths.get("resources/test/34220059.xml"));
+        MarcRecord unchanged = new MarcXmlStreamReader(new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8))).nextRecord();
+        Assert.assertTrue(mfc.diff(existing, unchanged).isEmpty());
+
+        document = document.replace("Kutschmann", "Kutschmann-Berlin");
+        MarcRecord changed = new MarcXmlStreamReader(new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8))).nextRecord();
+        Person author = existing.getAllPersons().get(0);
+        MarcChangeSet changes = mfc.update(existing, changed);
+        assertEquals(1, changes.getPersonChanges().size());
+        assertEquals(MarcChangeSet.ChangeType.CHANGED, changes.getPersonChanges().get(0).getType());
+        // updated in place
+        Assert.assertSame(author, existing.getAllPersons().get(0));
+        assertEquals("Kutschmann-Berlin", author.getLastname());
+        Assert.assertTrue(mfc.diff(existing, changed).isEmpty());
+    }
+
+    @Test
+    public void testWriteAndReadBack() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        Path folder = Files.createTempDirectory("marcexport");
+        try {
+            MarcFileformat mfc = new MarcFileformat(prefs);
+            Assert.assertTrue(mfc.read("resources/test/34220059.xml"));
+            Path exported = folder.resolve("34220059.xml");
+            Assert.assertTrue(mfc.write(exported.toString()));
+
+            MarcFileformat reimported = new MarcFileformat(prefs);
+            Assert.assertTrue(reimported.read(exported.toString()));
+            DocStruct logical = reimported.getDigitalDocument().getLogicalDocStruct();
+            assertEquals(mfc.getDigitalDocument().getLogicalDocStruct().getType().getName(), logical.getType().getName());
+            Person author = logical.getAllPersons().get(0);
+            assertEquals("Kutschmann", author.getLastname());
+            assertEquals("Theodor", author.getFirstname());
+            assertEquals("115747876X", author.getAuthorityValue());
+            MetadataType title = prefs.getMetadataTypeByName("TitleDocMain");
+            assertEquals(mfc.getDigitalDocument().getLogicalDocStruct().getAllMetadataByType(title).get(0).getValue(),
+                    logical.getAllMetadataByType(title).get(0).getValue());
+
+            // anchor and volume are written as two records of one collection
+            mfc = new MarcFileformat(prefs);
+            Assert.assertTrue(mfc.read("resources/test/collection.xml", null, true));
+            exported = folder.resolve("collection.xml");
+            Assert.assertTrue(mfc.write(exported.toString()));
+            reimported = new MarcFileformat(prefs);
+            Assert.assertTrue(reimported.read(exported.toString(), null, true));
+            logical = reimported.getDigitalDocument().getLogicalDocStruct();
+            assertEquals("MultiVolumeWork", logical.getType().getName());
+            assertEquals(1, logical.getAllChildren().size());
+            DocStruct child = logical.getAllChildren().get(0);
+            assertEquals("Volume", child.getType().getName());
+            assertEquals("<<Der>> dramatische Dilettantismus, sein Wesen und seine Existenzberechtigung :",
+                    child.getAllMetadataByType(title).get(0).getValue());
+        } finally {
+            deleteRecursively(folder);
+        }
+    }
+
+    @Test
+    public void testValueReplacementMatchesRegularExpression() throws Exception {
+        List<String> expressions = List.of("s/\\(.+\\)//g", "s/\\(.*?\\)/-/g", "s/ ; /, /g", "s/^\\[//g", "s/ \\/$//g", "s/ :$//g",
+                "s/[ :;\\/]+$//g", "s/^\\s+//g", "s/ +$//g", "s/^(.*?)( : ){0,1}$/$1/g", "s/.{35}(.{3}).*/$1/g");
+        List<String> values = List.of("", "(DE-588)115747876X", "Kutschmann, Theodor (1843-1920)", "((a)", "(a)(b) c (d", "()", "a ; b ; c",
+                "[Berlin]", "Der blaue Hummer /", "Der blaue Hummer :", "Der blaue Hummer : ; /", "  Titel", "Titel /\n", "(a\nb)", "Titel : \r\n",
+                "  ", "ab   ");
+        for (String expression : expressions) {
+            ValueReplacement replacement = ValueReplacement.compile(expression);
+            List<String> parts = MetsModsImportExport.splitRegularExpression(expression);
+            for (String value : values) {
+                assertEquals(expression + " on '" + value + "'", value.replaceAll(parts.get(0), parts.get(1)), replacement.apply(value));
+            }
+        }
+    }
+
+    @Test
+    public void testSubfieldCodes() throws Exception {
+        SubfieldCodes codes = SubfieldCodes.of(List.of("a", "0", "~", "ab", " "));
+        Assert.assertTrue(codes.contains("a"));
+        Assert.assertTrue(codes.contains("0"));
+        Assert.assertTrue(codes.contains("~"));
+        Assert.assertTrue(codes.contains("ab"));
+        assertFalse(codes.contains("b"));
+        assertFalse(codes.contains(" "));
+        assertFalse(codes.contains(null));
+        Assert.assertTrue(SubfieldCodes.of("").isEmpty());
+
+        MarcDatafield datafield = new MarcDatafield.Builder("100", "1", " ").addSubfield("b", "x").addSubfield("4", "aut").build();
+        assertFalse(codes.containsAny(datafield));
+        Assert.assertTrue(SubfieldCodes.of("4").containsAny(datafield));
+        Assert.assertTrue(codes.containsAny(new MarcDatafield.Builder("100", "", "").addSubfield("ab", "x").build()));
+    }
+
+    @Test
+    public void testConfigurationReportRejectsBrokenRuleset() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        MarcConfigurationReport report = MarcMappingConfiguration.forImport(prefs).getReport();
+        Assert.assertTrue(report.toString(), report.isValid());
+        Assert.assertTrue(report.getRuleCount() > 0);
+        Assert.assertTrue(report.getIndexedTagCount() > 0);
+
+        String ruleset = Files.readString(Paths.get("resources/test/ruleset.xml"))
+                .replaceFirst("<fieldMainTag>245</fieldMainTag>", "<fieldMainTag>24</fieldMainTag>")
+                .replaceFirst("<fieldInd1>any</fieldInd1>", "<fieldInd1>anny</fieldInd1>")
+                .replaceFirst("<conditionValue>/\\^\\(\\?!", "<conditionValue>/^((?!")
+                .replaceFirst("<fieldSubTag>a</fieldSubTag>", "<fieldSubTag>ab</fieldSubTag>");
+        Path file = Files.createTempFile("ruleset", ".xml");
+        try {
+            Files.writeString(file, ruleset);
+            Prefs brokenPrefs = new Prefs();
+            Assert.assertTrue(brokenPrefs.loadPrefs(file.toString()));
+            report = MarcMappingConfiguration.forPrefs(brokenPrefs).getReport();
+            assertEquals(report.toString(), 3, report.getErrors().size());
+            Assert.assertTrue(report.getErrors().get(0).startsWith("<Metadata> TitleDocMain: invalid <fieldMainTag> '24'"));
+            // codes with several characters are compared as string, like before the validation
+            Assert.assertTrue(report.toString(),
+                    report.getWarnings().stream().anyMatch(warning -> warning.contains("'ab' is not a single character")));
+            try {
+                new MarcBulkImporter(brokenPrefs);
+                Assert.fail("Import started with a broken configuration");
+            } catch (PreferencesException e) {
+                Assert.assertTrue(e.getMessage().contains("invalid <fieldInd1> 'anny'"));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testConfigurationSnapshotRestoresRules() throws Exception {
+        Path rulesetFile = Paths.get("resources/test/ruleset.xml");
+        Path folder = Files.createTempDirectory("marcsnapshot");
+        try {
+            Prefs prefs = new Prefs();
+            Assert.assertTrue(prefs.loadPrefs(rulesetFile.toString()));
+            MarcMappingConfiguration compiled = MarcMappingConfiguration.forPrefs(prefs, rulesetFile, folder);
+            try (Stream<Path> files = Files.list(folder)) {
+                assertEquals(1, files.count());
+            }
+
+            Prefs workerPrefs = new Prefs();
+            Assert.assertTrue(workerPrefs.loadPrefs(rulesetFile.toString()));
+            MarcMappingConfiguration restored = MarcMappingConfiguration.forPrefs(workerPrefs, rulesetFile, folder);
+            Assert.assertNotSame(compiled, restored);
+            assertEquals(compiled.getFingerprint(), restored.getFingerprint());
+            assertEquals(compiled.getMappedTypeNames(), restored.getMappedTypeNames());
+            assertEquals(compiled.getReport().getRuleCount(), restored.getReport().getRuleCount());
+            assertEquals(compiled.getReport().getIndexedTagCount(), restored.getReport().getIndexedTagCount());
+            assertEquals(compiled.getReport().getIndexedFieldCount(), restored.getReport().getIndexedFieldCount());
+            Assert.assertSame(restored, MarcMappingConfiguration.forPrefs(workerPrefs, rulesetFile, folder));
+
+            MarcFileformat expected = new MarcFileformat(prefs, compiled);
+            Assert.assertTrue(expected.read("resources/test/34220059.xml"));
+            MarcFileformat actual = new MarcFileformat(workerPrefs, restored);
+            Assert.assertTrue(actual.read("resources/test/34220059.xml"));
+            assertEquals(describeDocStruct(expected.getDigitalDocument().getLogicalDocStruct()),
+                    describeDocStruct(actual.getDigitalDocument().getLogicalDocStruct()));
+        } finally {
+            deleteRecursively(folder);
+        }
+    }
+
+    @Test
+    public void testConvertToMets() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        Path folder = Files.createTempDirectory("marcmets");
+        try {
+            ByteArrayOutputStream progress = new ByteArrayOutputStream();
+            MarcMetsConverter converter = new MarcMetsConverter(prefs);
+            converter.setMappingThreads(2);
+            converter.setProgressOutput(new PrintStream(progress, true, StandardCharsets.UTF_8));
+            assertEquals(0, converter.convert(Paths.get("resources/test/34220059.xml"), folder));
+            try (Stream<Path> files = Files.list(folder)) {
+                assertEquals(List.of("34220059.xml"), files.map(file -> file.getFileName().toString()).collect(Collectors.toList()));
+            }
+            String report = progress.toString(StandardCharsets.UTF_8);
+            Assert.assertTrue(report, report.startsWith("1 records read, 1 written, 0 failed"));
+            converter.setPhysicalDocStructType("UnknownType");
+            try {
+                converter.convert(Paths.get("resources/test/34220059.xml"), folder);
+                Assert.fail("unknown physical structure type");
+            } catch (PreferencesException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("UnknownType"));
+            }
+        } finally {
+            deleteRecursively(folder);
+        }
+    }
+
+    @Test
+    public void testFilteredRecordsMapLikeCompleteRecords() throws Exception {
+        // a conditioned rule that joins all matching datafields into one value
+        String rule = "<Metadata><Name>Note</Name><field><fieldMainTag>699</fieldMainTag><fieldSubTag>a</fieldSubTag></field>"
+                + "<conditionField>2</conditionField><conditionValue>/gnd/</conditionValue><separateEntries>false</separateEntries>"
+                + "<separator>; </separator></Metadata>";
+        String ruleset = Files.readString(Paths.get("resources/test/ruleset.xml")).replaceFirst("<Marc>", "<Marc>" + rule);
+        // the second datafield only has a subfield the filter skips
+        String datafields = "<datafield tag=\"699\" ind1=\" \" ind2=\" \"><subfield code=\"a\">first</subfield><subfield code=\"2\">gnd</subfield>"
+                + "</datafield><datafield tag=\"699\" ind1=\" \" ind2=\" \"><subfield code=\"x\">skipped</subfield></datafield>"
+                + "<datafield tag=\"699\" ind1=\" \" ind2=\" \"><subfield code=\"a\">second</subfield><subfield code=\"2\">gnd</subfield>"
+                + "</datafield></record>";
+        String document = Files.readString(Paths.get("resources/test/34220059.xml")).replaceFirst("</record>", datafields);
+        Path rulesetFile = Files.createTempFile("ruleset", ".xml");
+        Path recordFile = Files.createTempFile("record", ".xml");
+        try {
+            Files.writeString(rulesetFile, ruleset);
+            Files.writeString(recordFile, document);
+            Prefs prefs = new Prefs();
+            Assert.assertTrue(prefs.loadPrefs(rulesetFile.toString()));
+            MarcMappingConfiguration configuration = MarcMappingConfiguration.forPrefs(prefs);
+
+            MarcRecord filtered;
+            try (MarcRecordReader reader = MarcRecordReader.open(recordFile.toFile(), configuration.getFieldFilter())) {
+                filtered = reader.nextRecord();
+            }
+            MarcRecord complete;
+            try (MarcRecordReader reader = new MarcXmlStreamReader(recordFile.toFile())) {
+                complete = reader.nextRecord();
+            }
+            MarcFileformat expected = new MarcFileformat(prefs, configuration);
+            expected.setDigitalDocument(new DigitalDocument());
+            Assert.assertTrue(expected.read(complete, null));
+            MarcFileformat actual = new MarcFileformat(prefs, configuration);
+            actual.setDigitalDocument(new DigitalDocument());
+            Assert.assertTrue(actual.read(filtered, null));
+            String description = describeDocStruct(expected.getDigitalDocument().getLogicalDocStruct());
+            Assert.assertTrue(description, description.contains("|Note=first; second"));
+            assertEquals(description, describeDocStruct(actual.getDigitalDocument().getLogicalDocStruct()));
+        } finally {
+            Files.delete(rulesetFile);
+            Files.delete(recordFile);
+        }
+    }
+
+    @Test
+    public void testParseCorporationAsSingleEntity() throws Exception {
+        String ruleset = Files.readString(Paths.get("resources/test/ruleset.xml"));
+        int corporate = ruleset.indexOf("<Corporate>", ruleset.indexOf("<Marc>"));
+        ruleset = ruleset.substring(0, corporate)
+                + ruleset.substring(corporate).replaceFirst("<separateEntries>true</separateEntries>", "<separateEntries>false</separateEntries>");
+        Path file = Files.createTempFile("ruleset", ".xml");
+        try {
+            Files.writeString(file, ruleset);
+            Prefs prefs = new Prefs();
+            Assert.assertTrue(prefs.loadPrefs(file.toString()));
+            MarcFileformat mfc = new MarcFileformat(prefs);
+
+            // both 710 fields are joined into one corporate, the datafields between and after them don't repeat it
+            List<Node> datafields = getDatafields(loadMarcDocument("resources/test/corporation.xml"), null);
+            List<Corporate> cl = mfc.parseCorporations(datafields, mfc.corporationList);
+            assertEquals(1, cl.size());
+            Corporate fixture = cl.get(0);
+            assertEquals("Georg-August-Universität Göttingen; Catholic Church.", fixture.getMainName());
+            assertEquals(2, fixture.getSubNames().size());
+            assertEquals("1869; 10th", fixture.getPartName());
+            assertEquals("2024315-7", fixture.getAuthorityValue());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testFingerprintCoversTypesOutsideMarcSection() throws Exception {
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        // a type added outside of the Marc section can change the mapping result
+        String ruleset = Files.readString(Paths.get("resources/test/ruleset.xml"))
+                .replaceFirst("<MetadataType>", "<MetadataType><Name>AddedType</Name></MetadataType><MetadataType>");
+        Path rulesetFile = Files.createTempFile("ruleset", ".xml");
+        try {
+            Files.writeString(rulesetFile, ruleset);
+            Prefs changedPrefs = new Prefs();
+            Assert.assertTrue(changedPrefs.loadPrefs(rulesetFile.toString()));
+            Assert.assertNotEquals(MarcMappingConfiguration.forPrefs(prefs).getFingerprint(),
+                    MarcMappingConfiguration.forPrefs(changedPrefs).getFingerprint());
+        } finally {
+            Files.delete(rulesetFile);
+        }
+    }
+
+    @Test
+    public void testReadBinaryCollectionWithTruncatedTail() throws Exception {
+        byte[] collection = Files.readAllBytes(Paths.get("resources/test/collection.mrc"));
+        // a DOS end of file character and padding after the last record
+        byte[] padded = new byte[collection.length + 3];
+        System.arraycopy(collection, 0, padded, 0, collection.length);
+        padded[collection.length] = 0x1A;
+        padded[collection.length + 1] = ' ';
+        padded[collection.length + 2] = ' ';
+        Path file = Files.createTempFile("collection", ".mrc");
+        try {
+            Files.write(file, padded);
+            try (MarcRecordReader reader = MarcRecordReader.open(file.toFile())) {
+                assertNotNull(reader.nextRecord());
+                assertNotNull(reader.nextRecord());
+                try {
+                    reader.nextRecord();
+                    Assert.fail("truncated record was read");
+                } catch (IOException e) {
+                    Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Truncated record at offset " + collection.length));
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testByteScannerReadsSameRecordsAsXmlParser() throws Exception {
+        for (String file : List.of("000348732.xml", "1717559573.xml", "collection.xml", "corporation.xml", "group.xml")) {
+            byte[] data = Files.readAllBytes(Paths.get("resources/test", file));
+            assertEquals(file, describeRecords(new MarcXmlStreamReader(new ByteArrayInputStream(data))),
+                    describeRecords(new MarcXmlByteScanner(data, null)));
+        }
+
+        // entities, CDATA and line ends are handled like the XML parser does, the DOCTYPE is read by the XML parser
+        String marcRecord = "<record><leader>00000nam a2200000 c 4500</leader><controlfield tag=\"001\">a&amp;b&#x41;</controlfield>"
+                + "<datafield tag=\"245\" ind1=\"1\" ind2=\" \"><subfield code=\"a\">x\r\ny<![CDATA[<&>]]></subfield>"
+                + "<subfield code=\"b\"/></datafield></record>";
+        for (String document : List.of(marcRecord, "<?xml version=\"1.0\"?><!DOCTYPE record>" + marcRecord)) {
+            byte[] data = document.getBytes(StandardCharsets.UTF_8);
+            assertEquals(describeRecords(new MarcXmlStreamReader(new ByteArrayInputStream(data))),
+                    describeRecords(new MarcXmlByteScanner(data, null)));
+        }
+
+        // unused datafields and subfields are skipped
+        Prefs prefs = new Prefs();
+        Assert.assertTrue(prefs.loadPrefs("resources/test/ruleset.xml"));
+        MarcFieldFilter filter = MarcMappingConfiguration.forPrefs(prefs).getFieldFilter();
+        try (MarcRecordReader reader = new MarcXmlByteScanner(Files.readAllBytes(Paths.get("resources/test/1717559573.xml")), filter)) {
+            for (MarcDatafield datafield : reader.nextRecord().getDatafields()) {
+                Assert.assertTrue(datafield.toString(), filter.acceptsDatafield(datafield.getTag()));
+            }
+        }
+    }
+
+    private static String describeDocStruct(DocStruct docStruct) {
+        StringBuilder sb = new StringBuilder(docStruct.getType().getName());
+        if (docStruct.getAllMetadata() != null) {
+            for (Metadata md : docStruct.getAllMetadata()) {
+                sb.append('|').append(md.getType().getName()).append('=').append(md.getValue());
+            }
+        }
+        if (docStruct.getAllPersons() != null) {
+            for (Person person : docStruct.getAllPersons()) {
+                sb.append('|').append(person.getRole()).append('=').append(person.getLastname()).append(", ").append(person.getFirstname());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        // reverse order deletes the children before their parents
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private static String describeRecords(MarcRecordReader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        try (reader) {
+            for (MarcRecord marcRecord = reader.nextRecord(); marcRecord != null; marcRecord = reader.nextRecord()) {
+                sb.append(marcRecord.getLeader()).append('\n');
+                for (MarcRecord.Controlfield controlfield : marcRecord.getControlfields()) {
+                    sb.append(controlfield.getTag()).append(' ').append(controlfield.getValue()).append('\n');
+                }
+                for (MarcDatafield datafield : marcRecord.getDatafields()) {
+                    sb.append(datafield).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+}